@@ -0,0 +1,113 @@
+package com.the_qa_company.wikidatachanges.datastruct;
+
+import com.the_qa_company.wikidatachanges.api.RDFFlavor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * compare the writes of a delta file from multiple threads with a shared lock and with the writer thread of
+ * {@link DeltaFileQueueWriter}, the score is in entries/s, the threads are the concurrent downloads of a fetch, the
+ * lock contention needs a machine with many cores
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DeltaFileWriterBenchmark {
+	private static final int ENTRIES = 100_000;
+
+	@Param({"synchronized", "queue"})
+	public String writer;
+	@Param({"64", "128"})
+	public int threads;
+	@Param({"8192"})
+	public int pageSize;
+	private byte[][] pages;
+	private ExecutorService pool;
+	private Path file;
+
+	@Setup
+	public void setup() throws IOException {
+		// random pages, not compressible like the gzip pages
+		Random random = new Random(42);
+		pages = new byte[64][pageSize];
+		for (byte[] page : pages) {
+			random.nextBytes(page);
+		}
+		pool = Executors.newFixedThreadPool(threads);
+		file = Files.createTempFile("delta-bench", ".df");
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		pool.shutdownNow();
+		Files.deleteIfExists(file);
+	}
+
+	@TearDown(Level.Invocation)
+	public void deleteFile() throws IOException {
+		Files.deleteIfExists(file);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ENTRIES)
+	public void write() throws Exception {
+		Instant now = Instant.now();
+		DeltaFileWriter fileWriter = new DeltaFileWriter(file, now, now, RDFFlavor.getDefaultFlavor());
+		DeltaFileQueueWriter queueWriter = writer.equals("queue") ? new DeltaFileQueueWriter(fileWriter, Math.max(64, threads * 4)) : null;
+		AtomicLong next = new AtomicLong();
+		List<Callable<Void>> tasks = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			tasks.add(() -> {
+				for (long e; (e = next.getAndIncrement()) < ENTRIES; ) {
+					String name = "Q" + e + ".ttl";
+					byte[] page = pages[(int) (e % pages.length)];
+					if (queueWriter != null) {
+						queueWriter.write(name, page);
+					} else {
+						synchronized (fileWriter) {
+							fileWriter.write(name, page);
+						}
+					}
+				}
+				return null;
+			});
+		}
+		for (Future<Void> future : pool.invokeAll(tasks)) {
+			future.get();
+		}
+		if (queueWriter != null) {
+			queueWriter.close();
+		} else {
+			fileWriter.close();
+		}
+	}
+}
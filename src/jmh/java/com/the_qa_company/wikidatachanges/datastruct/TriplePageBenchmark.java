@@ -0,0 +1,82 @@
+package com.the_qa_company.wikidatachanges.datastruct;
+
+import com.the_qa_company.wikidatachanges.utils.DeltaFileTriples;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * compare the gzip Turtle pages of a delta file with their triple pages, the sizes are printed by the setup, the score
+ * is the time to read the triples of all the pages. The pages are read from a delta file written with the pages as
+ * downloaded:
+ * {@code java -jar build/libs/wikidata-changes-*-jmh.jar TriplePageBenchmark -p deltaFile=deltafiles/delta.df}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TriplePageBenchmark {
+	@Param({""})
+	public String deltaFile;
+	@Param({"10000"})
+	public int pages;
+	private List<DeltaFileReader.Entry> turtlePages;
+	private List<DeltaFileReader.Entry> triplePages;
+
+	@Setup
+	public void setup() throws Exception {
+		if (deltaFile.isEmpty()) {
+			throw new IllegalArgumentException("No delta file, please use -p deltaFile=[file]");
+		}
+		turtlePages = new ArrayList<>();
+		triplePages = new ArrayList<>();
+		long[] sizes = new long[2];
+		try (DeltaFileReader reader = DeltaFileReader.open(Path.of(deltaFile))) {
+			if (reader.getEncoding() != DeltaFileUtils.ENCODING_DOWNLOADED) {
+				throw new IllegalArgumentException("The pages of " + deltaFile + " aren't stored as downloaded");
+			}
+			reader.forEachLatest(entry -> {
+				if (entry.deleted() || turtlePages.size() >= pages) {
+					return;
+				}
+				byte[] encoded = TriplePage.encode(DeltaFileTriples.parse(entry, DeltaFileUtils.BASE_URI).triples());
+				turtlePages.add(entry);
+				triplePages.add(new DeltaFileReader.Entry(entry.name(), encoded, DeltaFileUtils.ENCODING_TRIPLES, null));
+				sizes[0] += entry.buffer().length;
+				sizes[1] += encoded.length;
+			});
+		}
+		System.out.printf("%n%d page(s), gzip Turtle: %d bytes, triple pages: %d bytes (%.1f%%)%n",
+				turtlePages.size(), sizes[0], sizes[1], 100.0 * sizes[1] / Math.max(1, sizes[0]));
+	}
+
+	@Benchmark
+	public void parseTurtle(Blackhole blackhole) throws Exception {
+		for (DeltaFileReader.Entry entry : turtlePages) {
+			blackhole.consume(DeltaFileTriples.parse(entry, DeltaFileUtils.BASE_URI));
+		}
+	}
+
+	@Benchmark
+	public void decodeTriples(Blackhole blackhole) throws Exception {
+		for (DeltaFileReader.Entry entry : triplePages) {
+			blackhole.consume(DeltaFileTriples.parse(entry, DeltaFileUtils.BASE_URI));
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package com.the_qa_company.wikidatachanges.utils;
+
+import com.the_qa_company.qendpoint.core.triples.TripleString;
+
+/**
+ * sample triples of the benchmarks
+ */
+final class BenchmarkTriples {
+	private BenchmarkTriples() {
+	}
+
+	/**
+	 * @return 1024 triples of different subjects
+	 */
+	static TripleString[] create() {
+		TripleString[] triples = new TripleString[1024];
+		for (int i = 0; i < triples.length; i++) {
+			triples[i] = new TripleString(
+					"http://www.wikidata.org/entity/Q" + i,
+					"http://www.wikidata.org/prop/direct/P31",
+					"http://www.wikidata.org/entity/Q5"
+			);
+		}
+		return triples;
+	}
+}
@@ -0,0 +1,70 @@
+package com.the_qa_company.wikidatachanges.utils;
+
+import com.the_qa_company.qendpoint.core.triples.TripleString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * compare the size accounting modes of the chunk split, the score is in triples/s, the allocations are printed with
+ * {@code -prof gc}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileTripleIteratorBenchmark {
+	private static final int TRIPLES = 10_000_000;
+
+	@Param({"STRING", "UTF8", "HEAP"})
+	public FileTripleIterator.SizeMode mode;
+	@Param({"67108864"})
+	public long chunkSize;
+	private TripleString[] samples;
+
+	@Setup
+	public void setup() {
+		samples = BenchmarkTriples.create();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(TRIPLES)
+	public long split(Blackhole blackhole) {
+		FileTripleIterator it = new FileTripleIterator(new Iterator<>() {
+			int index;
+
+			@Override
+			public boolean hasNext() {
+				return index < TRIPLES;
+			}
+
+			@Override
+			public TripleString next() {
+				return samples[index++ % samples.length];
+			}
+		}, chunkSize, mode);
+		long chunks = 0;
+		while (it.hasNewFile()) {
+			chunks++;
+			while (it.hasNext()) {
+				blackhole.consume(it.next());
+			}
+		}
+		return chunks;
+	}
+}
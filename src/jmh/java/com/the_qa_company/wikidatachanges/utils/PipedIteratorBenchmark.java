@@ -0,0 +1,62 @@
+package com.the_qa_company.wikidatachanges.utils;
+
+import com.the_qa_company.qendpoint.core.triples.TripleString;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * compare the pipes between a producer and a consumer thread with different batch sizes, the batch size 1 is the
+ * element by element handoff, the score is in elements/s, the allocations are printed with {@code -prof gc}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PipedIteratorBenchmark {
+	private static final int ELEMENTS = 1_000_000;
+	private static final int BUFFER = 10000;
+
+	@Param({"1", "64", "1024"})
+	public int batchSize;
+	private TripleString[] triples;
+
+	@Setup
+	public void setup() {
+		triples = BenchmarkTriples.create();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(ELEMENTS)
+	public void pipe(Blackhole blackhole) {
+		PipedIterator<TripleString> pipe = new PipedIterator<>(BUFFER, batchSize);
+		Thread producer = new Thread(() -> {
+			try {
+				for (int i = 0; i < ELEMENTS; i++) {
+					pipe.addElement(triples[i % triples.length]);
+				}
+				pipe.closePipe();
+			} catch (Throwable t) {
+				pipe.closePipe(t);
+			}
+		}, "PipeBench");
+		producer.start();
+		while (pipe.hasNext()) {
+			blackhole.consume(pipe.next());
+		}
+	}
+}
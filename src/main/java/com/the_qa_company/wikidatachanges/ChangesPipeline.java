@@ -0,0 +1,300 @@
+package com.the_qa_company.wikidatachanges;
+
+import com.the_qa_company.wikidatachanges.api.Change;
+import com.the_qa_company.wikidatachanges.datastruct.QidSet;
+import com.the_qa_company.wikidatachanges.datastruct.RevisionIndex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static com.the_qa_company.wikidatachanges.WikidataChangesFetcher.printPercentage;
+
+/**
+ * Producer/consumer pipeline to process the changed entities while the changes are still listed. The titles are
+ * de-duplicated on the fly and handed to the workers through a bounded queue, the listing is blocked while the queue
+ * is full.
+ */
+public class ChangesPipeline {
+	/**
+	 * Task run by the workers on each listed entity
+	 */
+	@FunctionalInterface
+	public interface EntityTask {
+		/**
+		 * process an entity
+		 *
+		 * @param title the entity title
+		 * @throws Exception any exception, the pipeline is stopped
+		 */
+		void process(String title) throws Exception;
+	}
+
+	/**
+	 * Task run by the workers on batches of listed entities
+	 */
+	@FunctionalInterface
+	public interface BatchTask {
+		/**
+		 * process a batch of entities
+		 *
+		 * @param changes the changes of the entities, the revision is 0 for the pending titles
+		 * @throws Exception any exception, the pipeline is stopped
+		 */
+		void process(List<Change> changes) throws Exception;
+	}
+
+	// compared by identity
+	private static final Change END = new Change();
+
+	private final QidSet seen;
+	private final RevisionIndex revisions;
+	private final int workers;
+	private final int queueSize;
+	private final AtomicLong listed = new AtomicLong();
+	private final AtomicLong processed = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final Object logSync = new Object() {
+	};
+	private volatile boolean failed;
+	private Supplier<String> status = () -> "";
+
+	/**
+	 * create a pipeline
+	 *
+	 * @param seen      the titles already processed, the listed titles are added to it
+	 * @param workers   the number of workers
+	 * @param queueSize the maximum number of titles waiting for a worker
+	 */
+	public ChangesPipeline(QidSet seen, int workers, int queueSize) {
+		this(seen, null, workers, queueSize);
+	}
+
+	/**
+	 * create a pipeline skipping the already applied revisions, the changes are coalesced into one download per
+	 * entity and the index is updated with the newest listed revision of each entity. The pages are downloaded after
+	 * the listed changes, the index should only be saved once all the listed entities are processed.
+	 *
+	 * @param seen      the titles already processed, the listed titles are added to it, the index and the set are
+	 *                  updated while synchronized on the set
+	 * @param revisions the last applied revision of the entities, null to process all the entities
+	 * @param workers   the number of workers
+	 * @param queueSize the maximum number of titles waiting for a worker
+	 */
+	public ChangesPipeline(QidSet seen, RevisionIndex revisions, int workers, int queueSize) {
+		if (workers <= 0) {
+			throw new IllegalArgumentException("workers can't be negative or zero! " + workers);
+		}
+		if (queueSize <= 0) {
+			throw new IllegalArgumentException("queueSize can't be negative or zero! " + queueSize);
+		}
+		this.seen = seen;
+		this.revisions = revisions;
+		this.workers = workers;
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * run the pipeline, return once all the listed entities are processed
+	 *
+	 * @param pending titles already in the seen set to process before the listed changes
+	 * @param sources the changes to process, each source is listed by its own thread
+	 * @param task    the task to run on each entity
+	 * @throws IOException          a task or a listing failed
+	 * @throws InterruptedException interruption while waiting for the workers
+	 */
+	public void run(Iterator<String> pending, List<? extends Iterator<Change>> sources, EntityTask task) throws IOException, InterruptedException {
+		run(pending, sources, 1, changes -> task.process(changes.get(0).getTitle()));
+	}
+
+	/**
+	 * run the pipeline with batches of entities, a worker takes the titles waiting in the queue up to the batch size,
+	 * return once all the listed entities are processed
+	 *
+	 * @param pending   titles already in the seen set to process before the listed changes
+	 * @param sources   the changes to process, each source is listed by its own thread
+	 * @param batchSize the maximum number of titles given to a task
+	 * @param task      the task to run on each batch
+	 * @throws IOException          a task or a listing failed
+	 * @throws InterruptedException interruption while waiting for the workers
+	 */
+	public void run(Iterator<String> pending, List<? extends Iterator<Change>> sources, int batchSize, BatchTask task) throws IOException, InterruptedException {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batchSize can't be negative or zero! " + batchSize);
+		}
+		BlockingQueue<Change> queue = new ArrayBlockingQueue<>(queueSize);
+		ExecutorService pool = Executors.newFixedThreadPool(workers + sources.size());
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for (int i = 0; i < workers; i++) {
+				futures.add(pool.submit(() -> {
+					List<Change> batch = new ArrayList<>(batchSize);
+					boolean end = false;
+					while (!end) {
+						batch.clear();
+						batch.add(queue.take());
+						queue.drainTo(batch, batchSize - 1);
+						// the END markers are put after all the changes, the other workers need theirs
+						for (int j = 0; j < batch.size(); j++) {
+							if (batch.get(j) == END) {
+								for (int k = j + 1; k < batch.size(); k++) {
+									queue.put(END);
+								}
+								batch.subList(j, batch.size()).clear();
+								end = true;
+								break;
+							}
+						}
+						if (batch.isEmpty()) {
+							continue;
+						}
+						try {
+							task.process(batch);
+						} catch (Throwable t) {
+							failed = true;
+							throw t;
+						}
+						long d = processed.addAndGet(batch.size());
+						synchronized (logSync) {
+							printPercentage(d, listed.get(), "downloading " + status.get(), true);
+						}
+					}
+					return null;
+				}));
+			}
+
+			while (!failed && pending.hasNext()) {
+				Change change = new Change();
+				change.setTitle(pending.next());
+				listed.incrementAndGet();
+				put(queue, change, futures);
+			}
+
+			List<Future<Void>> listers = new ArrayList<>();
+			for (Iterator<Change> changes : sources) {
+				listers.add(pool.submit(() -> {
+					while (!failed && changes.hasNext()) {
+						Change change = changes.next();
+						if (change.getTitle().isEmpty() || change.getNs() != 0) {
+							continue;
+						}
+						if (revisions != null && revisions.isApplied(change.getTitle(), change.getRevid())) {
+							// not marked as seen, a newer revision can be in another window
+							skipped.incrementAndGet();
+							continue;
+						}
+						synchronized (seen) {
+							// every listed change, the first listed change of an entity isn't always the newest
+							if (revisions != null) {
+								revisions.update(change.getTitle(), change.getRevid());
+							}
+							if (!seen.add(change.getTitle())) {
+								continue;
+							}
+						}
+						listed.incrementAndGet();
+						put(queue, change, futures);
+					}
+					return null;
+				}));
+			}
+			for (Future<Void> f : listers) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					failed = true;
+					if (e.getCause() instanceof IOException ioe) {
+						// failure of a worker
+						throw ioe;
+					}
+					throw new IOException("Can't list the changes", e.getCause());
+				}
+			}
+
+			for (int i = 0; i < workers; i++) {
+				put(queue, END, futures);
+			}
+
+			for (Future<Void> f : futures) {
+				try {
+					f.get();
+				} catch (ExecutionException e) {
+					throw failure(e);
+				}
+			}
+			System.out.println();
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * set the status printed with the progress of the workers
+	 *
+	 * @param status the status supplier
+	 */
+	public void setStatus(Supplier<String> status) {
+		this.status = status;
+	}
+
+	/**
+	 * @return the titles seen by the pipeline, the set should be synchronized on while the pipeline is running
+	 */
+	public QidSet getSeen() {
+		return seen;
+	}
+
+	private void put(BlockingQueue<Change> queue, Change change, List<Future<Void>> futures) throws IOException, InterruptedException {
+		while (!queue.offer(change, 1, TimeUnit.SECONDS)) {
+			// the queue is full, check that the workers are still alive
+			for (Future<Void> f : futures) {
+				if (f.isDone()) {
+					try {
+						f.get();
+					} catch (ExecutionException e) {
+						throw failure(e);
+					}
+					throw new IOException("A worker stopped before the end of the pipeline");
+				}
+			}
+		}
+	}
+
+	private IOException failure(ExecutionException e) {
+		long d = processed.get();
+		long n = Math.max(1, listed.get());
+		int percentage = (int) (100L * d / n);
+		return new IOException("Wasn't able to download all the files: " + d + "/" + n + " " + percentage + "%", e.getCause());
+	}
+
+	/**
+	 * @return the number of listed entities
+	 */
+	public long getListed() {
+		return listed.get();
+	}
+
+	/**
+	 * @return the number of processed entities
+	 */
+	public long getProcessed() {
+		return processed.get();
+	}
+
+	/**
+	 * @return the number of changes skipped because their revision was already applied
+	 */
+	public long getSkipped() {
+		return skipped.get();
+	}
+}
@@ -0,0 +1,189 @@
+package com.the_qa_company.wikidatachanges;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive limit of the requests in flight (AIMD). The window grows by one request for each healthy response until the
+ * first congestion (slow start), then by one request per window of healthy responses. It is halved when the server
+ * answers 429/503 or when the latency goes over {@link #SPIKE_FACTOR} times its average, at most once per average
+ * latency, the responses of the requests sent before the decrease are reporting the same congestion.
+ */
+public class ConcurrencyGovernor {
+	/**
+	 * outcome of a request
+	 */
+	public enum Outcome {
+		/**
+		 * the server answered
+		 */
+		SUCCESS,
+		/**
+		 * the server asked to slow down (429/503)
+		 */
+		CONGESTION,
+		/**
+		 * the request failed for another reason, the window isn't updated
+		 */
+		FAILURE
+	}
+
+	/**
+	 * latency ratio against the average latency to consider a response as a spike
+	 */
+	public static final double SPIKE_FACTOR = 3;
+	/**
+	 * number of responses before the latency spikes are detected
+	 */
+	private static final int WARMUP = 16;
+	private static final double LATENCY_ALPHA = 0.1;
+	private static final long MIN_DECREASE_INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final int minWindow;
+	private final int maxWindow;
+	private final ArrayDeque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+	private double window;
+	private boolean slowStart = true;
+	private int inFlight;
+	private double latency;
+	private long samples;
+	private long lastDecrease;
+	private long decreases;
+
+	/**
+	 * create a governor
+	 *
+	 * @param initialWindow the window before the first response
+	 * @param minWindow     the minimum window
+	 * @param maxWindow     the maximum window
+	 */
+	public ConcurrencyGovernor(int initialWindow, int minWindow, int maxWindow) {
+		if (minWindow <= 0) {
+			throw new IllegalArgumentException("minWindow can't be negative or zero! " + minWindow);
+		}
+		if (maxWindow < minWindow) {
+			throw new IllegalArgumentException("maxWindow can't be lower than minWindow! " + maxWindow + " < " + minWindow);
+		}
+		this.minWindow = minWindow;
+		this.maxWindow = maxWindow;
+		this.window = Math.max(minWindow, Math.min(maxWindow, initialWindow));
+	}
+
+	/**
+	 * create a governor with a fixed window
+	 *
+	 * @param window the window
+	 * @return governor
+	 */
+	public static ConcurrencyGovernor fixed(int window) {
+		return new ConcurrencyGovernor(window, window, window);
+	}
+
+	/**
+	 * acquire a request slot, the caller has to call {@link #release(long, Outcome)} once the request is done
+	 *
+	 * @return future completed once the slot is acquired
+	 */
+	public CompletableFuture<Void> acquire() {
+		synchronized (this) {
+			if (inFlight < (int) window && waiting.isEmpty()) {
+				inFlight++;
+				return CompletableFuture.completedFuture(null);
+			}
+			CompletableFuture<Void> future = new CompletableFuture<>();
+			waiting.add(future);
+			return future;
+		}
+	}
+
+	/**
+	 * release a request slot and update the window
+	 *
+	 * @param latencyNanos the latency of the request in nanoseconds
+	 * @param outcome      the outcome of the request
+	 */
+	public void release(long latencyNanos, Outcome outcome) {
+		List<CompletableFuture<Void>> ready = new ArrayList<>();
+		synchronized (this) {
+			inFlight--;
+			long now = System.nanoTime();
+			switch (outcome) {
+				case SUCCESS -> {
+					boolean spike = samples >= WARMUP && latencyNanos > latency * SPIKE_FACTOR;
+					latency = samples++ == 0 ? latencyNanos : latency + (latencyNanos - latency) * LATENCY_ALPHA;
+					if (spike) {
+						decrease(now);
+					} else if (slowStart) {
+						window = Math.min(maxWindow, window + 1);
+					} else {
+						window = Math.min(maxWindow, window + 1 / window);
+					}
+				}
+				case CONGESTION -> decrease(now);
+				case FAILURE -> {
+				}
+			}
+			while (inFlight < (int) window && !waiting.isEmpty()) {
+				inFlight++;
+				ready.add(waiting.poll());
+			}
+		}
+		// complete outside the lock, the next requests are sent by the completion
+		ready.forEach(f -> f.complete(null));
+	}
+
+	private void decrease(long now) {
+		slowStart = false;
+		if (decreases != 0 && now - lastDecrease < Math.max(MIN_DECREASE_INTERVAL, (long) latency)) {
+			return;
+		}
+		window = Math.max(minWindow, window / 2);
+		lastDecrease = now;
+		decreases++;
+	}
+
+	/**
+	 * @return the current window
+	 */
+	public synchronized int getWindow() {
+		return (int) window;
+	}
+
+	/**
+	 * @return the maximum window
+	 */
+	public int getMaxWindow() {
+		return maxWindow;
+	}
+
+	/**
+	 * @return the number of requests in flight
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * @return the number of times the window was halved
+	 */
+	public synchronized long getDecreases() {
+		return decreases;
+	}
+
+	/**
+	 * @return the average latency of the healthy responses in milliseconds
+	 */
+	public synchronized long getLatencyMillis() {
+		return TimeUnit.NANOSECONDS.toMillis((long) latency);
+	}
+
+	/**
+	 * @return description of the window for the progress output
+	 */
+	public String status() {
+		return "window " + getWindow() + "/" + maxWindow + " " + getLatencyMillis() + "ms";
+	}
+}
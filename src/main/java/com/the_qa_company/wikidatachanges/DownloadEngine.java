@@ -0,0 +1,438 @@
+package com.the_qa_company.wikidatachanges;
+
+import com.the_qa_company.wikidatachanges.datastruct.EntityCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Download engine built on the java http client, the requests are multiplexed on HTTP/2 connections kept alive between
+ * the downloads and the number of requests in flight is limited by a {@link ConcurrencyGovernor} independently of the
+ * number of threads.
+ */
+public class DownloadEngine {
+	/**
+	 * headers to download the entity pages
+	 */
+	public static final Map<String, String> ENTITY_HEADERS = Map.of(
+			"user-agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/87.0.4280.88 Safari/537.36",
+			"accept", "text/turtle",
+			"accept-encoding", "gzip, deflate",
+			"accept-language", "en-US,en;q=0.9",
+			"upgrade-insecure-requests", "1",
+			"scheme", "https"
+	);
+	/**
+	 * headers to call the wiki api
+	 */
+	public static final Map<String, String> API_HEADERS = Map.of(
+			"user-agent", "wiki-changes (https://github.com/the-qa-company/wiki-changes)",
+			"accept", "application/json",
+			"accept-encoding", "gzip, deflate"
+	);
+	/**
+	 * window of an adaptive engine before the first response
+	 */
+	public static final int INITIAL_WINDOW = 4;
+	/**
+	 * maximum time of an exchange, a stalled response releases its slot and is retried
+	 */
+	public static final Duration REQUEST_TIMEOUT = Duration.ofMinutes(2);
+
+	private final HttpClient client;
+	private final ConcurrencyGovernor governor;
+	private final RetryScheduler retry;
+	private final RateLimiter limiter;
+	private final Map<String, String> headers;
+
+	/**
+	 * create an engine adapting the number of downloads in flight to the server
+	 *
+	 * @param maxInFlight     maximum number of downloads in flight
+	 * @param headers         headers of the requests
+	 * @param maxTry          number of try for each download, 0 for infinity
+	 * @param sleepBetweenTry millis of the backoff after the first try
+	 */
+	public DownloadEngine(int maxInFlight, Map<String, String> headers, int maxTry, long sleepBetweenTry) {
+		this(
+				createGovernor(maxInFlight, true),
+				new RetryScheduler(maxTry, sleepBetweenTry, Math.max(sleepBetweenTry, RetryScheduler.DEFAULT_MAX_DELAY)),
+				null,
+				headers
+		);
+	}
+
+	/**
+	 * create an engine
+	 *
+	 * @param governor the limit of the downloads in flight
+	 * @param retry    the retry policy, can be shared between engines
+	 * @param limiter  the rate limit of the requests, can be shared between engines, null for no limit
+	 * @param headers  headers of the requests
+	 */
+	public DownloadEngine(ConcurrencyGovernor governor, RetryScheduler retry, RateLimiter limiter, Map<String, String> headers) {
+		this.client = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.followRedirects(HttpClient.Redirect.NORMAL)
+				.connectTimeout(Duration.ofSeconds(30))
+				.build();
+		this.governor = governor;
+		this.retry = retry;
+		this.limiter = limiter;
+		this.headers = headers;
+	}
+
+	/**
+	 * create the governor of an engine
+	 *
+	 * @param maxInFlight maximum number of downloads in flight
+	 * @param adaptive    adapt the number of downloads in flight to the server, otherwise always use maxInFlight
+	 * @return governor
+	 */
+	public static ConcurrencyGovernor createGovernor(int maxInFlight, boolean adaptive) {
+		if (maxInFlight <= 0) {
+			throw new IllegalArgumentException("maxInFlight can't be negative or zero! " + maxInFlight);
+		}
+		if (!adaptive) {
+			return ConcurrencyGovernor.fixed(maxInFlight);
+		}
+		return new ConcurrencyGovernor(INITIAL_WINDOW, 1, maxInFlight);
+	}
+
+	/**
+	 * @return the limit of the downloads in flight
+	 */
+	public ConcurrencyGovernor getGovernor() {
+		return governor;
+	}
+
+	/**
+	 * @return the retry policy
+	 */
+	public RetryScheduler getRetry() {
+		return retry;
+	}
+
+	/**
+	 * download a page, the request is sent once the rate limiter and the governor allow it
+	 *
+	 * @param uri   the page uri
+	 * @param unzip decode the content encoding of the response
+	 * @return future of the page content, null if the page doesn't exist
+	 */
+	public CompletableFuture<byte[]> downloadAsync(URI uri, boolean unzip) {
+		return exchangeAsync(request(uri, null, null)).thenApply(response -> {
+			if (response.statusCode() == 404 || response.statusCode() == 410) {
+				// no page
+				return null;
+			}
+			if (!unzip) {
+				return response.body();
+			}
+			try {
+				return decode(response.body(), encoding(response));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/**
+	 * download a page with a conditional request, the body isn't decoded
+	 *
+	 * @param uri          the page uri
+	 * @param etag         the ETag of the known page, null if none
+	 * @param lastModified the Last-Modified date of the known page, null if none
+	 * @return future of the response, the status is 2xx, 304 (not modified), 404 or 410 (no page)
+	 */
+	public CompletableFuture<HttpResponse<byte[]>> downloadConditionalAsync(URI uri, String etag, String lastModified) {
+		return exchangeAsync(request(uri, etag, lastModified));
+	}
+
+	/**
+	 * download a page with the cache, the cached page is used without request if its revision is at least the asked
+	 * revision, otherwise a conditional request is sent with the ETag and the Last-Modified date of the cached page
+	 *
+	 * @param uri   the page uri
+	 * @param cache the cache
+	 * @param title the entity title
+	 * @param revid the revision to get, 0 if unknown
+	 * @return the decoded page, null if the page doesn't exist
+	 * @throws IOException          download error after all the tries
+	 * @throws InterruptedException interruption
+	 */
+	public byte[] downloadPage(URI uri, EntityCache cache, String title, long revid) throws IOException, InterruptedException {
+		return downloadPage(uri, cache, title, revid, true);
+	}
+
+	private byte[] downloadPage(URI uri, EntityCache cache, String title, long revid, boolean useCache) throws IOException, InterruptedException {
+		EntityCache.Entry entry = useCache ? cache.get(title) : null;
+		if (entry != null && revid > 0 && entry.revid() >= revid) {
+			byte[] page = cache.read(entry);
+			if (page != null) {
+				cache.hit();
+				return decode(page, entry.encoding());
+			}
+			entry = null;
+		}
+		HttpResponse<byte[]> response = await(downloadConditionalAsync(
+				uri,
+				entry == null ? null : entry.etag(),
+				entry == null ? null : entry.lastModified()
+		));
+		int status = response.statusCode();
+		if (status == 404 || status == 410) {
+			cache.remove(title);
+			return null;
+		}
+		if (status == 304 && entry != null) {
+			byte[] page = cache.read(entry);
+			if (page != null) {
+				cache.touch(title, revid);
+				cache.notModified();
+				return decode(page, entry.encoding());
+			}
+			// evicted since the request, downloaded again without condition
+			return downloadPage(uri, cache, title, revid, false);
+		}
+		byte[] body = response.body();
+		String encoding = encoding(response);
+		cache.put(new EntityCache.Entry(
+				title,
+				revid,
+				response.headers().firstValue("etag").orElse(null),
+				response.headers().firstValue("last-modified").orElse(null),
+				encoding,
+				body.length
+		), body);
+		cache.miss();
+		return decode(body, encoding);
+	}
+
+	/**
+	 * download a page into a file, the body is streamed into a temp file, decoded and moved once complete
+	 *
+	 * @param uri    the page uri
+	 * @param output the file to write
+	 * @return future completed with true if the page was written, false if the page doesn't exist
+	 */
+	public CompletableFuture<Boolean> downloadToFileAsync(URI uri, Path output) {
+		Path body = output.resolveSibling(output.getFileName() + ".body.tmp");
+		Path tmp = output.resolveSibling(output.getFileName() + ".tmp");
+		// only the pages are written, the bodies of the errors are ignored
+		HttpResponse.BodyHandler<Path> handler = info -> info.statusCode() / 100 == 2
+				? HttpResponse.BodySubscribers.ofFile(body)
+				: HttpResponse.BodySubscribers.replacing(body);
+		return exchangeAsync(request(uri, null, null), handler).thenApply(response -> {
+			if (response.statusCode() == 404 || response.statusCode() == 410) {
+				// no page
+				return false;
+			}
+			try {
+				String encoding = encoding(response);
+				if (encoding.equals("gzip") || encoding.equals("deflate")) {
+					try (InputStream is = decoder(Files.newInputStream(body), encoding)) {
+						Files.copy(is, tmp, StandardCopyOption.REPLACE_EXISTING);
+					}
+					Files.delete(body);
+				} else {
+					Files.move(body, tmp, StandardCopyOption.REPLACE_EXISTING);
+				}
+				Files.move(tmp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * download a page and wait for it
+	 *
+	 * @param uri   the page uri
+	 * @param unzip decode the content encoding of the response
+	 * @return the page content, null if the page doesn't exist
+	 * @throws IOException          download error after all the tries
+	 * @throws InterruptedException interruption
+	 */
+	public byte[] downloadPage(URI uri, boolean unzip) throws IOException, InterruptedException {
+		return await(downloadAsync(uri, unzip));
+	}
+
+	/**
+	 * download a page into a file and wait for it
+	 *
+	 * @param uri    the page uri
+	 * @param output the file to write
+	 * @return true if the page was written, false if the page doesn't exist
+	 * @throws IOException          download error after all the tries
+	 * @throws InterruptedException interruption
+	 */
+	public boolean downloadPageToFile(URI uri, Path output) throws IOException, InterruptedException {
+		return await(downloadToFileAsync(uri, output));
+	}
+
+	private static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof UncheckedIOException uioe) {
+				throw uioe.getCause();
+			}
+			if (cause instanceof IOException ioe) {
+				throw ioe;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	private HttpRequest request(URI uri, String etag, String lastModified) {
+		HttpRequest.Builder builder = HttpRequest.newBuilder(uri).timeout(REQUEST_TIMEOUT).GET();
+		headers.forEach(builder::header);
+		if (etag != null) {
+			builder.header("if-none-match", etag);
+		}
+		if (lastModified != null) {
+			builder.header("if-modified-since", lastModified);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * send a request with the retries
+	 *
+	 * @param request the request
+	 * @return future of the response, the status is 2xx, 304, 404 or 410
+	 */
+	private CompletableFuture<HttpResponse<byte[]>> exchangeAsync(HttpRequest request) {
+		return exchangeAsync(request, HttpResponse.BodyHandlers.ofByteArray());
+	}
+
+	/**
+	 * send a request with the retries
+	 *
+	 * @param request the request
+	 * @param handler the handler of the response bodies, called for each try
+	 * @param <T>     the body type
+	 * @return future of the response, the status is 2xx, 304, 404 or 410
+	 */
+	private <T> CompletableFuture<HttpResponse<T>> exchangeAsync(HttpRequest request, HttpResponse.BodyHandler<T> handler) {
+		CompletableFuture<HttpResponse<T>> result = new CompletableFuture<>();
+		attempt(request, handler, 0, null, result);
+		return result;
+	}
+
+	private <T> void attempt(HttpRequest request, HttpResponse.BodyHandler<T> handler, int attempt, IOException last, CompletableFuture<HttpResponse<T>> result) {
+		// wait for the rate limit before taking a slot, a waiting request doesn't reduce the window
+		CompletableFuture<Void> token = limiter == null ? CompletableFuture.completedFuture(null) : limiter.acquire();
+		token.thenCompose(v -> governor.acquire())
+				.thenRun(() -> {
+					try {
+						send(request, handler, attempt, last, result);
+					} catch (RuntimeException | Error e) {
+						// the request wasn't sent, the slot is given back
+						governor.release(0, ConcurrencyGovernor.Outcome.FAILURE);
+						throw e;
+					}
+				})
+				.exceptionally(t -> {
+					result.completeExceptionally(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+					return null;
+				});
+	}
+
+	private <T> void send(HttpRequest request, HttpResponse.BodyHandler<T> handler, int attempt, IOException last, CompletableFuture<HttpResponse<T>> result) {
+		long start = System.nanoTime();
+		// the request timeout doesn't stop a stalled body
+		client.sendAsync(request, handler).orTimeout(REQUEST_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS).whenComplete((response, error) -> {
+			long latency = System.nanoTime() - start;
+			IOException failure;
+			int status;
+			String retryAfter;
+			if (error == null) {
+				status = response.statusCode();
+				retryAfter = response.headers().firstValue("retry-after").orElse(null);
+				if (status == 429 || status == 503) {
+					governor.release(latency, ConcurrencyGovernor.Outcome.CONGESTION);
+				} else if (status / 100 == 5) {
+					governor.release(latency, ConcurrencyGovernor.Outcome.FAILURE);
+				} else {
+					governor.release(latency, ConcurrencyGovernor.Outcome.SUCCESS);
+				}
+				if (status / 100 == 2 || status == 304 || status == 404 || status == 410) {
+					result.complete(response);
+					return;
+				}
+				failure = new IOException("Bad status " + status + " for " + request.uri());
+			} else {
+				status = RetryScheduler.NO_RESPONSE;
+				retryAfter = null;
+				governor.release(latency, ConcurrencyGovernor.Outcome.FAILURE);
+				Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+				failure = cause instanceof IOException ioe ? ioe : new IOException("Can't download " + request.uri(), cause);
+			}
+
+			IOException first;
+			if (last == null) {
+				first = failure;
+			} else {
+				last.addSuppressed(failure);
+				first = last;
+			}
+			if (!retry.canRetry(attempt)) {
+				// too many try
+				result.completeExceptionally(first);
+				return;
+			}
+			retry.schedule(status, attempt, retryAfter, () -> attempt(request, handler, attempt + 1, first, result));
+		});
+	}
+
+	private static String encoding(HttpResponse<?> response) {
+		return response.headers().firstValue("content-encoding").orElse("").toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * decode a body
+	 *
+	 * @param body     the body
+	 * @param encoding the content encoding of the body, gzip, deflate or empty for identity
+	 * @return decoded body
+	 * @throws IOException decoding error
+	 */
+	public static byte[] decode(byte[] body, String encoding) throws IOException {
+		if (!encoding.equals("gzip") && !encoding.equals("deflate")) {
+			return body;
+		}
+		try (InputStream is = decoder(new ByteArrayInputStream(body), encoding)) {
+			return is.readAllBytes();
+		}
+	}
+
+	private static InputStream decoder(InputStream is, String encoding) throws IOException {
+		return switch (encoding) {
+			case "gzip" -> new GZIPInputStream(is);
+			case "deflate" -> new InflaterInputStream(is);
+			default -> is;
+		};
+	}
+}
@@ -0,0 +1,136 @@
+package com.the_qa_company.wikidatachanges;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.the_qa_company.wikidatachanges.api.RDFFlavor;
+import com.the_qa_company.wikidatachanges.utils.WikibaseRdfWriter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Download the entities by batch with the wbgetentities api, the json of the entities is converted locally into RDF
+ * with {@link WikibaseRdfWriter}, one request is sent for {@link #MAX_BATCH} entities.
+ */
+public class EntityBatchDownloader {
+	/**
+	 * maximum number of entities for one wbgetentities call
+	 */
+	public static final int MAX_BATCH = 50;
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final DownloadEngine engine;
+	private final String apiUrl;
+	private final RDFFlavor flavor;
+
+	/**
+	 * create a downloader
+	 *
+	 * @param engine the engine to call the api
+	 * @param apiUrl the wiki api location
+	 * @param flavor the flavor of the RDF outputs
+	 */
+	public EntityBatchDownloader(DownloadEngine engine, String apiUrl, RDFFlavor flavor) {
+		this.engine = engine;
+		this.apiUrl = apiUrl;
+		this.flavor = flavor;
+	}
+
+	/**
+	 * create the url of a wbgetentities call
+	 *
+	 * @param ids the entity ids, at most {@link #MAX_BATCH}
+	 * @return uri
+	 */
+	public URI batchUri(List<String> ids) {
+		return URI.create(apiUrl + "?action=wbgetentities&format=json"
+				+ "&props=info%7Clabels%7Cdescriptions%7Caliases%7Cclaims%7Csitelinks%2Furls"
+				+ "&ids=" + String.join("%7C", ids));
+	}
+
+	/**
+	 * download entities, the entities are split into batches sent concurrently
+	 *
+	 * @param titles the entity titles
+	 * @return the RDF of each existing entity, the missing entities aren't in the map
+	 * @throws IOException          download error
+	 * @throws InterruptedException interruption
+	 */
+	public Map<String, byte[]> download(List<String> titles) throws IOException, InterruptedException {
+		List<CompletableFuture<Map<String, byte[]>>> futures = new ArrayList<>();
+		for (int i = 0; i < titles.size(); i += MAX_BATCH) {
+			futures.add(downloadBatchAsync(titles.subList(i, Math.min(titles.size(), i + MAX_BATCH))));
+		}
+		Map<String, byte[]> pages = new HashMap<>();
+		for (CompletableFuture<Map<String, byte[]>> future : futures) {
+			try {
+				pages.putAll(future.get());
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof UncheckedIOException uioe) {
+					throw uioe.getCause();
+				}
+				if (cause instanceof IOException ioe) {
+					throw ioe;
+				}
+				throw new IOException(cause);
+			}
+		}
+		return pages;
+	}
+
+	/**
+	 * download a batch of entities
+	 *
+	 * @param titles the entity titles, at most {@link #MAX_BATCH}
+	 * @return future of the RDF of each existing entity, the missing entities aren't in the map
+	 */
+	public CompletableFuture<Map<String, byte[]>> downloadBatchAsync(List<String> titles) {
+		if (titles.size() > MAX_BATCH) {
+			throw new IllegalArgumentException("Too many titles for a batch: " + titles.size() + " > " + MAX_BATCH);
+		}
+		List<String> ids = List.copyOf(titles);
+		if (ids.isEmpty()) {
+			return CompletableFuture.completedFuture(Map.of());
+		}
+		return engine.downloadAsync(batchUri(ids), true).thenCompose(page -> {
+			if (page == null) {
+				throw new UncheckedIOException(new IOException("Can't find the wiki api at " + apiUrl));
+			}
+			JsonNode root;
+			try {
+				root = mapper.readTree(page);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			JsonNode error = root.get("error");
+			if (error != null) {
+				String badId = error.path("id").asText(null);
+				if ("no-such-entity".equals(error.path("code").asText()) && badId != null && ids.contains(badId)) {
+					// invalid id, the whole call is rejected, retry without it
+					List<String> others = new ArrayList<>(ids);
+					others.remove(badId);
+					return downloadBatchAsync(others);
+				}
+				throw new UncheckedIOException(new IOException("wiki api error: " + error));
+			}
+			Map<String, byte[]> pages = new HashMap<>();
+			Iterator<Map.Entry<String, JsonNode>> entities = root.path("entities").fields();
+			while (entities.hasNext()) {
+				Map.Entry<String, JsonNode> e = entities.next();
+				if (!e.getValue().has("missing")) {
+					pages.put(e.getKey(), WikibaseRdfWriter.write(e.getValue(), flavor));
+				}
+			}
+			return CompletableFuture.completedFuture(pages);
+		});
+	}
+}
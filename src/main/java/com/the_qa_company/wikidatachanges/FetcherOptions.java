@@ -7,4 +7,8 @@ import lombok.Data;
 @Builder
 public class FetcherOptions {
 	private String url;
+	/**
+	 * engine to call the wiki api, null for a default engine
+	 */
+	private DownloadEngine apiEngine;
 }
@@ -0,0 +1,69 @@
+package com.the_qa_company.wikidatachanges;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the number of requests per second, a request without token reserves the next one and is
+ * released by a delayed executor, no thread is waiting for the tokens.
+ */
+public class RateLimiter {
+	private final double permitsPerNano;
+	private final double burst;
+	private double tokens;
+	private long last;
+
+	/**
+	 * create a limiter
+	 *
+	 * @param permitsPerSecond the number of requests per second
+	 * @param burst            the maximum number of requests sent without delay after an idle period
+	 */
+	public RateLimiter(double permitsPerSecond, int burst) {
+		if (permitsPerSecond <= 0) {
+			throw new IllegalArgumentException("permitsPerSecond can't be negative or zero! " + permitsPerSecond);
+		}
+		if (burst <= 0) {
+			throw new IllegalArgumentException("burst can't be negative or zero! " + burst);
+		}
+		this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+		this.burst = burst;
+		this.tokens = burst;
+		this.last = System.nanoTime();
+	}
+
+	/**
+	 * create a limiter with a burst of one second of requests
+	 *
+	 * @param permitsPerSecond the number of requests per second, 0 for no limit
+	 * @return limiter, null for no limit
+	 */
+	public static RateLimiter ofRate(double permitsPerSecond) {
+		if (permitsPerSecond == 0) {
+			return null;
+		}
+		return new RateLimiter(permitsPerSecond, (int) Math.max(1, Math.ceil(permitsPerSecond)));
+	}
+
+	/**
+	 * acquire a token
+	 *
+	 * @return future completed once the token is available
+	 */
+	public CompletableFuture<Void> acquire() {
+		long wait;
+		synchronized (this) {
+			long now = System.nanoTime();
+			tokens = Math.min(burst, tokens + (now - last) * permitsPerNano);
+			last = now;
+			tokens--;
+			if (tokens >= 0) {
+				return CompletableFuture.completedFuture(null);
+			}
+			// reserved, wait until the debt is paid
+			wait = (long) Math.ceil(-tokens / permitsPerNano);
+		}
+		return CompletableFuture.runAsync(() -> {
+		}, CompletableFuture.delayedExecutor(wait, TimeUnit.NANOSECONDS));
+	}
+}
@@ -0,0 +1,276 @@
+package com.the_qa_company.wikidatachanges;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.the_qa_company.wikidatachanges.api.Change;
+import com.the_qa_company.wikidatachanges.api.Continue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static com.the_qa_company.wikidatachanges.WikidataChangesFetcher.printPercentage;
+
+/**
+ * Lazy iterator over the recentchanges API, a page is only requested once the previous one was consumed and its
+ * content is read with the Jackson streaming parser, the memory usage doesn't depend on the size of the window.
+ */
+public class RecentChangesIterator implements Iterator<Change>, Closeable {
+	private final WikidataChangesFetcher fetcher;
+	private final JsonFactory factory;
+	private final Date start;
+	private final Date end;
+	private final long elementPerRead;
+	private final boolean log;
+	private final long deltaTime;
+	private JsonParser parser;
+	private boolean inQuery;
+	private boolean inChanges;
+	private volatile String cursor;
+	private String nextCursor;
+	private volatile boolean done;
+	private boolean closed;
+	private Change next;
+	private long count;
+	private Date lastDate;
+
+	/**
+	 * create the iterator, no request is sent before the first {@link #hasNext()} call
+	 *
+	 * @param fetcher        the fetcher to call the api
+	 * @param factory        the json factory to create the parsers
+	 * @param start          the date to start the fetch, null for now
+	 * @param end            the date to stop the fetch
+	 * @param elementPerRead number of elements to query to the wiki api
+	 * @param log            log the progress of the fetch
+	 */
+	public RecentChangesIterator(WikidataChangesFetcher fetcher, JsonFactory factory, Date start, Date end, long elementPerRead, boolean log) {
+		this(fetcher, factory, start, end, null, elementPerRead, log);
+	}
+
+	/**
+	 * create the iterator from a rccontinue value, no request is sent before the first {@link #hasNext()} call
+	 *
+	 * @param fetcher        the fetcher to call the api
+	 * @param factory        the json factory to create the parsers
+	 * @param start          the date to start the fetch, null for now
+	 * @param end            the date to stop the fetch
+	 * @param cursor         the rccontinue value of the first page, null to start from the start date
+	 * @param elementPerRead number of elements to query to the wiki api
+	 * @param log            log the progress of the fetch
+	 */
+	public RecentChangesIterator(WikidataChangesFetcher fetcher, JsonFactory factory, Date start, Date end, String cursor, long elementPerRead, boolean log) {
+		this.fetcher = fetcher;
+		this.factory = factory;
+		this.start = start;
+		this.end = end;
+		this.elementPerRead = elementPerRead;
+		this.log = log;
+		this.deltaTime = (start == null ? System.currentTimeMillis() : start.getTime()) - end.getTime();
+		this.cursor = cursor;
+		this.nextCursor = cursor;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (next != null) {
+			return true;
+		}
+		try {
+			while (true) {
+				if (parser == null && !openNextPage()) {
+					return false;
+				}
+				if (nextChangeToken()) {
+					next = readChange();
+					count++;
+					return true;
+				}
+				closePage();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can't read recent changes", e);
+		}
+	}
+
+	@Override
+	public Change next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		Change c = next;
+		next = null;
+		return c;
+	}
+
+	/**
+	 * @return the rccontinue value used to fetch the current page, null for the first page, all the changes of the
+	 * previous pages were returned by the iterator
+	 */
+	public String getCursor() {
+		return cursor;
+	}
+
+	/**
+	 * @return true if all the changes were returned by the iterator
+	 */
+	public boolean isDone() {
+		return done;
+	}
+
+	/**
+	 * @return the date to start the fetch, null for now
+	 */
+	public Date getStart() {
+		return start;
+	}
+
+	/**
+	 * @return the date to stop the fetch
+	 */
+	public Date getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return the number of changes read
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return the date of the last read page, null if no page was read
+	 */
+	public Date getLastDate() {
+		return lastDate;
+	}
+
+	private boolean openNextPage() throws IOException {
+		if (done || closed) {
+			return false;
+		}
+		cursor = nextCursor;
+		nextCursor = null;
+		inQuery = false;
+		inChanges = false;
+		parser = factory.createParser(fetcher.changesApiPage(start, end, cursor, elementPerRead));
+		return true;
+	}
+
+	private void closePage() throws IOException {
+		parser.close();
+		parser = null;
+
+		if (nextCursor == null) {
+			// no continue, end of the changes
+			done = true;
+			return;
+		}
+
+		lastDate = Continue.parseRcContinueDate(nextCursor);
+
+		if (log) {
+			long current = Math.max(0, Math.min(deltaTime, deltaTime - (lastDate.getTime() - end.getTime())));
+			printPercentage(current, deltaTime, "rollback to " + lastDate + " " + count + " elements.", false);
+		}
+
+		if (lastDate.before(end)) {
+			done = true;
+		}
+	}
+
+	/**
+	 * move the parser to the start of the next change of the page
+	 *
+	 * @return true if a change can be read, false at the end of the page
+	 * @throws IOException read error
+	 */
+	private boolean nextChangeToken() throws IOException {
+		JsonToken token;
+		while ((token = parser.nextToken()) != null) {
+			if (inChanges) {
+				if (token == JsonToken.START_OBJECT) {
+					return true;
+				}
+				// end of the recentchanges array
+				inChanges = false;
+				continue;
+			}
+			if (token == JsonToken.END_OBJECT) {
+				// end of the query or root object
+				inQuery = false;
+				continue;
+			}
+			if (token != JsonToken.FIELD_NAME) {
+				continue;
+			}
+			String name = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+			if (inQuery) {
+				if (name.equals("recentchanges") && value == JsonToken.START_ARRAY) {
+					inChanges = true;
+				} else {
+					parser.skipChildren();
+				}
+				continue;
+			}
+			switch (name) {
+				case "query" -> inQuery = value == JsonToken.START_OBJECT;
+				case "continue" -> readContinue();
+				case "error" -> throw new IOException("wiki api error: " + parser.readValueAsTree());
+				default -> parser.skipChildren();
+			}
+		}
+		return false;
+	}
+
+	private void readContinue() throws IOException {
+		if (parser.currentToken() != JsonToken.START_OBJECT) {
+			parser.skipChildren();
+			return;
+		}
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			parser.nextToken();
+			if (name.equals("rccontinue")) {
+				nextCursor = parser.getText();
+			} else {
+				parser.skipChildren();
+			}
+		}
+	}
+
+	private Change readChange() throws IOException {
+		Change change = new Change();
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String name = parser.getCurrentName();
+			parser.nextToken();
+			switch (name) {
+				case "type" -> change.setType(parser.getText());
+				case "ns" -> change.setNs(parser.getLongValue());
+				case "title" -> change.setTitle(parser.getText());
+				case "rcid" -> change.setRcid(parser.getLongValue());
+				case "pageid" -> change.setPageid(parser.getLongValue());
+				case "revid" -> change.setRevid(parser.getLongValue());
+				case "old_revid" -> change.setOldRevid(parser.getLongValue());
+				case "timestamp" -> change.setTimestamp(parser.getText());
+				default -> parser.skipChildren();
+			}
+		}
+		return change;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		if (parser != null) {
+			parser.close();
+			parser = null;
+		}
+	}
+}
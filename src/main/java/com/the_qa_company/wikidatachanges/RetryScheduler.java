@@ -0,0 +1,156 @@
+package com.the_qa_company.wikidatachanges;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Retry policy shared by the requests, the delay before a retry is the Retry-After value sent by the server or an
+ * exponential backoff with full jitter. The retries are scheduled on a delayed executor, no thread is waiting during
+ * the delay.
+ */
+public class RetryScheduler {
+	/**
+	 * status used in the counters for the requests failing without response
+	 */
+	public static final int NO_RESPONSE = 0;
+	/**
+	 * default maximum backoff delay in millis
+	 */
+	public static final long DEFAULT_MAX_DELAY = 120_000;
+
+	private final int maxTry;
+	private final long baseDelay;
+	private final long maxDelay;
+	private final Map<Integer, LongAdder> retries = new ConcurrentHashMap<>();
+
+	/**
+	 * create a scheduler
+	 *
+	 * @param maxTry    number of try for each request, 0 for infinity
+	 * @param baseDelay millis of the backoff after the first try, 0 to retry without backoff
+	 * @param maxDelay  maximum millis of the backoff, the Retry-After values aren't capped
+	 */
+	public RetryScheduler(int maxTry, long baseDelay, long maxDelay) {
+		if (maxTry < 0) {
+			throw new IllegalArgumentException("maxTry can't be negative! " + maxTry);
+		}
+		if (baseDelay < 0) {
+			throw new IllegalArgumentException("baseDelay can't be negative! " + baseDelay);
+		}
+		if (maxDelay < baseDelay) {
+			throw new IllegalArgumentException("maxDelay can't be lower than baseDelay! " + maxDelay + " < " + baseDelay);
+		}
+		this.maxTry = maxTry == 0 ? Integer.MAX_VALUE : maxTry;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * test if a request can be tried again
+	 *
+	 * @param attempt the number of the failed try, starting at 0
+	 * @return true if another try is allowed
+	 */
+	public boolean canRetry(int attempt) {
+		return attempt + 1 < maxTry;
+	}
+
+	/**
+	 * compute the delay before the next try
+	 *
+	 * @param attempt    the number of the failed try, starting at 0
+	 * @param retryAfter the Retry-After header of the response, null if none
+	 * @return millis to wait
+	 */
+	public long delay(int attempt, String retryAfter) {
+		if (retryAfter != null) {
+			long millis = parseRetryAfter(retryAfter, Instant.now());
+			if (millis >= 0) {
+				return millis;
+			}
+		}
+		if (baseDelay == 0) {
+			// no backoff
+			return 0;
+		}
+		int shift = Math.min(attempt, 30);
+		long cap = baseDelay << shift;
+		if ((cap >> shift) != baseDelay || cap > maxDelay) {
+			// overflow of the shift or over the maximum
+			cap = maxDelay;
+		}
+		return cap == 0 ? 0 : ThreadLocalRandom.current().nextLong(cap + 1);
+	}
+
+	/**
+	 * schedule the next try of a request
+	 *
+	 * @param status     the status of the failed try, {@link #NO_RESPONSE} if no response was received
+	 * @param attempt    the number of the failed try, starting at 0
+	 * @param retryAfter the Retry-After header of the response, null if none
+	 * @param retry      the next try
+	 */
+	public void schedule(int status, int attempt, String retryAfter, Runnable retry) {
+		retries.computeIfAbsent(status, s -> new LongAdder()).increment();
+		long delay = delay(attempt, retryAfter);
+		if (delay == 0) {
+			CompletableFuture.runAsync(retry);
+		} else {
+			CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(retry);
+		}
+	}
+
+	/**
+	 * @return the number of retries by status, {@link #NO_RESPONSE} for the requests failing without response
+	 */
+	public Map<Integer, Long> getRetries() {
+		Map<Integer, Long> map = new TreeMap<>();
+		retries.forEach((status, count) -> map.put(status, count.sum()));
+		return map;
+	}
+
+	/**
+	 * @return description of the retries, empty if no retry was done
+	 */
+	public String summary() {
+		StringBuilder sb = new StringBuilder();
+		getRetries().forEach((status, count) -> {
+			if (!sb.isEmpty()) {
+				sb.append(", ");
+			}
+			sb.append(status == NO_RESPONSE ? "no response" : String.valueOf(status)).append(": ").append(count);
+		});
+		return sb.toString();
+	}
+
+	/**
+	 * parse a Retry-After value
+	 *
+	 * @param value the value, delay in seconds or HTTP date
+	 * @param now   the current date
+	 * @return millis to wait, -1 if the value can't be parsed
+	 */
+	public static long parseRetryAfter(String value, Instant now) {
+		String v = value.trim();
+		try {
+			return Math.max(0, Long.parseLong(v)) * 1000;
+		} catch (NumberFormatException e) {
+			// not a delay
+		}
+		try {
+			Instant date = ZonedDateTime.parse(v, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+			return Math.max(0, date.toEpochMilli() - now.toEpochMilli());
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+}
@@ -2,6 +2,7 @@ package com.the_qa_company.wikidatachanges;
 
 import com.the_qa_company.qendpoint.core.compact.bitmap.Bitmap;
 import com.the_qa_company.qendpoint.core.compact.bitmap.Bitmap64Big;
+import com.the_qa_company.qendpoint.core.compact.bitmap.EmptyBitmap;
 import com.the_qa_company.qendpoint.core.compact.bitmap.ModifiableBitmap;
 import com.the_qa_company.qendpoint.core.compact.bitmap.NegBitmap;
 import com.the_qa_company.qendpoint.core.enums.TripleComponentRole;
@@ -13,18 +14,26 @@ import com.the_qa_company.qendpoint.core.options.HDTOptions;
 import com.the_qa_company.qendpoint.core.options.HDTOptionsKeys;
 import com.the_qa_company.qendpoint.core.triples.IteratorTripleID;
 import com.the_qa_company.qendpoint.core.triples.TripleID;
+import com.the_qa_company.qendpoint.core.triples.TripleString;
 import com.the_qa_company.qendpoint.core.util.StopWatch;
 import com.the_qa_company.qendpoint.core.util.io.IOUtil;
 import com.the_qa_company.qendpoint.core.util.listener.ColorTool;
 import com.the_qa_company.qendpoint.core.util.listener.MultiThreadListenerConsole;
+import com.the_qa_company.wikidatachanges.datastruct.DeltaFileReader;
+import com.the_qa_company.wikidatachanges.datastruct.DeltaFileUtils;
+import com.the_qa_company.wikidatachanges.utils.DeltaFileTriples;
+import com.the_qa_company.wikidatachanges.utils.HDTUtils;
+import org.apache.commons.io.file.PathUtils;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 public class WikidataChangesCompute {
 	public static void main(String[] args) throws IOException {
@@ -34,7 +43,7 @@ public class WikidataChangesCompute {
 		StopWatch swa = new StopWatch();
 
 		if (args.length == 0) {
-			tool.error("[bitmap|diff|infobm]");
+			tool.error("[bitmap|diff|infobm|apply]");
 			return;
 		}
 
@@ -345,6 +354,92 @@ public class WikidataChangesCompute {
 					}
 				}
 			}
+			case "apply" -> {
+				if (args.length < 4) {
+					System.err.println("apply [in-hdt] [out-hdt] [delta-file...]");
+					return;
+				}
+
+				Path inHDTFile = Path.of(args[1]);
+				Path outHDTFile = Path.of(args[2]);
+				List<Path> deltaFiles = Arrays.stream(args, 3, args.length).map(Path::of).toList();
+				Path applyWork = outHDTFile.toAbsolutePath().getParent().resolve("apply_work");
+				Path deltaHDTFile = applyWork.resolve("delta.hdt");
+				Files.createDirectories(applyWork);
+
+				List<DeltaFileReader> readers = new ArrayList<>();
+				try {
+					for (Path deltaFile : deltaFiles) {
+						readers.add(DeltaFileReader.open(deltaFile));
+					}
+
+					tool.log("Building delta HDT from " + deltaFiles.size() + " delta file(s)...");
+					StopWatch sw = new StopWatch();
+					// the last files are the newest, only the newest page of an entity is used
+					Set<String> seen = new HashSet<>();
+					Set<String> deletedSubjects = new HashSet<>();
+					DeltaFileTriples.EntrySource newest = consumer -> {
+						for (int i = readers.size() - 1; i >= 0; i--) {
+							readers.get(i).forEachLatest(entry -> {
+								if (!seen.add(entry.title())) {
+									return;
+								}
+								if (entry.deleted()) {
+									deletedSubjects.add("https://www.wikidata.org/wiki/Special:EntityData/" + entry.title());
+									deletedSubjects.add(DeltaFileUtils.BASE_URI + entry.title());
+								} else {
+									consumer.accept(entry);
+								}
+							});
+						}
+					};
+					Iterator<TripleString> added = DeltaFileTriples.triples(DeltaFileTriples.readEntities(
+							newest, DeltaFileUtils.BASE_URI, Runtime.getRuntime().availableProcessors(), false
+					));
+					// no HDT without triple, the deltas with only deleted entities only need the delete bitmap
+					boolean hasAdded = added.hasNext();
+					if (hasAdded) {
+						HDTUtils.compressToHdt(added, DeltaFileUtils.BASE_URI, deltaHDTFile.getFileName().toString(), deltaHDTFile, HDTOptions.of());
+					}
+					tool.log("done in " + sw.stopAndShow() + ", " + seen.size() + " entities, " + deletedSubjects.size() / 2 + " deleted");
+
+					long triples;
+					try (HDT hdt = HDTManager.mapHDT(inHDTFile)) {
+						triples = hdt.getTriples().getNumberOfElements();
+					}
+
+					sw.reset();
+					try (Bitmap64Big bitmap = Bitmap64Big.disk(applyWork.resolve("bitmap.bin"), triples + 2)) {
+						tool.log("Computing delete bitmap...");
+						try (HDT inHDT = HDTManager.mapHDT(inHDTFile);
+						     HDT deltaHDT = hasAdded ? HDTManager.mapHDT(deltaHDTFile) : null) {
+							new WikidataChangesFetcher(FetcherOptions.builder().build())
+									.computeBitmap(inHDT, deltaHDT, deletedSubjects, bitmap);
+						}
+						tool.log("done in " + sw.stopAndShow());
+
+						sw.reset();
+						tool.log("Diff cat...");
+						try (HDT hdtDiff = HDTManager.diffBitCatHDTPath(
+								hasAdded ? List.of(inHDTFile, deltaHDTFile) : List.of(inHDTFile),
+								hasAdded ? List.of(bitmap, EmptyBitmap.of(0)) : List.of(bitmap),
+								HDTOptions.of(HDTOptionsKeys.HDTCAT_LOCATION, applyWork.resolve("cat")),
+								console
+						)) {
+							hdtDiff.saveToHDT(outHDTFile.toAbsolutePath().toString(), null);
+							tool.log("done in " + sw.stopAndShow() + ", " + hdtDiff.getTriples().getNumberOfElements() + " triple(s) into " + outHDTFile);
+						}
+					}
+
+					tool.log("Indexing " + outHDTFile + "...");
+					HDTManager.mapIndexedHDT(outHDTFile.toAbsolutePath().toString(), console).close();
+				} finally {
+					for (DeltaFileReader reader : readers) {
+						reader.close();
+					}
+					PathUtils.deleteDirectory(applyWork);
+				}
+			}
 			default -> tool.error("Bad arg: " + args[0]);
 		}
 		tool.log("Executed in " + swa.stopAndShow());
@@ -1,12 +1,15 @@
 package com.the_qa_company.wikidatachanges;
 
-import com.the_qa_company.qendpoint.core.listener.ProgressListener;
-import com.the_qa_company.qendpoint.core.util.crc.CRC32;
-import com.the_qa_company.qendpoint.core.util.crc.CRC8;
-import com.the_qa_company.qendpoint.core.util.crc.CRCOutputStream;
-import com.the_qa_company.qendpoint.core.util.io.IOUtil;
 import com.the_qa_company.wikidatachanges.api.Change;
 import com.the_qa_company.wikidatachanges.api.RDFFlavor;
+import com.the_qa_company.wikidatachanges.datastruct.DeltaFileQueueWriter;
+import com.the_qa_company.wikidatachanges.datastruct.DeltaFileReader;
+import com.the_qa_company.wikidatachanges.datastruct.DeltaFileUtils;
+import com.the_qa_company.wikidatachanges.datastruct.DeltaFileWriter;
+import com.the_qa_company.wikidatachanges.datastruct.DeltaLog;
+import com.the_qa_company.wikidatachanges.datastruct.QidSet;
+import com.the_qa_company.wikidatachanges.datastruct.TriplePage;
+import com.the_qa_company.wikidatachanges.utils.DeltaFileTriples;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -15,51 +18,64 @@ import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.Set;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicLong;
-
-import static com.the_qa_company.wikidatachanges.WikidataChangesFetcher.printPercentage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class WikidataChangesDelta {
 	public static void main(String[] args) throws ParseException, IOException, InterruptedException {
 
 		Option elementsOpt = new Option("e", "element", true, "element to ask to the wiki API");
+		Option listThreadsOpt = new Option("L", "listthreads", true, "Number of time windows to fetch concurrently with the wiki API (default: 1)");
 		Option todayOpt = new Option("T", "today", false, "Print date");
 		Option dateOpt = new Option("d", "date", true, "Wiki api location (required)");
 		Option wikiapiOpt = new Option("w", "wikiapi", true, "Wiki api location");
 		Option flavorOpt = new Option("f", "flavor", true, "The flavor to retrieve the RDF outputs, important if you are using a truthy hdt");
 		Option flavorListOpt = new Option("F", "flavorlist", false, "The flavor list for the --" + flavorOpt.getLongOpt() + " option");
 		Option maxTryOpt = new Option("m", "maxtry", true, "Number of try with http request, 0 for infinity (default: 5)");
-		Option sleepBetweenTryOpt = new Option("S", "sleeptry", true, "Millis to sleep between try , 0 for no sleep (default: 5000)");
+		Option sleepBetweenTryOpt = new Option("S", "sleeptry", true, "Base millis of the exponential backoff between two tries, the Retry-After of the server is used if any (default: 500)");
+		Option rateLimitOpt = new Option("r", "ratelimit", true, "Maximum number of requests per second to the wiki api and the entity pages, 0 for no limit (default: 0)");
+		Option inFlightOpt = new Option("n", "inflight", true, "Maximum number of downloads in flight (default: 32)");
+		Option batchOpt = new Option("b", "batch", false, "Download the entities by batch of " + EntityBatchDownloader.MAX_BATCH + " with the wbgetentities api and convert them locally to RDF, lossy: no normalized values and local value node ids, don't mix with the page downloads");
+		Option fixedInFlightOpt = new Option("N", "fixedinflight", false, "Always use the maximum number of downloads in flight instead of adapting it to the server");
+		Option logOpt = new Option("o", "log", true, "Append the changes to a segmented delta log in this directory instead of writing deltafiles/delta.df, the capture starts at the last capture of the log");
+		Option followOpt = new Option("W", "follow", true, "Capture the changes into the log again every N seconds until the JVM is stopped, 0 for one capture (default: 0)");
+		Option segmentSizeOpt = new Option("z", "segmentsize", true, "Size in MB of the pages to close a segment of the log (default: 256)");
+		Option segmentTimeOpt = new Option("t", "segmenttime", true, "Age in minutes to close a segment of the log (default: 60)");
+		Option triplesOpt = new Option("y", "triples", false, "Store the parsed triples of the pages in a binary form instead of the Turtle pages");
 		Option helpOpt = new Option("h", "help", false, "Print help");
 
 		Options opt = new Options()
 				.addOption(flavorOpt)
 				.addOption(flavorListOpt)
 				.addOption(elementsOpt)
+				.addOption(listThreadsOpt)
 				.addOption(todayOpt)
 				.addOption(dateOpt)
 				.addOption(wikiapiOpt)
 				.addOption(maxTryOpt)
 				.addOption(sleepBetweenTryOpt)
+				.addOption(rateLimitOpt)
+				.addOption(inFlightOpt)
+				.addOption(fixedInFlightOpt)
+				.addOption(batchOpt)
+				.addOption(logOpt)
+				.addOption(followOpt)
+				.addOption(segmentSizeOpt)
+				.addOption(segmentTimeOpt)
+				.addOption(triplesOpt)
 				.addOption(helpOpt);
 
 		CommandLineParser parser = new DefaultParser();
@@ -86,6 +102,7 @@ public class WikidataChangesDelta {
 		}
 
 		int elementPerRead = Integer.parseInt(cl.getOptionValue(elementsOpt, "500"));
+		int listThreads = Integer.parseInt(cl.getOptionValue(listThreadsOpt, "1"));
 		RDFFlavor flavor = RDFFlavor.valueOf(cl.getOptionValue(flavorOpt, RDFFlavor.getDefaultFlavor().name()).toUpperCase(Locale.ROOT));
 		String wikiapi = cl.getOptionValue(wikiapiOpt, "https://www.wikidata.org/w/api.php");
 		Date date = Optional
@@ -93,21 +110,52 @@ public class WikidataChangesDelta {
 				.map(d -> Date.from(Instant.parse(d)))
 				.orElse(null);
 		int maxTry = Integer.parseInt(cl.getOptionValue(maxTryOpt, "5"));
-		long sleepBetweenTry = Long.parseLong(cl.getOptionValue(sleepBetweenTryOpt, "5000"));
+		long sleepBetweenTry = Long.parseLong(cl.getOptionValue(sleepBetweenTryOpt, "500"));
+		double rateLimit = Double.parseDouble(cl.getOptionValue(rateLimitOpt, "0"));
+		int inFlight = Integer.parseInt(cl.getOptionValue(inFlightOpt, "32"));
+		boolean batch = cl.hasOption(batchOpt);
+		Path logDir = Optional.ofNullable(cl.getOptionValue(logOpt)).map(Path::of).orElse(null);
+		long follow = Long.parseLong(cl.getOptionValue(followOpt, "0"));
+		long segmentSize = Long.parseLong(cl.getOptionValue(segmentSizeOpt, "256"));
+		long segmentTime = Long.parseLong(cl.getOptionValue(segmentTimeOpt, "60"));
+		int encoding = cl.hasOption(triplesOpt) ? DeltaFileUtils.ENCODING_TRIPLES : DeltaFileUtils.ENCODING_DOWNLOADED;
+
+		if (maxTry < 0) {
+			throw new IllegalArgumentException("maxTry can't be negative! " + maxTry);
+		}
+		if (rateLimit < 0) {
+			throw new IllegalArgumentException("rateLimit can't be negative! " + rateLimit);
+		}
+		if (follow < 0) {
+			throw new IllegalArgumentException("follow can't be negative! " + follow);
+		}
+		if (segmentSize <= 0) {
+			throw new IllegalArgumentException("segmentSize can't be negative or zero! " + segmentSize);
+		}
+		if (segmentTime <= 0) {
+			throw new IllegalArgumentException("segmentTime can't be negative or zero! " + segmentTime);
+		}
+		if (sleepBetweenTry < 0) {
+			throw new IllegalArgumentException("sleepBetweenTry can't be negative! " + sleepBetweenTry);
+		}
+		if (listThreads <= 0) {
+			throw new IllegalArgumentException("listThreads can't be negative or zero! " + listThreads);
+		}
+		if (inFlight <= 0) {
+			throw new IllegalArgumentException("inFlight can't be negative or zero! " + inFlight);
+		}
+
+		// shared by the api and the entity downloads
+		RetryScheduler retry = new RetryScheduler(maxTry, sleepBetweenTry, Math.max(sleepBetweenTry, RetryScheduler.DEFAULT_MAX_DELAY));
+		RateLimiter limiter = RateLimiter.ofRate(rateLimit);
 
 		FetcherOptions fopt = FetcherOptions.builder()
 				.url(wikiapi)
+				.apiEngine(new DownloadEngine(ConcurrencyGovernor.fixed(Math.max(1, listThreads)), retry, limiter, DownloadEngine.API_HEADERS))
 				.build();
 
 		WikidataChangesFetcher delta = new WikidataChangesFetcher(fopt);
 
-		Path deltaDir = Path.of("deltafiles");
-		Files.createDirectories(deltaDir);
-
-		if (sleepBetweenTry < 0) {
-			throw new IllegalArgumentException("sleepBetweenTry can't be negative! " + sleepBetweenTry);
-		}
-
 		String flavorUrlOpt;
 
 		if (flavor.isShouldSpecify()) {
@@ -116,124 +164,166 @@ public class WikidataChangesDelta {
 			flavorUrlOpt = "";
 		}
 
+		DownloadEngine engine = new DownloadEngine(
+				DownloadEngine.createGovernor(inFlight, !cl.hasOption(fixedInFlightOpt)),
+				retry, limiter, DownloadEngine.ENTITY_HEADERS
+		);
+		// same window as the page downloads, one request per batch
+		EntityBatchDownloader batcher = batch ? new EntityBatchDownloader(
+				new DownloadEngine(engine.getGovernor(), retry, limiter, DownloadEngine.API_HEADERS),
+				wikiapi, flavor
+		) : null;
+		int batchSize = batch ? EntityBatchDownloader.MAX_BATCH : 1;
+
+		if (logDir != null) {
+			// a stop of the JVM (SIGINT, SIGTERM) ends the follow after the current capture and waits for the log close
+			CountDownLatch stopRequest = new CountDownLatch(1);
+			CountDownLatch stopped = new CountDownLatch(1);
+			if (follow != 0) {
+				Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+					System.out.println("Stopping the capture, waiting for the end of the current capture...");
+					stopRequest.countDown();
+					try {
+						stopped.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}, "DeltaLogStop"));
+			}
+			try (DeltaLog log = DeltaLog.open(logDir, segmentSize * 1024 * 1024, Duration.ofMinutes(segmentTime), flavor, encoding)) {
+				Instant from = log.getLastCapture();
+				if (from == null) {
+					if (date == null) {
+						System.err.println("Empty log, please use --" + dateOpt.getLongOpt() + " [date] to set the first capture!");
+						return;
+					}
+					from = date.toInstant();
+				} else if (date != null) {
+					System.out.println("The log " + logDir + " isn't empty, the date is ignored");
+				}
+
+				while (true) {
+					Instant capture = Instant.now();
+					System.out.printf("Capturing changes from %s to %s...\n", capture, from);
+					ChangesPipeline pipeline = new ChangesPipeline(new QidSet(), inFlight, inFlight * 64);
+					pipeline.setStatus(engine.getGovernor()::status);
+					log.beginCapture(from);
+					pipeline.run(Collections.emptyIterator(), delta.createShards(Date.from(from), elementPerRead, listThreads),
+							batchSize, createTask(engine, batcher, flavorUrlOpt, encode(log::append, encoding)));
+					log.endCapture(capture);
+					System.out.println("Captured " + pipeline.getProcessed() + " files");
+					from = capture;
+					if (follow == 0 || stopRequest.await(follow, TimeUnit.SECONDS)) {
+						break;
+					}
+				}
+			} finally {
+				stopped.countDown();
+			}
+			if (!retry.getRetries().isEmpty()) {
+				System.out.println("Retries by status: " + retry.summary());
+			}
+			return;
+		}
+
 		if (date == null) {
 			System.err.println("No date specified, please use --" + dateOpt.getLongOpt() + " [date] to set it!");
 			return;
 		}
 
-		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-
-		ChangesIterable<Change> changes = delta.getChanges(date, elementPerRead, true);
-
-		System.out.println();
-
-		System.out.print("\r");
-
-		Set<Change> urls = new HashSet<>();
-
 		Instant dateInstant = date.toInstant();
 		System.out.printf("Fetching changes from %s to %s...\n",
 				now, dateInstant);
 
-		long i = 0;
-		for (Change change : changes) {
-			long d = ++i;
-			if (!change.getTitle().isEmpty() && change.getNs() == 0) {
-				urls.add(change);
-				if (i % 1000 == 0) {
-					printPercentage(d, changes.size(), "fetch: " + urls.size(), true);
-				}
-			}
-		}
-
-		// write lock
-		Object syncLock = new Object() {
-		};
-
+		Path deltaDir = Path.of("deltafiles");
+		Files.createDirectories(deltaDir);
 		Path deltaNt = deltaDir.resolve("delta.df");
 
-		try (CRCOutputStream osnt = new CRCOutputStream(new BufferedOutputStream(Files.newOutputStream(deltaNt)), new CRC8())) {
-
-			AtomicLong downloads = new AtomicLong();
-			Map<String, String> urlHeader = Map.of(
-					"user-agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/87.0.4280.88 Safari/537.36",
-					"accept", "text/turtle",
-					"accept-encoding", "gzip, deflate",
-					"accept-language", "en-US,en;q=0.9",
-					"upgrade-insecure-requests", "1",
-					"scheme", "https"
-			);
-
-			byte[] empty = new byte[0];
-			ProgressListener pl = ProgressListener.ignore();
-
-			// cookie (8B)
-			osnt.write("$DltF0\n\r".getBytes(StandardCharsets.US_ASCII));
-			// urls (8B)
-			IOUtil.writeLong(osnt, urls.size());
-			// start (8B)
-			IOUtil.writeLong(osnt, now.getEpochSecond() * 1_000_000 + now.getNano() / 1000);
-			// end (8B)
-			IOUtil.writeLong(osnt, dateInstant.getEpochSecond() * 1_000_000 + dateInstant.getNano() / 1000);
-			// flavor (1B)
-			osnt.write(flavor.getId());
-			// padding (3B)
-			osnt.write(0);
-			osnt.write(0);
-			osnt.write(0);
-
-			// write header CRC and prepare for data part
-			// CRC (1B)
-			osnt.writeCRC();
-			osnt.setCRC(new CRC32());
-
-			List<? extends Future<Void>> futures = urls.stream()
-					.map(change -> pool.submit(() -> {
-						String titleFile = change.getTitle() + ".ttl";
-						String url = "https://www.wikidata.org/wiki/Special:EntityData/" + change.getTitle() + ".ttl" + flavorUrlOpt;
-
-						try {
-							byte[] page = delta.downloadPage(
-									new URL(url),
-									urlHeader,
-									maxTry,
-									sleepBetweenTry,
-									false
-							);
-							long d = downloads.incrementAndGet();
-							synchronized (syncLock) {
-								IOUtil.writeSizedBuffer(osnt, titleFile.getBytes(StandardCharsets.UTF_8), pl);
-								IOUtil.writeSizedBuffer(osnt, Objects.requireNonNullElse(page, empty), pl);
-								printPercentage(d, urls.size(), "downloading", true);
-							}
-						} catch (IOException | InterruptedException e) {
-							throw new RuntimeException(e);
-						}
-						return (Void) null;
-					}))
-					.toList();
-
-			try {
-				for (Future<Void> f : futures) {
-					f.get();
-				}
-			} catch (ExecutionException e) {
-				pool.shutdownNow();
-				long d = downloads.get();
-				int percentage = (int) (100L * d / urls.size());
-				throw new IOException("Wasn't able to download all the files: " + d + "/" + urls.size() + " " + percentage + "%", e.getCause());
-			}
+		ChangesPipeline pipeline = new ChangesPipeline(new QidSet(), inFlight, inFlight * 64);
+		pipeline.setStatus(engine.getGovernor()::status);
+
+		// the number of urls isn't known before the end of the pipeline, it is written with the index, the
+		// workers hand over the entries to the writer thread
+		DeltaFileQueueWriter osnt = new DeltaFileQueueWriter(
+				new DeltaFileWriter(deltaNt, now, dateInstant, flavor, encoding, null), Math.max(64, inFlight * 4));
+		try {
+			pipeline.run(Collections.emptyIterator(), delta.createShards(date, elementPerRead, listThreads),
+					batchSize, createTask(engine, batcher, flavorUrlOpt, encode(osnt::write, encoding)));
+		} catch (Throwable t) {
+			// no delta file for a partial fetch
+			osnt.abort();
+			throw t;
+		}
+		osnt.close();
 
-			osnt.writeCRC();
+		System.out.println("Fetched " + pipeline.getProcessed() + " files");
+		if (!retry.getRetries().isEmpty()) {
+			System.out.println("Retries by status: " + retry.summary());
+		}
+		System.out.println("Dump: " + deltaNt);
 
-			System.out.println();
+	}
 
-			pool.shutdown();
-		}
+	/**
+	 * destination of the delta entries
+	 */
+	@FunctionalInterface
+	private interface EntrySink {
+		void write(String name, byte[] buffer) throws IOException, InterruptedException;
+	}
 
-		System.out.println("Fetched " + urls.size() + " files");
-		System.out.println("Dump: " + deltaNt);
+	/**
+	 * encode the pages written into a sink, the pages are parsed by the download threads for the triples encoding
+	 *
+	 * @param sink     the sink of the downloaded pages
+	 * @param encoding the page encoding
+	 * @return sink
+	 */
+	private static EntrySink encode(EntrySink sink, int encoding) {
+		if (encoding != DeltaFileUtils.ENCODING_TRIPLES) {
+			return sink;
+		}
+		return (name, buffer) -> {
+			if (buffer.length == 0) {
+				sink.write(name, buffer);
+				return;
+			}
+			DeltaFileTriples.EntityTriples entity = DeltaFileTriples.parse(new DeltaFileReader.Entry(name, buffer), DeltaFileUtils.BASE_URI);
+			sink.write(name, TriplePage.encode(entity.triples()));
+		};
+	}
 
+	/**
+	 * create the task downloading the pages of the changes
+	 *
+	 * @param engine       the page engine
+	 * @param batcher      the batch downloader, null to download the pages one by one
+	 * @param flavorUrlOpt the flavor parameter of the page urls
+	 * @param sink         the destination of the entries
+	 * @return task
+	 */
+	private static ChangesPipeline.BatchTask createTask(DownloadEngine engine, EntityBatchDownloader batcher, String flavorUrlOpt, EntrySink sink) {
+		byte[] empty = new byte[0];
+		if (batcher != null) {
+			return changes -> {
+				List<String> titles = changes.stream().map(Change::getTitle).toList();
+				Map<String, byte[]> pages = batcher.download(titles);
+				for (String title : titles) {
+					byte[] page = pages.get(title);
+					// gzip as the downloaded pages
+					sink.write(title + ".ttl", page == null ? empty : DeltaFileUtils.gzip(page));
+				}
+			};
+		}
+		return changes -> {
+			for (Change change : changes) {
+				String title = change.getTitle();
+				String titleFile = title + ".ttl";
+				String url = "https://www.wikidata.org/wiki/Special:EntityData/" + title + ".ttl" + flavorUrlOpt;
+
+				byte[] page = engine.downloadPage(URI.create(url), false);
+				sink.write(titleFile, Objects.requireNonNullElse(page, empty));
+			}
+		};
 	}
 }
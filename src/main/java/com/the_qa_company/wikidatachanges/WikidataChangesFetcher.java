@@ -7,8 +7,15 @@ import com.the_qa_company.qendpoint.core.options.HDTOptionsKeys;
 import com.the_qa_company.qendpoint.core.util.io.IOUtil;
 import com.the_qa_company.wikidatachanges.api.ApiResult;
 import com.the_qa_company.wikidatachanges.api.RDFFlavor;
+import com.the_qa_company.wikidatachanges.datastruct.ChangesCheckpoint;
+import com.the_qa_company.wikidatachanges.datastruct.EntityCache;
+import com.the_qa_company.wikidatachanges.datastruct.QidSet;
+import com.the_qa_company.wikidatachanges.datastruct.RevisionIndex;
+import com.the_qa_company.wikidatachanges.datastruct.SitesPack;
 import com.the_qa_company.wikidatachanges.api.Change;
+import com.the_qa_company.wikidatachanges.utils.DirectoryTriples;
 import com.the_qa_company.wikidatachanges.utils.HDTUtils;
+import com.the_qa_company.wikidatachanges.utils.PipedIterator;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import org.apache.commons.cli.CommandLine;
@@ -18,33 +25,34 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.file.PathUtils;
 import com.the_qa_company.qendpoint.core.compact.bitmap.ModifiableBitmap;
-import com.the_qa_company.qendpoint.core.dictionary.Dictionary;
-import com.the_qa_company.qendpoint.core.dictionary.DictionarySection;
 import com.the_qa_company.qendpoint.core.enums.RDFNotation;
 import com.the_qa_company.qendpoint.core.enums.TripleComponentRole;
 import com.the_qa_company.qendpoint.core.hdt.HDT;
 import com.the_qa_company.qendpoint.core.hdt.HDTManager;
 import com.the_qa_company.qendpoint.core.options.HDTOptions;
+import com.the_qa_company.qendpoint.core.rdf.RDFParserCallback;
+import com.the_qa_company.qendpoint.core.rdf.RDFParserFactory;
 import com.the_qa_company.qendpoint.core.triples.IteratorTripleID;
 import com.the_qa_company.qendpoint.core.triples.TripleID;
+import com.the_qa_company.qendpoint.core.triples.TripleString;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.HttpURLConnection;
+import java.net.URI;
 import java.net.URL;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -53,28 +61,39 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 @RequiredArgsConstructor
 public class WikidataChangesFetcher {
 	public static void main(String[] args) throws IOException, InterruptedException, ParseException {
 		Option cacheOpt = new Option("c", "cache", true, "cache location");
 		Option elementsOpt = new Option("e", "element", true, "element to ask to the wiki API");
+		Option listThreadsOpt = new Option("L", "listthreads", true, "Number of time windows to fetch concurrently with the wiki API (default: 1)");
 		Option wikiapiOpt = new Option("w", "wikiapi", true, "Wiki api location");
 		Option todayOpt = new Option("T", "today", false, "Print date");
 		Option dateOpt = new Option("d", "date", true, "Wiki api location (required)");
 		Option flavorOpt = new Option("f", "flavor", true, "The flavor to retrieve the RDF outputs, important if you are using a truthy hdt");
 		Option flavorListOpt = new Option("F", "flavorlist", false, "The flavor list for the --" + flavorOpt.getLongOpt() + " option");
 		Option noCacheRecomputeOpt = new Option("C", "nonewcache", false, "Don't recreate the cache");
+		Option noResumeOpt = new Option("R", "noresume", false, "Don't resume the cache from the checkpoint of an interrupted run");
+		Option revisionIndexOpt = new Option("i", "revindex", false, "Keep an index of the applied revisions in the cache and skip the entities without new revision");
 		Option clearCacheOpt = new Option("D", "deletecache", false, "Clear the cache after the HDT build");
 		Option maxTryOpt = new Option("m", "maxtry", true, "Number of try with http request, 0 for infinity (default: 5)");
-		Option sleepBetweenTryOpt = new Option("S", "sleeptry", true, "Millis to sleep between try , 0 for no sleep (default: 5000)");
+		Option sleepBetweenTryOpt = new Option("S", "sleeptry", true, "Base millis of the exponential backoff between two tries, the Retry-After of the server is used if any (default: 500)");
+		Option rateLimitOpt = new Option("r", "ratelimit", true, "Maximum number of requests per second to the wiki api and the entity pages, 0 for no limit (default: 0)");
+		Option inFlightOpt = new Option("n", "inflight", true, "Maximum number of downloads in flight (default: 32)");
+		Option batchOpt = new Option("b", "batch", false, "Download the entities by batch of " + EntityBatchDownloader.MAX_BATCH + " with the wbgetentities api and convert them locally to RDF, lossy: no normalized values and local value node ids, don't mix with the page downloads");
+		Option entityCacheOpt = new Option("E", "entitycache", true, "Keep the downloaded pages compressed in the cache across the runs up to this size in MB and send conditional requests for them, 0 to disable (default: 0)");
+		Option fixedInFlightOpt = new Option("N", "fixedinflight", false, "Always use the maximum number of downloads in flight instead of adapting it to the server");
+		Option packOpt = new Option("P", "pack", false, "Append the downloaded pages into one pack file of the sites directory instead of writing a file by entity");
 		Option noHdtRecomputeOpt = new Option("H", "nonewhdt", false, "Don't recompute the HDT");
+		Option diskHdtOpt = new Option("g", "diskhdt", false, "Create the sites HDT with the disk generation, the chunks are sorted and merged on disk with a fixed memory");
+		Option diskWorkersOpt = new Option("j", "diskworkers", true, "Number of chunk workers of the disk generation, 0 for one by core (default: 0)");
+		Option diskChunkOpt = new Option("M", "diskchunk", true, "Memory of a chunk worker of the disk generation in MB, 0 to compute it from the heap (default: 0)");
+		Option diskTempOpt = new Option("t", "disktemp", true, "Directory of the chunk files of the disk generation (default: [cache]/hdtgen)");
 		Option hdtLoadOpt = new Option("l", "hdtload", false, "Load the HDT into memory, fast up the process");
 		Option hdtSourceOpt = new Option("s", "hdtsource", true, "Hdt source location (required to compute bitmaps and merge hdt)");
 		Option mapBitMapOpt = new Option("B", "mapbitmap", false, "map the bitmap into disk, reduce the memory using and the speed");
@@ -86,6 +105,7 @@ public class WikidataChangesFetcher {
 		Options opt = new Options()
 				.addOption(cacheOpt)
 				.addOption(elementsOpt)
+				.addOption(listThreadsOpt)
 				.addOption(wikiapiOpt)
 				.addOption(todayOpt)
 				.addOption(dateOpt)
@@ -93,10 +113,22 @@ public class WikidataChangesFetcher {
 				.addOption(flavorListOpt)
 				.addOption(clearCacheOpt)
 				.addOption(noCacheRecomputeOpt)
+				.addOption(noResumeOpt)
+				.addOption(revisionIndexOpt)
 				.addOption(maxTryOpt)
 				.addOption(mapBitMapOpt)
 				.addOption(sleepBetweenTryOpt)
+				.addOption(rateLimitOpt)
+				.addOption(inFlightOpt)
+				.addOption(fixedInFlightOpt)
+				.addOption(batchOpt)
+				.addOption(entityCacheOpt)
+				.addOption(packOpt)
 				.addOption(noHdtRecomputeOpt)
+				.addOption(diskHdtOpt)
+				.addOption(diskWorkersOpt)
+				.addOption(diskChunkOpt)
+				.addOption(diskTempOpt)
 				.addOption(hdtLoadOpt)
 				.addOption(hdtSourceOpt)
 				.addOption(deleteSitesEndOpt)
@@ -141,6 +173,7 @@ public class WikidataChangesFetcher {
 		}
 
 		int elementPerRead = Integer.parseInt(cl.getOptionValue(elementsOpt, "500"));
+		int listThreads = Integer.parseInt(cl.getOptionValue(listThreadsOpt, "1"));
 		String wikiapi = cl.getOptionValue(wikiapiOpt, "https://www.wikidata.org/w/api.php");
 		Date date = Optional
 				.ofNullable(cl.getOptionValue(dateOpt))
@@ -148,9 +181,19 @@ public class WikidataChangesFetcher {
 				.orElse(null);
 		boolean clearCache = cl.hasOption(clearCacheOpt);
 		boolean noHdtRecompute = cl.hasOption(noHdtRecomputeOpt);
+		boolean diskHdt = cl.hasOption(diskHdtOpt);
+		int diskWorkers = Integer.parseInt(cl.getOptionValue(diskWorkersOpt, "0"));
+		long diskChunk = Long.parseLong(cl.getOptionValue(diskChunkOpt, "0"));
 		boolean noCacheRecompute = cl.hasOption(noCacheRecomputeOpt);
+		boolean noResume = cl.hasOption(noResumeOpt);
+		boolean useRevisionIndex = cl.hasOption(revisionIndexOpt);
 		int maxTry = Integer.parseInt(cl.getOptionValue(maxTryOpt, "5"));
-		long sleepBetweenTry = Long.parseLong(cl.getOptionValue(sleepBetweenTryOpt, "5000"));
+		long sleepBetweenTry = Long.parseLong(cl.getOptionValue(sleepBetweenTryOpt, "500"));
+		double rateLimit = Double.parseDouble(cl.getOptionValue(rateLimitOpt, "0"));
+		int inFlight = Integer.parseInt(cl.getOptionValue(inFlightOpt, "32"));
+		boolean batch = cl.hasOption(batchOpt);
+		long entityCacheSize = Long.parseLong(cl.getOptionValue(entityCacheOpt, "0"));
+		boolean usePack = cl.hasOption(packOpt);
 		boolean hdtLoad = cl.hasOption(hdtLoadOpt);
 		boolean mapBitmap = cl.hasOption(mapBitMapOpt);
 		boolean deleteSitesEnd = cl.hasOption(deleteSitesEndOpt);
@@ -174,13 +217,44 @@ public class WikidataChangesFetcher {
 		if (sleepBetweenTry < 0) {
 			throw new IllegalArgumentException("sleepBetweenTry can't be negative! " + sleepBetweenTry);
 		}
+		if (listThreads <= 0) {
+			throw new IllegalArgumentException("listThreads can't be negative or zero! " + listThreads);
+		}
+		if (inFlight <= 0) {
+			throw new IllegalArgumentException("inFlight can't be negative or zero! " + inFlight);
+		}
+		if (rateLimit < 0) {
+			throw new IllegalArgumentException("rateLimit can't be negative! " + rateLimit);
+		}
+		if (entityCacheSize < 0) {
+			throw new IllegalArgumentException("entityCacheSize can't be negative! " + entityCacheSize);
+		}
+		if (entityCacheSize != 0 && batch) {
+			throw new IllegalArgumentException("The entity cache can't be used with the batch mode");
+		}
+		if (diskWorkers < 0) {
+			throw new IllegalArgumentException("diskWorkers can't be negative! " + diskWorkers);
+		}
+		if (diskChunk < 0) {
+			throw new IllegalArgumentException("diskChunk can't be negative! " + diskChunk);
+		}
+		if (!diskHdt && (cl.hasOption(diskWorkersOpt) || cl.hasOption(diskChunkOpt) || cl.hasOption(diskTempOpt))) {
+			throw new IllegalArgumentException("The disk generation options require --" + diskHdtOpt.getLongOpt());
+		}
+
+		// shared by the api and the entity downloads
+		RetryScheduler retry = new RetryScheduler(maxTry, sleepBetweenTry, Math.max(sleepBetweenTry, RetryScheduler.DEFAULT_MAX_DELAY));
+		RateLimiter limiter = RateLimiter.ofRate(rateLimit);
 
 		WikidataChangesFetcher fetcher = new WikidataChangesFetcher(FetcherOptions
 				.builder()
 				.url(wikiapi)
+				.apiEngine(new DownloadEngine(ConcurrencyGovernor.fixed(listThreads), retry, limiter, DownloadEngine.API_HEADERS))
 				.build());
 
 		Path deletedSubjects = outputDirectory.resolve("deletedSubjects");
+		Path revisionsFile = outputDirectory.resolve("revisions.bin");
+		RevisionIndex revisions = useRevisionIndex ? RevisionIndex.read(revisionsFile) : null;
 
 		if (!noCacheRecompute) {
 			if (date == null) {
@@ -188,49 +262,107 @@ public class WikidataChangesFetcher {
 			}
 
 			System.out.println("Reading from date: " + date);
-			Set<Change> urls = new HashSet<>();
-
-			System.out.print("fetching changes...\r");
-
-			ChangesIterable<Change> changes = fetcher.getChanges(date, elementPerRead, true);
 
-			System.out.println();
+			Path checkpointFile = outputDirectory.resolve("checkpoint.bin");
+			// revisions listed before the checkpoint, the titles to download again don't have a listed change
+			Path checkpointRevisionsFile = outputDirectory.resolve("checkpoint.revisions.bin");
+			ChangesCheckpoint checkpoint = null;
 
-			System.out.print("\r");
-			long i = 0;
-			for (Change change : changes) {
-				long d = ++i;
-				if (!change.getTitle().isEmpty() && change.getNs() == 0) {
-					urls.add(change);
-					printPercentage(d, changes.size(), "fetch: " + urls.size(), true);
+			if (!noResume && Files.exists(checkpointFile) && Files.exists(sites)) {
+				try {
+					checkpoint = ChangesCheckpoint.read(checkpointFile);
+				} catch (IOException e) {
+					System.err.println("Can't read checkpoint " + checkpointFile + ", ignored: " + e.getMessage());
+				}
+				if (checkpoint != null && checkpoint.end().getTime() != date.getTime()) {
+					System.out.println("Checkpoint " + checkpointFile + " isn't for the date " + date + ", ignored");
+					checkpoint = null;
 				}
 			}
 
-			System.out.println();
+			QidSet seen;
+			List<RecentChangesIterator> shards;
+			List<String> pending = new ArrayList<>();
+			SitesPack pack;
 
-			System.out.println("Downloading ttl files...");
-			if (Files.exists(sites)) {
-				PathUtils.deleteDirectory(sites);
+			if (checkpoint != null) {
+				seen = checkpoint.manifest();
+				if (revisions != null) {
+					revisions.updateAll(RevisionIndex.read(checkpointRevisionsFile));
+				}
+				shards = new ArrayList<>();
+				Date listed = date;
+				for (ChangesCheckpoint.Shard shard : checkpoint.shards()) {
+					if (shard.start().after(listed)) {
+						listed = shard.start();
+					}
+					if (!shard.done()) {
+						shards.add(fetcher.resumeShard(shard.start(), shard.end(), shard.cursor(), elementPerRead));
+					}
+				}
+				// the changes made since the interrupted run are listed in a new window
+				Date now = new Date();
+				if (now.after(listed)) {
+					shards.add(fetcher.resumeShard(now, listed, null, elementPerRead));
+				}
+				// remove the interrupted downloads and find the listed titles without file
+				try (DirectoryStream<Path> tmpFiles = Files.newDirectoryStream(sites, "*.tmp")) {
+					for (Path tmp : tmpFiles) {
+						Files.delete(tmp);
+					}
+				}
+				// keep the layout of the interrupted run
+				pack = SitesPack.exists(sites) ? SitesPack.open(sites) : null;
+				for (String title : seen) {
+					if (pack != null ? !pack.contains(title) : !Files.exists(sites.resolve(title + ".ttl"))) {
+						pending.add(title);
+					}
+				}
+				System.out.println("Resuming from checkpoint " + checkpointFile + ", " + seen.size() + " listed title(s), "
+				                   + pending.size() + " to download again, " + shards.size() + " window(s) to list");
+			} else {
+				if (Files.exists(sites)) {
+					PathUtils.deleteDirectory(sites);
+				}
+				Files.createDirectories(sites);
+				pack = usePack ? SitesPack.open(sites) : null;
+				seen = new QidSet();
+				shards = fetcher.createShards(date, elementPerRead, listThreads);
 			}
-			Files.createDirectories(sites);
 
-			ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			// the checkpoint contains all the windows, even the listed ones
+			List<ChangesCheckpoint.Shard> doneShards = checkpoint == null ? List.of() : checkpoint.shards().stream()
+					.filter(ChangesCheckpoint.Shard::done)
+					.toList();
 
-			Object logSync = new Object() {
-			};
 			Object writeSync = new Object() {
 			};
 
-			try (BufferedWriter writer = Files.newBufferedWriter(deletedSubjects)) {
-				AtomicLong downloads = new AtomicLong();
-				Map<String, String> urlHeader = Map.of(
-						"user-agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/87.0.4280.88 Safari/537.36",
-						"accept", "text/turtle",
-						"accept-encoding", "gzip, deflate",
-						"accept-language", "en-US,en;q=0.9",
-						"upgrade-insecure-requests", "1",
-						"scheme", "https"
-				);
+			ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor();
+
+			try (BufferedWriter writer = checkpoint != null
+					? Files.newBufferedWriter(deletedSubjects, StandardOpenOption.CREATE, StandardOpenOption.APPEND)
+					: Files.newBufferedWriter(deletedSubjects)) {
+				Runnable saveCheckpoint = () -> {
+					List<ChangesCheckpoint.Shard> state = new ArrayList<>(doneShards);
+					// read the cursors before the manifest, the manifest contains all the titles before the cursors
+					for (RecentChangesIterator shard : shards) {
+						state.add(new ChangesCheckpoint.Shard(shard.getStart(), shard.getEnd(), shard.getCursor(), shard.isDone()));
+					}
+					try {
+						synchronized (seen) {
+							// the index is updated with the manifest
+							if (revisions != null) {
+								revisions.write(checkpointRevisionsFile);
+							}
+							new ChangesCheckpoint(date, state, seen).write(checkpointFile);
+						}
+					} catch (IOException e) {
+						System.err.println("Can't write checkpoint " + checkpointFile + ": " + e.getMessage());
+					}
+				};
+				checkpointer.scheduleWithFixedDelay(saveCheckpoint, 30, 30, TimeUnit.SECONDS);
+
 
 				String flavorUrlOpt;
 
@@ -240,49 +372,98 @@ public class WikidataChangesFetcher {
 					flavorUrlOpt = "";
 				}
 
-				List<? extends Future<Path>> futures = urls.stream()
-						.map(change -> pool.submit(() -> {
-							Path path = sites.resolve(change.getTitle() + ".ttl");
-							String url = "https://www.wikidata.org/wiki/Special:EntityData/" + change.getTitle() + ".ttl" + flavorUrlOpt;
-
-							if (!fetcher.downloadPageToFile(
-									new URL(url),
-									path,
-									urlHeader,
-									maxTry,
-									sleepBetweenTry
-							)) {
-								// write delete triple
-								synchronized (writeSync) {
-									writer.write("""
-											https://www.wikidata.org/wiki/Special:EntityData/%1$s
-											http://www.wikidata.org/entity/%1$s
-											""".formatted(change.getTitle()));
-								}
+				System.out.println("Fetching changes and downloading ttl files...");
+
+				DownloadEngine engine = new DownloadEngine(
+						DownloadEngine.createGovernor(inFlight, !cl.hasOption(fixedInFlightOpt)),
+						retry, limiter, DownloadEngine.ENTITY_HEADERS
+				);
+				ChangesPipeline pipeline = new ChangesPipeline(seen, revisions, inFlight, inFlight * 64);
+				pipeline.setStatus(engine.getGovernor()::status);
+				// one cache by flavor, the cache isn't cleared with the sites
+				EntityCache entityCache = entityCacheSize == 0 ? null : EntityCache.open(
+						outputDirectory.resolve("entities").resolve(flavor.getTitle()),
+						entityCacheSize * 1024 * 1024
+				);
+
+				int batchSize;
+				ChangesPipeline.BatchTask task;
+				if (batch) {
+					// same window as the page downloads, one request per batch
+					EntityBatchDownloader batcher = new EntityBatchDownloader(
+							new DownloadEngine(engine.getGovernor(), retry, limiter, DownloadEngine.API_HEADERS),
+							wikiapi, flavor
+					);
+					batchSize = EntityBatchDownloader.MAX_BATCH;
+					task = changes -> {
+						List<String> titles = changes.stream().map(Change::getTitle).toList();
+						Map<String, byte[]> pages = batcher.download(titles);
+						for (String title : titles) {
+							byte[] page = pages.get(title);
+							if (page == null) {
+								writeDeleted(writer, writeSync, title);
+							} else if (pack != null) {
+								pack.append(title, page);
+							} else {
+								writePage(sites.resolve(title + ".ttl"), page);
 							}
-							long d = downloads.incrementAndGet();
-							synchronized (logSync) {
-								printPercentage(d, urls.size(), "downloading", true);
+						}
+					};
+				} else {
+					batchSize = 1;
+					task = changes -> {
+						for (Change change : changes) {
+							String title = change.getTitle();
+							Path path = sites.resolve(title + ".ttl");
+							String url = "https://www.wikidata.org/wiki/Special:EntityData/" + title + ".ttl" + flavorUrlOpt;
+
+							if (entityCache != null || pack != null) {
+								byte[] page = entityCache != null
+										? engine.downloadPage(URI.create(url), entityCache, title, change.getRevid())
+										: engine.downloadPage(URI.create(url), true);
+								if (page == null) {
+									writeDeleted(writer, writeSync, title);
+								} else if (pack != null) {
+									pack.append(title, page);
+								} else {
+									writePage(path, page);
+								}
+							} else if (!engine.downloadPageToFile(URI.create(url), path)) {
+								writeDeleted(writer, writeSync, title);
 							}
-							return path;
-						}))
-						.toList();
-
+						}
+					};
+				}
 				try {
-					for (Future<Path> f : futures) {
-						f.get();
+					pipeline.run(pending.iterator(), shards, batchSize, task);
+				} catch (IOException | InterruptedException e) {
+					stopCheckpointer(checkpointer);
+					saveCheckpoint.run();
+					throw e;
+				} finally {
+					// a running save can't write the checkpoint after its deletion
+					stopCheckpointer(checkpointer);
+					if (entityCache != null) {
+						entityCache.write();
+					}
+					if (pack != null) {
+						pack.close();
 					}
-				} catch (ExecutionException e) {
-					pool.shutdownNow();
-					long d = downloads.get();
-					int percentage = (int) (100L * d / urls.size());
-					throw new IOException("Wasn't able to download all the files: " + d + "/" + urls.size() + " " + percentage + "%", e.getCause());
 				}
 
-				System.out.println();
-
-				pool.shutdown();
+				System.out.println("Fetched " + pipeline.getProcessed() + " files");
+				if (revisions != null) {
+					System.out.println("Skipped " + pipeline.getSkipped() + " change(s) with an already applied revision");
+				}
+				if (!retry.getRetries().isEmpty()) {
+					System.out.println("Retries by status: " + retry.summary());
+				}
+				if (entityCache != null) {
+					System.out.println("Entity cache: " + entityCache.summary());
+				}
 			}
+			Files.deleteIfExists(checkpointFile);
+			Files.deleteIfExists(checkpointRevisionsFile);
 		}
 
 		Path hdtLocation = outputDirectory.resolve("sites.hdt");
@@ -294,7 +475,13 @@ public class WikidataChangesFetcher {
 
 			System.out.println("Creating HDT from cache " + sites);
 
-			fetcher.createHDTOfCache(sites, "http://www.wikidata.org/entity/", hdtLocation, clearCache);
+			if (diskHdt) {
+				Path diskTemp = Path.of(cl.getOptionValue(diskTempOpt, outputDirectory.resolve("hdtgen").toString()));
+				fetcher.createHDTOfCacheDisk(sites, "http://www.wikidata.org/entity/", hdtLocation, clearCache,
+						diskTemp, diskWorkers, diskChunk * 1024 * 1024);
+			} else {
+				fetcher.createHDTOfCache(sites, "http://www.wikidata.org/entity/", hdtLocation, clearCache);
+			}
 			System.out.println("cache converted into: " + hdtLocation);
 		}
 
@@ -388,6 +575,12 @@ public class WikidataChangesFetcher {
 		} else {
 			System.out.println("HDT Source not specified, no bitmap/merge hdt built, use --" + hdtSourceOpt.getLongOpt() + " (hdt) to add a source");
 		}
+
+		if (revisions != null && !noCacheRecompute) {
+			// the revisions are only marked as applied once all the steps are done
+			revisions.write(revisionsFile);
+			System.out.println("Revision index with " + revisions.size() + " entities saved into " + revisionsFile);
+		}
 	}
 
 	private static HDT loadOrMap(Path file, boolean load) throws IOException {
@@ -417,90 +610,75 @@ public class WikidataChangesFetcher {
 		}
 	}
 
+	/**
+	 * write the delete lines of an entity
+	 *
+	 * @param writer the deleted subjects writer
+	 * @param sync   the write lock
+	 * @param title  the entity title
+	 * @throws IOException write error
+	 */
+	private static void writeDeleted(BufferedWriter writer, Object sync, String title) throws IOException {
+		synchronized (sync) {
+			writer.write("""
+					https://www.wikidata.org/wiki/Special:EntityData/%1$s
+					http://www.wikidata.org/entity/%1$s
+					""".formatted(title));
+		}
+	}
+
+	/**
+	 * write a page, the page is written into a temp file moved once complete
+	 *
+	 * @param path the page file
+	 * @param page the page
+	 * @throws IOException write error
+	 */
+	private static void writePage(Path path, byte[] page) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		Files.write(tmp, page);
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
 	private final ObjectMapper mapper = new ObjectMapper();
 	@Getter
 	private final FetcherOptions options;
+	private DownloadEngine defaultApiEngine;
 
-	private boolean downloadPageToFile(URL url, Path output, Map<String, String> headers, int maxTry, long sleepBetweenTry) throws IOException, InterruptedException {
-		IOException lastException = null;
-		if (maxTry <= 0) {
-			maxTry = Integer.MAX_VALUE;
-		}
-		for (int i = 0; i < maxTry; i++) {
-			try {
-				if (!(url.openConnection() instanceof HttpURLConnection conn)) {
-					throw new IllegalArgumentException("the url " + url + " isn't an http url");
-				}
-				headers.forEach(conn::setRequestProperty);
-
-				try (InputStream is = new GZIPInputStream(new BufferedInputStream(conn.getInputStream()));
-				     OutputStream os = new BufferedOutputStream(Files.newOutputStream(output))) {
-					IOUtils.copy(is, os);
-					// we have the file, we can leave
-					return true;
-				}
-			} catch (java.io.FileNotFoundException e) {
-				// no file, we can leave
-				return false;
-			} catch (IOException e) {
-				if (lastException == null) {
-					lastException = e;
-				} else {
-					lastException.addSuppressed(e);
-				}
-				if (sleepBetweenTry > 0) {
-					try {
-						Thread.sleep(sleepBetweenTry);
-					} catch (InterruptedException ie) {
-						ie.addSuppressed(lastException);
-						throw ie;
-					}
-				}
-			}
-		}
-		// too many try
-		throw lastException;
+	/**
+	 * create the url to call the wikidata changes api
+	 *
+	 * @param rcchange       the rcchange id for restart
+	 * @param elementPerRead number of elements to query to the wiki api
+	 * @return url
+	 * @throws IOException bad url
+	 */
+	public URL changesApiUrl(String rcchange, long elementPerRead) throws IOException {
+		return changesApiUrl(null, null, rcchange, elementPerRead);
 	}
 
-	public byte[] downloadPage(URL url, Map<String, String> headers, int maxTry, long sleepBetweenTry, boolean unzip) throws IOException, InterruptedException {
-		IOException lastException = null;
-		if (maxTry <= 0) {
-			maxTry = Integer.MAX_VALUE;
+	/**
+	 * create the url to call the wikidata changes api on a time window
+	 *
+	 * @param start          the newest date of the window, null for now
+	 * @param end            the oldest date of the window, null for no limit
+	 * @param rcchange       the rcchange id for restart
+	 * @param elementPerRead number of elements to query to the wiki api
+	 * @return url
+	 * @throws IOException bad url
+	 */
+	public URL changesApiUrl(Date start, Date end, String rcchange, long elementPerRead) throws IOException {
+		String urlLink = options.getUrl() + "?format=json&rcprop=title%7Cids%7Ctimestamp&list=recentchanges&action=query&rclimit=" + elementPerRead;
+		if (start != null) {
+			urlLink += "&rcstart=" + start.toInstant().truncatedTo(ChronoUnit.SECONDS);
 		}
-		for (int i = 0; i < maxTry; i++) {
-			try {
-				if (!(url.openConnection() instanceof HttpURLConnection conn)) {
-					throw new IllegalArgumentException("the url " + url + " isn't an http url");
-				}
-				headers.forEach(conn::setRequestProperty);
-
-				try (InputStream is = new BufferedInputStream(conn.getInputStream());
-				     ByteArrayOutputStream os = new ByteArrayOutputStream()) {
-					IOUtils.copy(unzip ? new GZIPInputStream(is) : is, os);
-					// we have the file, we can leave
-					return os.toByteArray();
-				}
-			} catch (java.io.FileNotFoundException e) {
-				// no file, we can leave
-				return null;
-			} catch (IOException e) {
-				if (lastException == null) {
-					lastException = e;
-				} else {
-					lastException.addSuppressed(e);
-				}
-				if (sleepBetweenTry > 0) {
-					try {
-						Thread.sleep(sleepBetweenTry);
-					} catch (InterruptedException ie) {
-						ie.addSuppressed(lastException);
-						throw ie;
-					}
-				}
-			}
+		if (end != null) {
+			urlLink += "&rcend=" + end.toInstant().truncatedTo(ChronoUnit.SECONDS);
+		}
+		if (rcchange != null) {
+			urlLink += "&rccontinue=" + rcchange;
 		}
-		// too many try
-		throw lastException;
+		return new URL(urlLink);
 	}
 
 	/**
@@ -512,53 +690,118 @@ public class WikidataChangesFetcher {
 	 * @throws IOException api call fail
 	 */
 	public ApiResult changesApiCall(String rcchange, long elementPerRead) throws IOException {
-		String urlLink = options.getUrl() + "?format=json&rcprop=title&list=recentchanges&action=query&rclimit=" + elementPerRead;
-		if (rcchange != null) {
-			urlLink += "&rccontinue=" + rcchange;
+		return mapper.readValue(changesApiPage(null, null, rcchange, elementPerRead), ApiResult.class);
+	}
+
+	/**
+	 * download a page of the wikidata changes api, the request is retried with the api engine
+	 *
+	 * @param start          the newest date of the window, null for now
+	 * @param end            the oldest date of the window, null for no limit
+	 * @param rcchange       the rcchange id for restart
+	 * @param elementPerRead number of elements to query to the wiki api
+	 * @return the page
+	 * @throws IOException api call fail
+	 */
+	public byte[] changesApiPage(Date start, Date end, String rcchange, long elementPerRead) throws IOException {
+		URL url = changesApiUrl(start, end, rcchange, elementPerRead);
+		byte[] page;
+		try {
+			page = getApiEngine().downloadPage(URI.create(url.toString()), true);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while calling " + url, e);
+		}
+		if (page == null) {
+			throw new IOException("Can't find the wiki api at " + url);
 		}
-		URL url = new URL(urlLink);
+		return page;
+	}
 
-		return mapper.readValue(url, ApiResult.class);
+	/**
+	 * @return the engine to call the wiki api
+	 */
+	public synchronized DownloadEngine getApiEngine() {
+		if (options.getApiEngine() != null) {
+			return options.getApiEngine();
+		}
+		if (defaultApiEngine == null) {
+			defaultApiEngine = new DownloadEngine(
+					ConcurrencyGovernor.fixed(4),
+					new RetryScheduler(5, 500, RetryScheduler.DEFAULT_MAX_DELAY),
+					null,
+					DownloadEngine.API_HEADERS
+			);
+		}
+		return defaultApiEngine;
 	}
 
-	public ChangesIterable<Change> getChanges(Date end, long elementPerRead, boolean log) throws IOException {
-		List<Change> arr = new ArrayList<>();
-		long count = 0;
+	/**
+	 * get the changes since a date, the pages are fetched lazily while the iterator is consumed
+	 *
+	 * @param end            the date to stop the fetch
+	 * @param elementPerRead number of elements to query to the wiki api
+	 * @param log            log the progress of the fetch
+	 * @return iterator of the changes
+	 */
+	public RecentChangesIterator getChanges(Date end, long elementPerRead, boolean log) {
+		if (end.toInstant().isAfter(Instant.now())) {
+			throw new IllegalArgumentException("future time");
+		}
+
+		return new RecentChangesIterator(this, mapper.getFactory(), null, end, elementPerRead, log);
+	}
 
-		long now = Date.from(Instant.now()).getTime();
-		long deltaTime = (now - end.getTime());
+	/**
+	 * split the time window between now and a date into sub-windows of the same duration
+	 *
+	 * @param end            the date to stop the fetch
+	 * @param elementPerRead number of elements to query to the wiki api
+	 * @param parallelism    number of sub-windows
+	 * @return the iterators of the sub-windows, from the newest to the oldest
+	 */
+	public List<RecentChangesIterator> createShards(Date end, long elementPerRead, int parallelism) {
+		long now = System.currentTimeMillis();
+		long deltaTime = now - end.getTime();
 
 		if (deltaTime <= 0) {
 			throw new IllegalArgumentException("future time");
 		}
 
-		String lastRc = null;
-		while (true) {
-			// fetch changes
-			ApiResult apiResult = changesApiCall(lastRc, elementPerRead);
-			// add result to the iterable
-			List<Change> recentchanges = apiResult.getQuery().getRecentchanges();
-			count += recentchanges.size();
-			arr.addAll(recentchanges);
+		int count = Math.max(1, parallelism);
+		long step = Math.max(1, deltaTime / count);
+		List<RecentChangesIterator> shards = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			Date shardStart = new Date(now - step * i);
+			Date shardEnd = i == count - 1 ? end : new Date(now - step * (i + 1));
+			shards.add(new RecentChangesIterator(this, mapper.getFactory(), shardStart, shardEnd, elementPerRead, false));
+		}
+		return shards;
+	}
 
-			lastRc = apiResult.getContinueOpt().getRccontinue();
-			Date date = apiResult.getContinueOpt().getRcContinueDate();
+	/**
+	 * create a sub-window iterator from a saved rccontinue value
+	 *
+	 * @param start          the newest date of the window
+	 * @param end            the oldest date of the window
+	 * @param cursor         the rccontinue value, null to start from the start date
+	 * @param elementPerRead number of elements to query to the wiki api
+	 * @return the iterator
+	 */
+	public RecentChangesIterator resumeShard(Date start, Date end, String cursor, long elementPerRead) {
+		return new RecentChangesIterator(this, mapper.getFactory(), start, end, cursor, elementPerRead, false);
+	}
 
-			// end date
-			if (log) {
-				long current = Math.max(0, Math.min(deltaTime, deltaTime - (date.getTime() - end.getTime())));
-				printPercentage(current, deltaTime, "rollback to " + date + " " + count + " elements.", false);
-			}
-			if (date.before(end)) {
-				break;
-			}
+	private static void stopCheckpointer(ScheduledExecutorService checkpointer) throws InterruptedException {
+		// the scheduled saves are cancelled, the running save is completed
+		checkpointer.shutdown();
+		if (!checkpointer.awaitTermination(1, TimeUnit.MINUTES)) {
+			throw new IllegalStateException("Can't stop the checkpoint writer");
 		}
-
-		return new ChangesIterable<>(arr, count);
 	}
 
 	/**
-	 * create an HDT from a directory and save it into a file
+	 * create an HDT from a directory and save it into a file, the pages are read from the pack of the directory if any
 	 *
 	 * @param cachePath   the directory
 	 * @param hdtPath     hdt path to save it
@@ -566,42 +809,106 @@ public class WikidataChangesFetcher {
 	 * @throws IOException io error
 	 */
 	public void createHDTOfCache(Path cachePath, String baseURI, Path hdtPath, boolean deleteCache) throws IOException {
-		HDTUtils.compressToHdt(RDFNotation.DIR, baseURI, cachePath.toAbsolutePath().toString(), hdtPath, HDTOptions.of());
+		if (SitesPack.exists(cachePath)) {
+			try (SitesPack pack = SitesPack.open(cachePath)) {
+				HDTUtils.compressToHdt(readPack(pack, baseURI), baseURI, cachePath.toAbsolutePath().toString(), hdtPath, HDTOptions.of());
+			}
+		} else {
+			HDTUtils.compressToHdt(RDFNotation.DIR, baseURI, cachePath.toAbsolutePath().toString(), hdtPath, HDTOptions.of());
+		}
 		if (deleteCache) {
 			PathUtils.deleteDirectory(cachePath);
 		}
 	}
 
+	/**
+	 * create an HDT from a directory with the disk generation and save it into a file, the pages are read from the
+	 * pack of the directory if any
+	 *
+	 * @param cachePath    the directory
+	 * @param hdtPath      hdt path to save it
+	 * @param deleteCache  if we need to delete the directory
+	 * @param workLocation directory of the chunk files
+	 * @param workers      number of chunk workers, 0 for one by core
+	 * @param chunkMemory  memory of a chunk worker in bytes, 0 to compute it from the heap
+	 * @throws IOException io error
+	 * @see HDTUtils#compressToHdtDisk(Iterator, String, Path, Path, int, long)
+	 */
+	public void createHDTOfCacheDisk(Path cachePath, String baseURI, Path hdtPath, boolean deleteCache,
+									 Path workLocation, int workers, long chunkMemory) throws IOException {
+		if (SitesPack.exists(cachePath)) {
+			try (SitesPack pack = SitesPack.open(cachePath)) {
+				HDTUtils.compressToHdtDisk(readPack(pack, baseURI), baseURI, hdtPath, workLocation, workers, chunkMemory);
+			}
+		} else {
+			Iterator<TripleString> tripleIterator = DirectoryTriples.readTriples(cachePath, baseURI, Runtime.getRuntime().availableProcessors());
+			HDTUtils.compressToHdtDisk(tripleIterator, baseURI, hdtPath, workLocation, workers, chunkMemory);
+		}
+		if (deleteCache) {
+			PathUtils.deleteDirectory(cachePath);
+		}
+	}
+
+	private static Iterator<TripleString> readPack(SitesPack pack, String baseURI) {
+		System.out.println("Reading " + pack.size() + " page(s) from the pack");
+		RDFParserCallback parser = RDFParserFactory.getParserCallback(RDFNotation.TURTLE);
+		// one sequential read of the pack, the pages are parsed one after the other, the parser can reuse its triple,
+		// the pipe hands over the triples by batches, copy the components
+		return PipedIterator.createOfCallback(
+				pipe -> pack.forEach((title, page) -> parser.doParse(
+						new ByteArrayInputStream(page), baseURI, RDFNotation.TURTLE, true,
+						(triple, pos) -> pipe.addElement(new TripleString(
+								triple.getSubject().toString(),
+								triple.getPredicate().toString(),
+								triple.getObject().toString()
+						))
+				))
+		);
+	}
+
+	/**
+	 * mark the triples of the updated and deleted subjects in the delete bitmap of the source
+	 *
+	 * @param source          the HDT to update
+	 * @param sites           the HDT of the new pages, null if no page was added
+	 * @param deletedSubjects the subjects of the deleted entities
+	 * @param bitmap          the delete bitmap of the source triples
+	 */
 	public void computeBitmap(HDT source, HDT sites, Set<String> deletedSubjects, ModifiableBitmap bitmap) {
 		int n = 0;
-		DictionarySection subjectsSection = sites.getDictionary().getSubjects();
-		Dictionary sourceDict = source.getDictionary();
-		long subjects = subjectsSection.getNumberOfElements() + deletedSubjects.size();
+		long siteSubjects = sites == null ? 0 : sites.getDictionary().getSubjects().getNumberOfElements();
+		long subjects = siteSubjects + deletedSubjects.size();
 		long deleteStatements = 0;
 
-		for (Iterator<? extends CharSequence> its = subjectsSection.getSortedEntries(); its.hasNext(); ) {
-			CharSequence subject = its.next();
-			long sid = sourceDict.stringToId(subject, TripleComponentRole.SUBJECT);
-			IteratorTripleID it = source.getTriples().search(new TripleID(sid, 0, 0));
-			while (it.hasNext()) {
-				it.next();
-				bitmap.set(it.getLastTriplePosition(), true);
-				deleteStatements++;
-			}
+		Iterator<? extends CharSequence> its = sites == null
+				? Collections.emptyIterator()
+				: sites.getDictionary().getSubjects().getSortedEntries();
+		while (its.hasNext()) {
+			deleteStatements += markSubject(source, its.next(), bitmap);
 			printPercentage(++n, subjects, "compute delete bitmap " + deleteStatements + " statement(s) to delete", true);
 		}
 		for (CharSequence subject : deletedSubjects) {
-			long sid = sourceDict.stringToId(subject, TripleComponentRole.SUBJECT);
-			IteratorTripleID it = source.getTriples().search(new TripleID(sid, 0, 0));
-			while (it.hasNext()) {
-				it.next();
-				bitmap.set(it.getLastTriplePosition(), true);
-				deleteStatements++;
-			}
+			deleteStatements += markSubject(source, subject, bitmap);
 			printPercentage(++n, subjects, "compute delete bitmap " + deleteStatements + " statement(s) to delete", true);
 		}
 		printPercentage(subjects, subjects, "compute delete bitmap " + deleteStatements + " statement(s) to delete", true);
 		System.out.println();
 	}
 
+	private static long markSubject(HDT source, CharSequence subject, ModifiableBitmap bitmap) {
+		long sid = source.getDictionary().stringToId(subject, TripleComponentRole.SUBJECT);
+		if (sid <= 0) {
+			// entity created after the source, no triple to delete
+			return 0;
+		}
+		long marked = 0;
+		IteratorTripleID it = source.getTriples().search(new TripleID(sid, 0, 0));
+		while (it.hasNext()) {
+			it.next();
+			bitmap.set(it.getLastTriplePosition(), true);
+			marked++;
+		}
+		return marked;
+	}
+
 }
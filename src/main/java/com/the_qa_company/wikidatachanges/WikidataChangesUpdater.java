@@ -3,6 +3,8 @@ package com.the_qa_company.wikidatachanges;
 import com.the_qa_company.qendpoint.core.options.HDTOptions;
 import com.the_qa_company.qendpoint.core.util.listener.ColorTool;
 import com.the_qa_company.wikidatachanges.api.Change;
+import com.the_qa_company.wikidatachanges.api.RDFFlavor;
+import com.the_qa_company.wikidatachanges.datastruct.QidSet;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -33,7 +35,7 @@ import java.io.BufferedWriter;
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.net.URL;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
@@ -71,6 +73,10 @@ public class WikidataChangesUpdater {
 		Option maxLengthOpt = new Option("L", "maxlength", true, "Max length of the update");
 		Option syncRequestOpt = new Option("R", "syncrequest", false, "Sync all SPARQL requests");
 		Option deltaFetchOpt = new Option("D", "delta", true, "Time delta between the fetch after lookup (ms), default: 10000");
+		Option inFlightOpt = new Option("n", "inflight", true, "Maximum number of downloads in flight, default: 32");
+		Option fixedInFlightOpt = new Option("N", "fixedinflight", false, "Always use the maximum number of downloads in flight instead of adapting it to the server");
+		Option batchOpt = new Option("b", "batch", false, "Download the entities by batch of " + EntityBatchDownloader.MAX_BATCH + " with the wbgetentities api and convert them locally to RDF, lossy: no normalized values and local value node ids, don't mix with the page downloads");
+		Option rateLimitOpt = new Option("r", "ratelimit", true, "Maximum number of requests per second to the remote servers, 0 for no limit, default: 0");
 
 		Option todayOpt = new Option("T", "today", false, "Print date");
 		Option colorOpt = new Option("c", "color", false, "Color output");
@@ -83,6 +89,10 @@ public class WikidataChangesUpdater {
 				.addOption(maxLengthOpt)
 				.addOption(dateOpt)
 				.addOption(deltaFetchOpt)
+				.addOption(inFlightOpt)
+				.addOption(fixedInFlightOpt)
+				.addOption(rateLimitOpt)
+				.addOption(batchOpt)
 				.addOption(todayOpt)
 				.addOption(updaterOpt)
 				.addOption(colorOpt)
@@ -110,9 +120,13 @@ public class WikidataChangesUpdater {
 		String remoteServer = cl.getOptionValue(serverOpt, DEFAULT_REMOTE_SERVER);
 		String remoteServerUpdater = cl.getOptionValue(updaterOpt, DEFAULT_REMOTE_SERVER_UPDATER);
 		long deltaFetch;
+		int inFlight;
+		double rateLimit;
 		int minLength;
 		int maxLength;
 		String deltaFetchVal = cl.getOptionValue(deltaFetchOpt, "10000");
+		String inFlightVal = cl.getOptionValue(inFlightOpt, "32");
+		String rateLimitVal = cl.getOptionValue(rateLimitOpt, "0");
 		String minLengthVal = cl.getOptionValue(deltaFetchOpt, "100");
 		String maxLengthVal = cl.getOptionValue(deltaFetchOpt, "1000");
 
@@ -122,6 +136,26 @@ public class WikidataChangesUpdater {
 			tool.error("Invalid delta fetch value: " + deltaFetchVal);
 			return;
 		}
+		try {
+			inFlight = Integer.parseInt(inFlightVal);
+		} catch (NumberFormatException e) {
+			tool.error("Invalid in flight value: " + inFlightVal);
+			return;
+		}
+		if (inFlight <= 0) {
+			tool.error("Invalid in flight value: " + inFlightVal);
+			return;
+		}
+		try {
+			rateLimit = Double.parseDouble(rateLimitVal);
+		} catch (NumberFormatException e) {
+			tool.error("Invalid rate limit value: " + rateLimitVal);
+			return;
+		}
+		if (rateLimit < 0) {
+			tool.error("Invalid rate limit value: " + rateLimitVal);
+			return;
+		}
 		try {
 			minLength = Integer.parseInt(minLengthVal);
 		} catch (NumberFormatException e) {
@@ -165,25 +199,30 @@ public class WikidataChangesUpdater {
 
 		// lookup to the last date
 
+		// shared by the api and the entity downloads
+		RetryScheduler retry = new RetryScheduler(10, 500, RetryScheduler.DEFAULT_MAX_DELAY);
+		RateLimiter limiter = RateLimiter.ofRate(rateLimit);
+
 		FetcherOptions opts = FetcherOptions.builder()
 				.url(remoteServerUpdater)
+				.apiEngine(new DownloadEngine(ConcurrencyGovernor.fixed(1), retry, limiter, DownloadEngine.API_HEADERS))
 				.build();
 
 		WikidataChangesFetcher fetcher = new WikidataChangesFetcher(opts);
 
 
-		Set<Change> urls = new HashSet<>();
-		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		QidSet urls = new QidSet();
+		ExecutorService pool = Executors.newFixedThreadPool(inFlight);
+		DownloadEngine engine = new DownloadEngine(
+				DownloadEngine.createGovernor(inFlight, !cl.hasOption(fixedInFlightOpt)),
+				retry, limiter, DownloadEngine.ENTITY_HEADERS
+		);
+		EntityBatchDownloader batcher = cl.hasOption(batchOpt) ? new EntityBatchDownloader(
+				new DownloadEngine(engine.getGovernor(), retry, limiter, DownloadEngine.API_HEADERS),
+				remoteServerUpdater, RDFFlavor.DUMP
+		) : null;
 
 		AtomicLong downloads = new AtomicLong();
-		Map<String, String> urlHeader = Map.of(
-				"user-agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/87.0.4280.88 Safari/537.36",
-				"accept", "text/turtle",
-				"accept-encoding", "gzip, deflate",
-				"accept-language", "en-US,en;q=0.9",
-				"upgrade-insecure-requests", "1",
-				"scheme", "https"
-		);
 
 		Set<Statement> deltaAdd = new HashSet<>();
 		Set<Statement> deltaRemove = new HashSet<>();
@@ -194,8 +233,6 @@ public class WikidataChangesUpdater {
 				Thread.sleep(deltaFetch);
 			}
 			tool.log("Lookup to date '" + inst + "', run: " + run);
-			ChangesIterable<Change> changes = fetcher.getChanges(Date.from(inst), 500, true);
-
 			downloads.set(0);
 
 			tool.log("Connecting to sparql repository: " + localSparql);
@@ -206,16 +243,16 @@ public class WikidataChangesUpdater {
 			Object logLock = new Object() {
 			};
 
-			long i = 0;
 			tool.log("finding changes...");
-			for (Change change : changes) {
-				if (!change.getTitle().isEmpty() && change.getNs() == 0) {
-					long d = ++i;
-					urls.add(change);
-					WikidataChangesFetcher.printPercentage(d, changes.size(), "fetch: " + urls.size(), true);
+			try (RecentChangesIterator changes = fetcher.getChanges(Date.from(inst), 500, true)) {
+				while (changes.hasNext()) {
+					Change change = changes.next();
+					if (!change.getTitle().isEmpty() && change.getNs() == 0) {
+						urls.add(change.getTitle());
+					}
 				}
-
 			}
+			System.out.println(); // percentage
 
 			inst = now;
 			if (urls.size() < minLength) {
@@ -225,18 +262,25 @@ public class WikidataChangesUpdater {
 
 			tool.log("begin update with " + urls.size() + " urls");
 
+			// the batches are downloaded before the updates, null to download each page
+			Map<String, byte[]> batchPages = batcher == null ? null : batcher.download(urls.stream().toList());
+			if (!retry.getRetries().isEmpty()) {
+				tool.log("retries by status: " + retry.summary());
+			}
+
 			record UpdateData(Collection<Statement> toAdd, Collection<Statement> toRemove) {
 			}
 
 			List<? extends Future<UpdateData>> futures = urls.stream()
-					.map(change -> pool.submit(() -> {
-						final String qid = change.getTitle();
+					.map(qid -> pool.submit(() -> {
 						String lastQuery = null;
 						try {
 
 							String baseURI = remoteServer + qid;
 
-							byte[] file = fetcher.downloadPage(new URL(baseURI + ".ttl?flavor=dump"), urlHeader, 10, 500, true);
+							byte[] file = batchPages != null
+									? batchPages.get(qid)
+									: engine.downloadPage(URI.create(baseURI + ".ttl?flavor=dump"), true);
 
 							Collection<Statement> lstNew = new HashSet<>();
 
@@ -315,7 +359,7 @@ public class WikidataChangesUpdater {
 
 							if (urls.size() < 10 || dc % (urls.size() / 10) == 0) {
 								synchronized (logLock) {
-									WikidataChangesFetcher.printPercentage(dc, urls.size(), "fetch: " + urls.size(), true);
+									WikidataChangesFetcher.printPercentage(dc, urls.size(), "fetch: " + urls.size() + " " + engine.getGovernor().status(), true);
 								}
 							}
 
@@ -1,9 +1,11 @@
 package com.the_qa_company.wikidatachanges.api;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 
 @Data
+@JsonIgnoreProperties(ignoreUnknown = true)
 public class ApiResult {
 	private String batchcomplete;
 	@JsonProperty("continue")
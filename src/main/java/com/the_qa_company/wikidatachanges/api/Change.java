@@ -1,5 +1,6 @@
 package com.the_qa_company.wikidatachanges.api;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
 import lombok.Data;
 
 @Data
@@ -7,4 +8,10 @@ public class Change {
 	private String type;
 	private long ns;
 	private String title;
+	private long rcid;
+	private long pageid;
+	private long revid;
+	@JsonProperty("old_revid")
+	private long oldRevid;
+	private String timestamp;
 }
@@ -13,6 +13,16 @@ public class Continue {
 	private String continueOpt;
 
 	public Date getRcContinueDate() {
+		return parseRcContinueDate(rccontinue);
+	}
+
+	/**
+	 * parse the date of a rccontinue value
+	 *
+	 * @param rccontinue the rccontinue value
+	 * @return date
+	 */
+	public static Date parseRcContinueDate(String rccontinue) {
 		// 2022 07 05 08 35 02
 
 		int year = Integer.parseInt(rccontinue, 0, 4, 10);
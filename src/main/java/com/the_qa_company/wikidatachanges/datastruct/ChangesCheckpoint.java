@@ -0,0 +1,99 @@
+package com.the_qa_company.wikidatachanges.datastruct;
+
+import com.the_qa_company.qendpoint.core.exceptions.CRCException;
+import com.the_qa_company.qendpoint.core.listener.ProgressListener;
+import com.the_qa_company.qendpoint.core.util.crc.CRC32;
+import com.the_qa_company.qendpoint.core.util.crc.CRCInputStream;
+import com.the_qa_company.qendpoint.core.util.crc.CRCOutputStream;
+import com.the_qa_company.qendpoint.core.util.io.IOUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Checkpoint of a change fetch, contains the rccontinue cursor of each time window and the manifest of the listed
+ * titles, used to resume an interrupted fetch.
+ *
+ * @param end      the date to stop the fetch
+ * @param shards   the time windows
+ * @param manifest the listed titles
+ */
+public record ChangesCheckpoint(Date end, List<Shard> shards, QidSet manifest) {
+	private static final byte[] COOKIE = "$WCkP0\n\r".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Time window of the checkpoint
+	 *
+	 * @param start  the newest date of the window
+	 * @param end    the oldest date of the window
+	 * @param cursor the rccontinue value of the page to read, null to start from the start date
+	 * @param done   if all the changes of the window were listed
+	 */
+	public record Shard(Date start, Date end, String cursor, boolean done) {
+	}
+
+	/**
+	 * read a checkpoint file
+	 *
+	 * @param path the file
+	 * @return the checkpoint
+	 * @throws IOException read error or bad file
+	 */
+	public static ChangesCheckpoint read(Path path) throws IOException {
+		try (CRCInputStream is = new CRCInputStream(new BufferedInputStream(Files.newInputStream(path)), new CRC32())) {
+			if (!Arrays.equals(COOKIE, is.readNBytes(COOKIE.length))) {
+				throw new IOException("Bad cookie");
+			}
+			Date end = new Date(IOUtil.readLong(is));
+			long count = IOUtil.readLong(is);
+			ProgressListener pl = ProgressListener.ignore();
+			List<Shard> shards = new ArrayList<>();
+			for (long i = 0; i < count; i++) {
+				Date start = new Date(IOUtil.readLong(is));
+				Date shardEnd = new Date(IOUtil.readLong(is));
+				boolean done = is.read() != 0;
+				byte[] cursor = IOUtil.readSizedBuffer(is, pl);
+				shards.add(new Shard(start, shardEnd, cursor.length == 0 ? null : new String(cursor, StandardCharsets.UTF_8), done));
+			}
+			QidSet manifest = QidSet.load(is);
+			if (!is.readCRCAndCheck()) {
+				throw new CRCException("Bad checkpoint crc");
+			}
+			return new ChangesCheckpoint(end, shards, manifest);
+		}
+	}
+
+	/**
+	 * write the checkpoint, the previous file is replaced once the new one is fully written
+	 *
+	 * @param path the file
+	 * @throws IOException write error
+	 */
+	public void write(Path path) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (CRCOutputStream os = new CRCOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)), new CRC32())) {
+			os.write(COOKIE);
+			IOUtil.writeLong(os, end.getTime());
+			IOUtil.writeLong(os, shards.size());
+			ProgressListener pl = ProgressListener.ignore();
+			for (Shard shard : shards) {
+				IOUtil.writeLong(os, shard.start().getTime());
+				IOUtil.writeLong(os, shard.end().getTime());
+				os.write(shard.done() ? 1 : 0);
+				IOUtil.writeSizedBuffer(os, shard.cursor() == null ? new byte[0] : shard.cursor().getBytes(StandardCharsets.UTF_8), pl);
+			}
+			manifest.save(os);
+			os.writeCRC();
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
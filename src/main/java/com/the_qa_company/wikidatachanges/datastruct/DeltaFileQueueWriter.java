@@ -0,0 +1,193 @@
+package com.the_qa_company.wikidatachanges.datastruct;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Write the entries of a delta file from multiple threads, the entries are handed over to a single writer thread with
+ * a bounded queue and written by batches, the CRC and the file writes aren't done by the producers. After a failure,
+ * the writer should be aborted and not closed. {@link #sync()} waits for the queued entries to be on the disk.
+ */
+public class DeltaFileQueueWriter implements Closeable {
+	// synced: released once the previous entries are on the disk, null for a page entry
+	private record Entry(String name, byte[] buffer, CountDownLatch synced) {
+	}
+
+	private static final Entry END = new Entry("", new byte[0], null);
+
+	private final DeltaFileWriter writer;
+	private final BlockingQueue<Entry> queue;
+	private final Thread thread;
+	private volatile Throwable failure;
+	private volatile boolean aborted;
+	private volatile long written;
+	private volatile long synced;
+
+	/**
+	 * create a queue writer and start its writer thread
+	 *
+	 * @param writer   the delta file writer, only used by the writer thread until the close
+	 * @param capacity the maximum number of entries waiting in the queue
+	 */
+	public DeltaFileQueueWriter(DeltaFileWriter writer, int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity can't be negative or zero! " + capacity);
+		}
+		this.writer = writer;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		thread = new Thread(() -> run(capacity), "DeltaFileWriter");
+		// a failed producer doesn't keep the JVM alive
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void run(int capacity) {
+		List<Entry> batch = new ArrayList<>(capacity);
+		boolean end = false;
+		while (!end && !aborted) {
+			try {
+				batch.add(queue.take());
+				queue.drainTo(batch, capacity);
+				for (Entry entry : batch) {
+					if (entry == END) {
+						end = true;
+						break;
+					}
+					if (entry.synced() != null) {
+						if (failure == null && !aborted) {
+							synced = writer.sync();
+						}
+						entry.synced().countDown();
+					} else if (failure == null && !aborted) {
+						writer.write(entry.name(), entry.buffer());
+						written++;
+					}
+				}
+			} catch (Throwable t) {
+				// keep reading the queue to release the producers
+				if (failure == null && !aborted) {
+					failure = t;
+				}
+			}
+			// release the syncs of a failed batch
+			batch.stream().map(Entry::synced).filter(Objects::nonNull).forEach(CountDownLatch::countDown);
+			batch.clear();
+		}
+	}
+
+	/**
+	 * add an entry to the queue, wait if the queue is full
+	 *
+	 * @param name   the entry name, the page file name
+	 * @param buffer the compressed page, empty for a deleted entity
+	 * @throws IOException          previous write error of the writer thread
+	 * @throws InterruptedException interruption while waiting for the queue
+	 */
+	public void write(String name, byte[] buffer) throws IOException, InterruptedException {
+		checkFailure();
+		if (aborted) {
+			throw new IOException("The delta file writer was aborted");
+		}
+		queue.put(new Entry(name, buffer, null));
+	}
+
+	/**
+	 * wait for the writer thread to write the queued entries and force them to the disk
+	 *
+	 * @return the number of entries of the file on the disk
+	 * @throws IOException          write error of the writer thread
+	 * @throws InterruptedException interruption while waiting for the writer thread
+	 * @see DeltaFileWriter#sync()
+	 */
+	public long sync() throws IOException, InterruptedException {
+		checkFailure();
+		if (aborted) {
+			throw new IOException("The delta file writer was aborted");
+		}
+		CountDownLatch latch = new CountDownLatch(1);
+		queue.put(new Entry("", new byte[0], latch));
+		latch.await();
+		checkFailure();
+		if (aborted) {
+			throw new IOException("The delta file writer was aborted");
+		}
+		return synced;
+	}
+
+	/**
+	 * @return the number of entries written by the writer thread
+	 */
+	public long getWritten() {
+		return written;
+	}
+
+	/**
+	 * write the queued entries and close the delta file writer, the delta file writer is aborted if an entry wasn't
+	 * written
+	 *
+	 * @throws IOException write error
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			queue.put(END);
+			thread.join();
+		} catch (InterruptedException e) {
+			aborted = true;
+			thread.interrupt();
+			throw new InterruptedIOException("Interrupted while closing the delta file writer");
+		} finally {
+			if (!thread.isAlive()) {
+				if (failure == null) {
+					writer.close();
+				} else {
+					writer.abort();
+				}
+			}
+		}
+		checkFailure();
+	}
+
+	/**
+	 * stop the writer thread without writing the queued entries and abort the delta file writer, to call instead of
+	 * {@link #close()} after a failure
+	 *
+	 * @throws IOException close or delete error
+	 * @see DeltaFileWriter#abort()
+	 */
+	public void abort() throws IOException {
+		aborted = true;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while aborting the delta file writer");
+		} finally {
+			// release the producers waiting for the queue
+			List<Entry> dropped = new ArrayList<>();
+			queue.drainTo(dropped);
+			dropped.stream().map(Entry::synced).filter(Objects::nonNull).forEach(CountDownLatch::countDown);
+			if (!thread.isAlive()) {
+				writer.abort();
+			}
+		}
+	}
+
+	private void checkFailure() throws IOException {
+		Throwable t = failure;
+		if (t != null) {
+			if (t instanceof IOException ioe) {
+				throw ioe;
+			}
+			throw new IOException("Can't write delta file entry", t);
+		}
+	}
+}
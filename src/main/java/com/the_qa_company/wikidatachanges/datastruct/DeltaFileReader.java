@@ -0,0 +1,533 @@
+package com.the_qa_company.wikidatachanges.datastruct;
+
+import com.the_qa_company.qendpoint.core.exceptions.CRCException;
+import com.the_qa_company.qendpoint.core.listener.ProgressListener;
+import com.the_qa_company.qendpoint.core.util.crc.CRC32;
+import com.the_qa_company.qendpoint.core.util.crc.CRC8;
+import com.the_qa_company.qendpoint.core.util.crc.CRCInputStream;
+import com.the_qa_company.qendpoint.core.util.io.IOUtil;
+import com.the_qa_company.wikidatachanges.api.RDFFlavor;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reader of the delta files, the versions 0 (sequential), 1 (with index footer) and 2 (with page encoding) are
+ * supported. The index of a version 1 file is memory mapped, the entries can be found by name or read by index ranges. The methods are thread
+ * safe, the file is read with positional reads.
+ *
+ * @see DeltaFileUtils for the format
+ */
+public class DeltaFileReader implements Closeable {
+	/**
+	 * delta file entry
+	 *
+	 * @param name       the entry name, the page file name
+	 * @param buffer     the compressed page, empty for a deleted entity
+	 * @param encoding   the page encoding
+	 * @param dictionary the deflate dictionary of the page for the dictionary encoding, null otherwise
+	 */
+	public record Entry(String name, byte[] buffer, int encoding, byte[] dictionary) {
+		/**
+		 * entry of a page stored as downloaded
+		 *
+		 * @param name   the entry name, the page file name
+		 * @param buffer the compressed page, empty for a deleted entity
+		 */
+		public Entry(String name, byte[] buffer) {
+			this(name, buffer, DeltaFileUtils.ENCODING_DOWNLOADED, null);
+		}
+
+		/**
+		 * @return the entity title of the entry
+		 */
+		public String title() {
+			int ext = name.lastIndexOf('.');
+			return ext == -1 ? name : name.substring(0, ext);
+		}
+
+		/**
+		 * @return if the entity was deleted
+		 */
+		public boolean deleted() {
+			return buffer.length == 0;
+		}
+
+		/**
+		 * open the uncompressed page, empty for a deleted entity, the triple pages are written as N-Triples
+		 *
+		 * @return stream
+		 * @throws IOException inflate error
+		 */
+		public InputStream openPage() throws IOException {
+			if (deleted()) {
+				return new ByteArrayInputStream(buffer);
+			}
+			if (encoding == DeltaFileUtils.ENCODING_DICTIONARY) {
+				return new ByteArrayInputStream(DeltaFileUtils.inflate(buffer, dictionary));
+			}
+			if (encoding == DeltaFileUtils.ENCODING_TRIPLES) {
+				return new ByteArrayInputStream(TriplePage.toNTriples(TriplePage.decode(buffer)).getBytes(StandardCharsets.UTF_8));
+			}
+			// the pages are stored with the content encoding of the server, gzip in practice
+			if (buffer.length > 2 && (buffer[0] & 0xFF) == 0x1f && (buffer[1] & 0xFF) == 0x8b) {
+				return new GZIPInputStream(new ByteArrayInputStream(buffer));
+			}
+			return new ByteArrayInputStream(buffer);
+		}
+	}
+
+	/**
+	 * entry consumer
+	 */
+	@FunctionalInterface
+	public interface EntryConsumer {
+		/**
+		 * consume an entry
+		 *
+		 * @param entry the entry
+		 * @throws Exception consumer error
+		 */
+		void accept(Entry entry) throws Exception;
+	}
+
+	/**
+	 * open a delta file
+	 *
+	 * @param path the file
+	 * @return reader
+	 * @throws IOException read error or bad file
+	 */
+	public static DeltaFileReader open(Path path) throws IOException {
+		return open(path, -1);
+	}
+
+	/**
+	 * open an unfinished delta file, the entries are read in the order of the file without the data CRC and the index
+	 *
+	 * @param path the file
+	 * @param urls the number of written entries, the following bytes are ignored
+	 * @return reader
+	 * @throws IOException read error or bad file
+	 * @see DeltaFileWriter#sync()
+	 */
+	public static DeltaFileReader openPart(Path path, long urls) throws IOException {
+		if (urls < 0) {
+			throw new IllegalArgumentException("urls can't be negative! " + urls);
+		}
+		return open(path, urls);
+	}
+
+	private static DeltaFileReader open(Path path, long partUrls) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			return new DeltaFileReader(path, channel, partUrls);
+		} catch (Throwable t) {
+			channel.close();
+			throw t;
+		}
+	}
+
+	private final Path path;
+	private final FileChannel channel;
+	private final int version;
+	private final long urls;
+	private final Instant start;
+	private final Instant end;
+	private final RDFFlavor flavor;
+	private final int encoding;
+	// unfinished file, without data CRC and index
+	private final boolean partial;
+	// page dictionary, null without the dictionary encoding
+	private final byte[] dictionary;
+	// index, null for the version 0 and the unfinished files
+	private final long footer;
+	private final long indexSize;
+	private final ByteBuffer namePositions;
+	private final ByteBuffer recordOffsets;
+	private final ByteBuffer names;
+
+	private DeltaFileReader(Path path, FileChannel channel, long partUrls) throws IOException {
+		this.path = path;
+		this.channel = channel;
+		this.partial = partUrls >= 0;
+		int pageEncoding;
+		try (CRCInputStream is = new CRCInputStream(stream(0), new CRC8())) {
+			byte[] cookie = is.readNBytes(DeltaFileUtils.COOKIE.length);
+			if (!Arrays.equals(DeltaFileUtils.COOKIE, cookie)) {
+				throw new IOException("Bad cookie");
+			}
+			long headerUrls = IOUtil.readLong(is);
+			// the number of urls is written by the close
+			urls = partial ? partUrls : headerUrls;
+			start = DeltaFileUtils.readInstant(IOUtil.readLong(is));
+			end = DeltaFileUtils.readInstant(IOUtil.readLong(is));
+			int flavorId = is.read();
+			flavor = Arrays.stream(RDFFlavor.values())
+					.filter(f -> f.getId() == (byte) flavorId)
+					.findAny()
+					.orElseThrow(() -> new IOException("Unknown flavor id: " + flavorId));
+			version = is.read();
+			pageEncoding = is.read();
+			is.readNBytes(1);
+			if (!is.readCRCAndCheck()) {
+				throw new CRCException("Bad header crc");
+			}
+		}
+		if (version > DeltaFileUtils.VERSION) {
+			throw new IOException("Unsupported delta file version: " + version);
+		}
+		// the padding of the older versions
+		encoding = version >= 2 ? pageEncoding : DeltaFileUtils.ENCODING_DOWNLOADED;
+		if (encoding == DeltaFileUtils.ENCODING_DICTIONARY) {
+			// the dictionary starts the data part
+			try (InputStream is = stream(DeltaFileUtils.HEADER_SIZE)) {
+				dictionary = IOUtil.readSizedBuffer(is, ProgressListener.ignore());
+			}
+		} else if (encoding == DeltaFileUtils.ENCODING_DOWNLOADED || encoding == DeltaFileUtils.ENCODING_TRIPLES) {
+			dictionary = null;
+		} else {
+			throw new IOException("Unknown page encoding: " + encoding);
+		}
+
+		if (version == 0 || partial) {
+			footer = -1;
+			indexSize = 0;
+			namePositions = null;
+			recordOffsets = null;
+			names = null;
+			return;
+		}
+
+		long size = channel.size();
+		ByteBuffer trailer = ByteBuffer.allocate(Long.BYTES + DeltaFileUtils.INDEX_COOKIE.length)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		readFully(trailer, size - trailer.capacity());
+		trailer.flip();
+		footer = trailer.getLong();
+		byte[] cookie = new byte[DeltaFileUtils.INDEX_COOKIE.length];
+		trailer.get(cookie);
+		if (!Arrays.equals(DeltaFileUtils.INDEX_COOKIE, cookie) || footer < 0 || footer >= size) {
+			throw new IOException("Bad index trailer, incomplete file?");
+		}
+
+		// the IOUtil longs are little endian
+		ByteBuffer counts = ByteBuffer.allocate(2 * Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(counts, footer);
+		counts.flip();
+		indexSize = counts.getLong();
+		long namesSize = counts.getLong();
+		long positionsStart = footer + 2 * Long.BYTES;
+		long offsetsStart = positionsStart + (indexSize + 1) * Long.BYTES;
+		long namesStart = offsetsStart + indexSize * Long.BYTES;
+		namePositions = map(positionsStart, (indexSize + 1) * Long.BYTES);
+		recordOffsets = map(offsetsStart, indexSize * Long.BYTES);
+		names = map(namesStart, namesSize);
+	}
+
+	/**
+	 * @return the version of the file
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public long getUrls() {
+		return urls;
+	}
+
+	/**
+	 * @return the start of the changes
+	 */
+	public Instant getStart() {
+		return start;
+	}
+
+	/**
+	 * @return the end of the changes
+	 */
+	public Instant getEnd() {
+		return end;
+	}
+
+	/**
+	 * @return the flavor of the pages
+	 */
+	public RDFFlavor getFlavor() {
+		return flavor;
+	}
+
+	/**
+	 * @return the page encoding
+	 */
+	public int getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * @return the deflate dictionary of the pages, null without the dictionary encoding
+	 */
+	public byte[] getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * @return if the file has an index footer
+	 */
+	public boolean hasIndex() {
+		return footer != -1;
+	}
+
+	/**
+	 * @return the number of indexed entries, the names are unique in the index
+	 */
+	public long getIndexSize() {
+		return indexSize;
+	}
+
+	/**
+	 * read the entries in the order of the file, the data CRC of a finished file is checked at the end
+	 *
+	 * @param consumer the entry consumer
+	 * @throws Exception read or consumer error
+	 */
+	public void forEach(EntryConsumer consumer) throws Exception {
+		ProgressListener pl = ProgressListener.ignore();
+		try (CRCInputStream is = new CRCInputStream(stream(DeltaFileUtils.HEADER_SIZE), new CRC32())) {
+			if (dictionary != null) {
+				// read for the CRC
+				IOUtil.readSizedBuffer(is, pl);
+			}
+			for (long i = 0; i < urls; i++) {
+				String name = new String(IOUtil.readSizedBuffer(is, pl), StandardCharsets.UTF_8);
+				consumer.accept(new Entry(name, IOUtil.readSizedBuffer(is, pl), encoding, dictionary));
+			}
+			if (!partial && !is.readCRCAndCheck()) {
+				throw new CRCException("Bad data crc");
+			}
+		}
+	}
+
+	/**
+	 * read the entries of an index range, the index is sorted by name, the ranges can be read by different threads
+	 *
+	 * @param from     the first index, inclusive
+	 * @param to       the last index, exclusive
+	 * @param consumer the entry consumer
+	 * @throws Exception read or consumer error
+	 */
+	public void forEach(long from, long to, EntryConsumer consumer) throws Exception {
+		requireIndex();
+		if (from < 0 || to > indexSize || from > to) {
+			throw new IndexOutOfBoundsException("Bad range [" + from + ", " + to + ") for " + indexSize + " entries");
+		}
+		for (long i = from; i < to; i++) {
+			consumer.accept(read(getOffset(i)));
+		}
+	}
+
+	/**
+	 * read the last entry of each name, with the index (name order) if the file has one, otherwise all the entries
+	 * are read in the order of the file
+	 *
+	 * @param consumer the entry consumer
+	 * @throws Exception read or consumer error
+	 */
+	public void forEachLatest(EntryConsumer consumer) throws Exception {
+		if (hasIndex()) {
+			forEach(0, indexSize, consumer);
+		} else {
+			forEach(consumer);
+		}
+	}
+
+	/**
+	 * get the name of an indexed entry
+	 *
+	 * @param index the index
+	 * @return name
+	 */
+	public String getName(long index) {
+		return new String(nameBytes(index), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * get the file offset of an indexed entry
+	 *
+	 * @param index the index
+	 * @return offset
+	 */
+	public long getOffset(long index) {
+		requireIndex();
+		return recordOffsets.getLong(Math.toIntExact(index * Long.BYTES));
+	}
+
+	/**
+	 * find the index of an entry with a binary search
+	 *
+	 * @param name the entry name
+	 * @return the index, or (-(insertion point) - 1) if the name isn't in the index
+	 */
+	public long indexOf(String name) {
+		requireIndex();
+		byte[] key = name.getBytes(StandardCharsets.UTF_8);
+		long low = 0;
+		long high = indexSize - 1;
+		while (low <= high) {
+			long mid = (low + high) >>> 1;
+			int cmp = Arrays.compareUnsigned(nameBytes(mid), key);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	/**
+	 * find an entry, the index is used if the file has one, otherwise the file is read until the entry
+	 *
+	 * @param name the entry name
+	 * @return the entry, null if the file doesn't contain it
+	 * @throws IOException read error
+	 */
+	public Entry find(String name) throws IOException {
+		if (hasIndex()) {
+			long index = indexOf(name);
+			return index < 0 ? null : read(getOffset(index));
+		}
+		ProgressListener pl = ProgressListener.ignore();
+		Entry last = null;
+		try (InputStream is = stream(DeltaFileUtils.HEADER_SIZE)) {
+			for (long i = 0; i < urls; i++) {
+				String entryName = new String(IOUtil.readSizedBuffer(is, pl), StandardCharsets.UTF_8);
+				byte[] buffer = IOUtil.readSizedBuffer(is, pl);
+				if (entryName.equals(name)) {
+					last = new Entry(entryName, buffer);
+				}
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * read the entry at a file offset
+	 *
+	 * @param offset the offset
+	 * @return entry
+	 * @throws IOException read error
+	 */
+	public Entry read(long offset) throws IOException {
+		ProgressListener pl = ProgressListener.ignore();
+		try (InputStream is = stream(offset)) {
+			String name = new String(IOUtil.readSizedBuffer(is, pl), StandardCharsets.UTF_8);
+			return new Entry(name, IOUtil.readSizedBuffer(is, pl), encoding, dictionary);
+		}
+	}
+
+	/**
+	 * check the CRC and the order of the index
+	 *
+	 * @throws IOException bad index
+	 */
+	public void verifyIndex() throws IOException {
+		requireIndex();
+		long size = 2 * Long.BYTES + (2 * indexSize + 1) * Long.BYTES + names.capacity();
+		try (CRCInputStream is = new CRCInputStream(stream(footer), new CRC32())) {
+			byte[] buffer = new byte[1 << 16];
+			for (long read = 0; read < size; ) {
+				int len = is.readNBytes(buffer, 0, (int) Math.min(buffer.length, size - read));
+				if (len == 0) {
+					throw new IOException("Unexpected end of index");
+				}
+				read += len;
+			}
+			if (!is.readCRCAndCheck()) {
+				throw new CRCException("Bad index crc");
+			}
+		}
+		for (long i = 0; i < indexSize; i++) {
+			if (i > 0 && Arrays.compareUnsigned(nameBytes(i - 1), nameBytes(i)) >= 0) {
+				throw new IOException("Unsorted index at " + i);
+			}
+			long offset = getOffset(i);
+			if (offset < DeltaFileUtils.HEADER_SIZE || offset >= footer) {
+				throw new IOException("Bad offset at " + i + ": " + offset);
+			}
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private void requireIndex() {
+		if (!hasIndex()) {
+			throw new IllegalStateException("The delta file " + path + " has no index, version " + version);
+		}
+	}
+
+	private byte[] nameBytes(long index) {
+		requireIndex();
+		int startPos = (int) namePositions.getLong(Math.toIntExact(index * Long.BYTES));
+		int endPos = (int) namePositions.getLong(Math.toIntExact((index + 1) * Long.BYTES));
+		byte[] name = new byte[endPos - startPos];
+		names.get(startPos, name);
+		return name;
+	}
+
+	private ByteBuffer map(long position, long size) throws IOException {
+		if (size > Integer.MAX_VALUE) {
+			throw new IOException("Index of " + path + " too large to be mapped: " + size);
+		}
+		return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of " + path);
+			}
+		}
+	}
+
+	private InputStream stream(long position) {
+		return new BufferedInputStream(new InputStream() {
+			private long pos = position;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int r = channel.read(ByteBuffer.wrap(b, off, len), pos);
+				if (r > 0) {
+					pos += r;
+				}
+				return r;
+			}
+		}, 1 << 16);
+	}
+}
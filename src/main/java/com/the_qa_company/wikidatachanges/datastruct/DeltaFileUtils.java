@@ -1,24 +1,96 @@
 package com.the_qa_company.wikidatachanges.datastruct;
 
-import com.the_qa_company.qendpoint.core.exceptions.CRCException;
-import com.the_qa_company.qendpoint.core.listener.ProgressListener;
-import com.the_qa_company.qendpoint.core.util.crc.CRC32;
+import com.the_qa_company.qendpoint.core.options.HDTOptions;
 import com.the_qa_company.qendpoint.core.util.crc.CRC8;
-import com.the_qa_company.qendpoint.core.util.crc.CRCInputStream;
+import com.the_qa_company.qendpoint.core.util.crc.CRCOutputStream;
 import com.the_qa_company.qendpoint.core.util.io.IOUtil;
 import com.the_qa_company.wikidatachanges.WikidataChangesFetcher;
+import com.the_qa_company.wikidatachanges.api.RDFFlavor;
+import com.the_qa_company.wikidatachanges.utils.DeltaFileTriples;
+import com.the_qa_company.wikidatachanges.utils.HDTUtils;
 
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
 
+/**
+ * Delta file utilities, a delta file contains the compressed pages of the changed entities.
+ *
+ * <ul>
+ *     <li>header: cookie, urls, start, end, flavor, version (since 1), page encoding (since 2), padding, CRC8</li>
+ *     <li>data: page dictionary sized buffer (since 2, dictionary encoding), (name, page) sized buffers in download
+ *     order, CRC32</li>
+ *     <li>index footer (since 1): count, names size, count + 1 name positions, count record offsets, names sorted by
+ *     bytes, CRC32</li>
+ *     <li>trailer (since 1): footer offset, index cookie</li>
+ * </ul>
+ * <p>
+ * The version is written in the padding of the version 0 header, the version 1 files can be read as version 0 files.
+ * The pages are stored as downloaded (gzip), deflated with a dictionary shared by the pages of the file or as parsed
+ * triples (see {@link TriplePage}), only the files with the pages as downloaded are written with the version 1.
+ */
 public class DeltaFileUtils {
+	/**
+	 * delta file cookie
+	 */
+	public static final byte[] COOKIE = "$DltF0\n\r".getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * index trailer cookie
+	 */
+	public static final byte[] INDEX_COOKIE = "$DltI1\n\r".getBytes(StandardCharsets.US_ASCII);
+	/**
+	 * last version of the files, the files with the pages as downloaded are written with the version 1
+	 */
+	public static final int VERSION = 2;
+	/**
+	 * page encoding, the pages are stored with the content encoding of the server
+	 */
+	public static final int ENCODING_DOWNLOADED = 0;
+	/**
+	 * page encoding, the pages are raw deflate streams with the dictionary of the file
+	 */
+	public static final int ENCODING_DICTIONARY = 1;
+	/**
+	 * page encoding, the pages are the parsed triples of the entities
+	 *
+	 * @see TriplePage
+	 */
+	public static final int ENCODING_TRIPLES = 2;
+	/**
+	 * maximum size of a deflate dictionary, the size of the deflate window
+	 */
+	public static final int DICTIONARY_SIZE = 32 * 1024;
+	/**
+	 * size of the header with its CRC
+	 */
+	public static final long HEADER_SIZE = 8 + 8 + 8 + 8 + 1 + 3 + 1;
+	/**
+	 * base URI of the entity pages
+	 */
+	public static final String BASE_URI = "http://www.wikidata.org/entity/";
+
 	public static void main(String[] args) throws IOException {
 		if (args.length < 2) {
-			System.err.println("[check [file]]");
+			System.err.println("[check [file]|get [file] [title]|hdt [file] [output] (workers)|compact [log] (output)|z [file] [output] (samples)]");
 			return;
 		}
 
@@ -26,8 +98,52 @@ public class DeltaFileUtils {
 			case "check" -> {
 				checkFile(Path.of(args[1]));
 			}
+			case "get" -> {
+				if (args.length < 3) {
+					System.err.println("get [file] [title]");
+					return;
+				}
+				try (DeltaFileReader reader = DeltaFileReader.open(Path.of(args[1]))) {
+					DeltaFileReader.Entry entry = reader.find(args[2] + ".ttl");
+					if (entry == null) {
+						System.err.println("Can't find " + args[2] + " in " + args[1]);
+					} else if (entry.deleted()) {
+						System.err.println(args[2] + " was deleted");
+					} else {
+						try (InputStream is = entry.openPage()) {
+							is.transferTo(System.out);
+						}
+					}
+				}
+			}
+			case "hdt" -> {
+				if (args.length < 3) {
+					System.err.println("hdt [file] [output] (workers)");
+					return;
+				}
+				int workers = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+				Path output = Path.of(args[2]);
+				try (DeltaFileReader reader = DeltaFileReader.open(Path.of(args[1]))) {
+					// the HDT doesn't need the order of the file
+					HDTUtils.compressToHdt(
+							DeltaFileTriples.readTriples(reader, BASE_URI, workers, false),
+							BASE_URI, output.getFileName().toString(), output, HDTOptions.of()
+					);
+				}
+			}
+			case "compact" -> {
+				// without output, the segments of the log are replaced
+				Path output = args.length > 2 ? Path.of(args[2]) : null;
+				long kept = DeltaLog.compact(Path.of(args[1]), output);
+				System.out.println("Compacted " + args[1] + ", " + kept + " entries");
+			}
 			case "z" -> {
-
+				if (args.length < 3) {
+					System.err.println("z [file] [output] (samples)");
+					return;
+				}
+				int samples = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+				recompress(Path.of(args[1]), Path.of(args[2]), samples);
 			}
 			default -> {
 				System.err.println("Bad cfg");
@@ -35,42 +151,314 @@ public class DeltaFileUtils {
 			}
 		}
 	}
-	public static void checkFile(Path path) throws IOException {
-		try (CRCInputStream is = new CRCInputStream(new BufferedInputStream(Files.newInputStream(path)), new CRC8())) {
-			// read header
-			if (!Arrays.equals("$DltF0\n\r".getBytes(StandardCharsets.US_ASCII), is.readNBytes(8))) {
-				throw new IOException("Bad cookie");
+	/**
+	 * write the header of a delta file and its CRC
+	 *
+	 * @param os       the stream to write the header, the CRC of the stream is used for the header CRC
+	 * @param urls     the number of urls in the file
+	 * @param start    the start of the changes
+	 * @param end      the end of the changes
+	 * @param flavor   the flavor of the pages
+	 * @param encoding the page encoding
+	 * @throws IOException write error
+	 */
+	public static void writeHeader(CRCOutputStream os, long urls, Instant start, Instant end, RDFFlavor flavor, int encoding) throws IOException {
+		// cookie (8B)
+		os.write(COOKIE);
+		// urls (8B)
+		IOUtil.writeLong(os, urls);
+		// start (8B)
+		IOUtil.writeLong(os, start.getEpochSecond() * 1_000_000 + start.getNano() / 1000);
+		// end (8B)
+		IOUtil.writeLong(os, end.getEpochSecond() * 1_000_000 + end.getNano() / 1000);
+		// flavor (1B)
+		os.write(flavor.getId());
+		// version (1B), padding for the version 0
+		os.write(encoding == ENCODING_DOWNLOADED ? 1 : 2);
+		// page encoding (1B), padding for the version 1
+		os.write(encoding);
+		// padding (1B)
+		os.write(0);
+
+		// write header CRC
+		// CRC (1B)
+		os.writeCRC();
+	}
+
+	/**
+	 * rewrite the header of a written delta file, the data part isn't changed
+	 *
+	 * @param path     the delta file
+	 * @param urls     the number of urls in the file
+	 * @param start    the start of the changes
+	 * @param end      the end of the changes
+	 * @param flavor   the flavor of the pages
+	 * @param encoding the page encoding
+	 * @throws IOException write error
+	 */
+	public static void updateHeader(Path path, long urls, Instant start, Instant end, RDFFlavor flavor, int encoding) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		writeHeader(new CRCOutputStream(header, new CRC8()), urls, start, end, flavor, encoding);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.wrap(header.toByteArray());
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, buffer.position());
 			}
+		}
+	}
+
+	/**
+	 * recompress the pages of a delta file with a dictionary trained on a sample of the pages, the sizes and the
+	 * decoding speeds of the two files are printed
+	 *
+	 * @param input   the delta file
+	 * @param output  the recompressed delta file
+	 * @param samples the number of pages to train the dictionary
+	 * @throws IOException read or write error
+	 */
+	public static void recompress(Path input, Path output, int samples) throws IOException {
+		if (samples <= 0) {
+			throw new IllegalArgumentException("samples can't be negative or zero! " + samples);
+		}
+		try (DeltaFileReader reader = DeltaFileReader.open(input)) {
+			long urls = reader.getUrls();
+			long step = Math.max(1, urls / samples);
+			List<byte[]> pages = new ArrayList<>();
+			long[] read = {0};
+			reader.forEach(entry -> {
+				if (read[0]++ % step == 0 && !entry.deleted() && pages.size() < samples) {
+					try (InputStream is = entry.openPage()) {
+						pages.add(is.readAllBytes());
+					}
+				}
+			});
+			long trainStart = System.nanoTime();
+			byte[] dictionary = trainDictionary(pages, DICTIONARY_SIZE);
+			System.out.printf("dictionary of %d bytes trained on %d page(s) in %.2fs%n",
+					dictionary.length, pages.size(), (System.nanoTime() - trainStart) / 1e9);
+			pages.clear();
+
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			DeltaFileWriter writer = new DeltaFileWriter(output, reader.getStart(), reader.getEnd(), reader.getFlavor(), ENCODING_DICTIONARY, dictionary);
+			try {
+				read[0] = 0;
+				reader.forEach(entry -> {
+					WikidataChangesFetcher.printPercentage(read[0]++, urls, "recompressing", true);
+					if (entry.deleted()) {
+						writer.write(entry.name(), entry.buffer());
+						return;
+					}
+					try (InputStream is = entry.openPage()) {
+						writer.write(entry.name(), deflate(deflater, dictionary, is.readAllBytes()));
+					}
+				});
+			} catch (Throwable t) {
+				// no index for a partial file
+				writer.abort();
+				throw t;
+			} finally {
+				deflater.end();
+			}
+			writer.close();
+			System.out.println();
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+
+		long inputSize = Files.size(input);
+		long outputSize = Files.size(output);
+		System.out.printf("size: %d -> %d bytes (%.1f%%)%n", inputSize, outputSize, 100.0 * outputSize / inputSize);
+		benchDecode(input);
+		benchDecode(output);
+	}
+
+	private static void benchDecode(Path path) throws IOException {
+		try (DeltaFileReader reader = DeltaFileReader.open(path)) {
+			long[] size = {0, 0};
+			long start = System.nanoTime();
+			reader.forEach(entry -> {
+				try (InputStream is = entry.openPage()) {
+					size[0] += is.readAllBytes().length;
+				}
+				size[1]++;
+			});
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("decode %s: %d entries in %.2fs, %.0f entries/s, %.1f MB/s of pages%n",
+					path, size[1], seconds, size[1] / seconds, size[0] / seconds / 1024 / 1024);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
 
-			long urls = IOUtil.readLong(is);
-			long start = IOUtil.readLong(is);
-			long end = IOUtil.readLong(is);
-			int flavor = is.read();
+	/**
+	 * train a deflate dictionary, the lines and the tokens of the pages found in multiple pages are selected by saved
+	 * bytes
+	 *
+	 * @param pages the uncompressed sample pages
+	 * @param size  the maximum size of the dictionary
+	 * @return dictionary
+	 */
+	public static byte[] trainDictionary(List<byte[]> pages, int size) {
+		// number of pages containing a line or a token
+		Map<String, Integer> frequencies = new HashMap<>();
+		for (byte[] page : pages) {
+			Set<String> parts = new HashSet<>();
+			for (String line : new String(page, StandardCharsets.UTF_8).split("\n")) {
+				if (line.isBlank()) {
+					continue;
+				}
+				parts.add(line + "\n");
+				for (String token : line.trim().split("\\s+")) {
+					if (token.length() >= 4) {
+						parts.add(token);
+					}
+				}
+			}
+			for (String part : parts) {
+				frequencies.merge(part, 1, Integer::sum);
+			}
+		}
 
-			is.skipNBytes(3);
+		List<Map.Entry<String, Integer>> candidates = frequencies.entrySet().stream()
+				.filter(e -> e.getValue() > 1)
+				.sorted(Comparator.comparingLong((Map.Entry<String, Integer> e) -> (long) e.getValue() * e.getKey().length()).reversed())
+				.toList();
 
-			if (is.readCRCAndCheck()) {
-				throw new CRCException("Bad crc");
+		List<byte[]> selected = new ArrayList<>();
+		StringBuilder content = new StringBuilder();
+		int used = 0;
+		for (Map.Entry<String, Integer> candidate : candidates) {
+			String part = candidate.getKey();
+			byte[] bytes = part.getBytes(StandardCharsets.UTF_8);
+			if (used + bytes.length > size) {
+				continue;
+			}
+			if (content.indexOf(part) != -1) {
+				// already in a selected line
+				continue;
 			}
+			selected.add(bytes);
+			content.append(part);
+			used += bytes.length;
+			if (size - used < 4) {
+				break;
+			}
+		}
 
-			is.setCRC(new CRC32());
+		// the closest matches have the cheapest distances, the best parts are at the end of the dictionary
+		ByteArrayOutputStream dictionary = new ByteArrayOutputStream(used);
+		for (int i = selected.size() - 1; i >= 0; i--) {
+			dictionary.writeBytes(selected.get(i));
+		}
+		return dictionary.toByteArray();
+	}
 
-			ProgressListener pl = ProgressListener.ignore();
-			try {
-				for (long i = 0; i < urls; i++) {
-					// name
-					IOUtil.readSizedBuffer(is, pl);
-					// buffer
-					IOUtil.readSizedBuffer(is, pl);
+	/**
+	 * deflate a page with a dictionary
+	 *
+	 * @param deflater   raw deflater, reset before the compression
+	 * @param dictionary the dictionary
+	 * @param page       the uncompressed page
+	 * @return raw deflate stream
+	 */
+	public static byte[] deflate(Deflater deflater, byte[] dictionary, byte[] page) {
+		deflater.reset();
+		deflater.setDictionary(dictionary);
+		deflater.setInput(page);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(page.length / 4 + 16);
+		byte[] buffer = new byte[1 << 14];
+		while (!deflater.finished()) {
+			out.write(buffer, 0, deflater.deflate(buffer));
+		}
+		return out.toByteArray();
+	}
 
-					WikidataChangesFetcher.printPercentage(i, urls, "reading files", true);
+	/**
+	 * inflate a page deflated with a dictionary
+	 *
+	 * @param data       raw deflate stream
+	 * @param dictionary the dictionary
+	 * @return the uncompressed page
+	 * @throws IOException bad deflate stream
+	 */
+	public static byte[] inflate(byte[] data, byte[] dictionary) throws IOException {
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setDictionary(dictionary);
+			inflater.setInput(data);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+			byte[] buffer = new byte[1 << 14];
+			while (!inflater.finished()) {
+				int len = inflater.inflate(buffer);
+				if (len == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new EOFException("Unexpected end of deflate stream");
 				}
-			} catch (Throwable t) {
+				out.write(buffer, 0, len);
+			}
+			return out.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException("Bad deflate stream", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * gzip a page
+	 *
+	 * @param data the page
+	 * @return gzip stream
+	 * @throws IOException compression error
+	 */
+	public static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4);
+		try (GZIPOutputStream os = new GZIPOutputStream(out)) {
+			os.write(data);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * read a time written in a delta file header
+	 *
+	 * @param micros the microseconds since the epoch
+	 * @return instant
+	 */
+	public static Instant readInstant(long micros) {
+		return Instant.ofEpochSecond(Math.floorDiv(micros, 1_000_000), Math.floorMod(micros, 1_000_000) * 1000L);
+	}
+
+	/**
+	 * check the CRCs of a delta file and the order of its index
+	 *
+	 * @param path the delta file
+	 * @throws IOException read error or bad file
+	 */
+	public static void checkFile(Path path) throws IOException {
+		try (DeltaFileReader reader = DeltaFileReader.open(path)) {
+			long urls = reader.getUrls();
+			System.out.println("version " + reader.getVersion() + ", " + urls + " url(s), "
+			                   + reader.getStart() + " -> " + reader.getEnd() + ", flavor " + reader.getFlavor().getTitle()
+			                   + ", page encoding " + reader.getEncoding());
+			long[] read = {0};
+			try {
+				reader.forEach(entry -> WikidataChangesFetcher.printPercentage(read[0]++, urls, "reading files", true));
+			} catch (IOException e) {
 				System.out.println();
-				throw t;
+				throw e;
+			} catch (Exception e) {
+				System.out.println();
+				throw new IOException(e);
 			}
-			if (!is.readCRCAndCheck()) {
-				throw new CRCException("Bad 32 crc");
+			System.out.println();
+			if (reader.hasIndex()) {
+				reader.verifyIndex();
+				System.out.println("index of " + reader.getIndexSize() + " name(s) checked");
 			}
 		}
 	}
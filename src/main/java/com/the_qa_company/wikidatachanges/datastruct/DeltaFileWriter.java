@@ -0,0 +1,267 @@
+package com.the_qa_company.wikidatachanges.datastruct;
+
+import com.the_qa_company.qendpoint.core.listener.ProgressListener;
+import com.the_qa_company.qendpoint.core.util.crc.CRC32;
+import com.the_qa_company.qendpoint.core.util.crc.CRC8;
+import com.the_qa_company.qendpoint.core.util.crc.CRCOutputStream;
+import com.the_qa_company.qendpoint.core.util.io.IOUtil;
+import com.the_qa_company.wikidatachanges.api.RDFFlavor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Writer of a delta file, the entries are written in the order of the calls and the index
+ * footer is written when the writer is closed. The entries are buffered and written into the file channel by batches.
+ * After a failure, the writer should be aborted and not closed, the file is deleted and not finalised with a partial
+ * index. The writer isn't thread safe, see {@link DeltaFileQueueWriter} to write from multiple threads.
+ *
+ * @see DeltaFileUtils for the format
+ */
+public class DeltaFileWriter implements Closeable {
+	private static final int BATCH_SIZE = 1 << 20;
+
+	private final Path path;
+	private volatile Instant start;
+	private final Instant end;
+	private final RDFFlavor flavor;
+	private final int encoding;
+	private final byte[] dictionary;
+	private final FileChannel channel;
+	private final BatchBuffer buffer = new BatchBuffer();
+	private final CRCOutputStream os;
+	private long written;
+	private final List<byte[]> names = new ArrayList<>();
+	private long[] offsets = new long[1024];
+	private final ProgressListener pl = ProgressListener.ignore();
+
+	/**
+	 * create a delta file
+	 *
+	 * @param path   the file
+	 * @param start  the start of the changes
+	 * @param end    the end of the changes
+	 * @param flavor the flavor of the pages
+	 * @throws IOException write error
+	 */
+	public DeltaFileWriter(Path path, Instant start, Instant end, RDFFlavor flavor) throws IOException {
+		this(path, start, end, flavor, DeltaFileUtils.ENCODING_DOWNLOADED, null);
+	}
+
+	/**
+	 * create a delta file with a page encoding, the pages are written already encoded
+	 *
+	 * @param path       the file
+	 * @param start      the start of the changes
+	 * @param end        the end of the changes
+	 * @param flavor     the flavor of the pages
+	 * @param encoding   the page encoding
+	 * @param dictionary the deflate dictionary of the pages for the dictionary encoding, null otherwise
+	 * @throws IOException write error
+	 * @see DeltaFileUtils#deflate(java.util.zip.Deflater, byte[], byte[])
+	 * @see TriplePage#encode(java.util.List)
+	 */
+	public DeltaFileWriter(Path path, Instant start, Instant end, RDFFlavor flavor, int encoding, byte[] dictionary) throws IOException {
+		if ((encoding == DeltaFileUtils.ENCODING_DICTIONARY) != (dictionary != null)) {
+			throw new IllegalArgumentException("A dictionary is required by the dictionary encoding only, encoding: " + encoding);
+		}
+		this.path = path;
+		this.start = start;
+		this.end = end;
+		this.flavor = flavor;
+		this.encoding = encoding;
+		this.dictionary = dictionary;
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		os = new CRCOutputStream(buffer, new CRC8());
+		// the number of urls isn't known before the end, it is updated by close
+		DeltaFileUtils.writeHeader(os, 0, start, end, flavor, encoding);
+		os.setCRC(new CRC32());
+		if (dictionary != null) {
+			IOUtil.writeSizedBuffer(os, dictionary, pl);
+		}
+	}
+
+	/**
+	 * write an entry
+	 *
+	 * @param name   the entry name, the page file name
+	 * @param buffer the compressed page, empty for a deleted entity
+	 * @throws IOException write error
+	 */
+	public void write(String name, byte[] buffer) throws IOException {
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		int index = names.size();
+		if (index == offsets.length) {
+			offsets = Arrays.copyOf(offsets, offsets.length * 2);
+		}
+		offsets[index] = position();
+		names.add(nameBytes);
+		IOUtil.writeSizedBuffer(os, nameBytes, pl);
+		IOUtil.writeSizedBuffer(os, buffer, pl);
+		flushFull();
+	}
+
+	/**
+	 * write the buffered entries into the file
+	 *
+	 * @throws IOException write error
+	 */
+	public void flush() throws IOException {
+		ByteBuffer batch = buffer.toByteBuffer();
+		while (batch.hasRemaining()) {
+			channel.write(batch);
+		}
+		written += buffer.size();
+		buffer.reset();
+	}
+
+	/**
+	 * write the buffered entries and force them to the disk, the written entries can be read from the unfinished file
+	 *
+	 * @return the number of written entries
+	 * @throws IOException write error
+	 * @see DeltaFileReader#openPart(Path, long)
+	 */
+	public long sync() throws IOException {
+		flush();
+		channel.force(false);
+		return names.size();
+	}
+
+	/**
+	 * set the start of the changes written by the close, for a file appended during multiple captures
+	 *
+	 * @param start the start of the changes
+	 */
+	public void setStart(Instant start) {
+		this.start = start;
+	}
+
+	/**
+	 * @return the start of the changes
+	 */
+	public Instant getStart() {
+		return start;
+	}
+
+	/**
+	 * @return the number of written entries
+	 */
+	public long getCount() {
+		return names.size();
+	}
+
+	/**
+	 * write the data CRC, the index footer and the header with the number of entries
+	 *
+	 * @throws IOException write error
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			os.writeCRC();
+			writeFooter();
+			flush();
+		} finally {
+			channel.close();
+		}
+		DeltaFileUtils.updateHeader(path, names.size(), start, end, flavor, encoding);
+	}
+
+	/**
+	 * close the file without the CRC, the index footer and the number of entries and delete it, to call instead of
+	 * {@link #close()} after a failure
+	 *
+	 * @throws IOException close or delete error
+	 */
+	public void abort() throws IOException {
+		try {
+			channel.close();
+		} finally {
+			Files.deleteIfExists(path);
+		}
+	}
+
+	private void writeFooter() throws IOException {
+		long footer = position();
+
+		// sort by name then by offset, only the last entry of a name is indexed
+		Integer[] order = new Integer[names.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, Comparator.<Integer, byte[]>comparing(names::get, Arrays::compareUnsigned)
+				.thenComparingLong(i -> offsets[i]));
+		List<Integer> indexed = new ArrayList<>(order.length);
+		for (int i = 0; i < order.length; i++) {
+			if (i + 1 < order.length && Arrays.equals(names.get(order[i]), names.get(order[i + 1]))) {
+				continue;
+			}
+			indexed.add(order[i]);
+		}
+
+		long namesSize = 0;
+		for (int i : indexed) {
+			namesSize += names.get(i).length;
+		}
+
+		os.setCRC(new CRC32());
+		IOUtil.writeLong(os, indexed.size());
+		IOUtil.writeLong(os, namesSize);
+		long position = 0;
+		for (int i : indexed) {
+			IOUtil.writeLong(os, position);
+			position += names.get(i).length;
+			flushFull();
+		}
+		IOUtil.writeLong(os, position);
+		for (int i : indexed) {
+			IOUtil.writeLong(os, offsets[i]);
+			flushFull();
+		}
+		for (int i : indexed) {
+			os.write(names.get(i));
+			flushFull();
+		}
+		os.writeCRC();
+
+		// trailer
+		IOUtil.writeLong(os, footer);
+		os.write(DeltaFileUtils.INDEX_COOKIE);
+	}
+
+	private void flushFull() throws IOException {
+		if (buffer.size() >= BATCH_SIZE) {
+			flush();
+		}
+	}
+
+	private long position() {
+		return written + buffer.size();
+	}
+
+	/**
+	 * buffer of the next batch, the bytes are written without copy
+	 */
+	private static class BatchBuffer extends ByteArrayOutputStream {
+		BatchBuffer() {
+			super(BATCH_SIZE + (1 << 16));
+		}
+
+		ByteBuffer toByteBuffer() {
+			return ByteBuffer.wrap(buf, 0, count);
+		}
+	}
+}
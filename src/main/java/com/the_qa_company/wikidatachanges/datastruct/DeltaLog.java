@@ -0,0 +1,377 @@
+package com.the_qa_company.wikidatachanges.datastruct;
+
+import com.the_qa_company.qendpoint.core.exceptions.CRCException;
+import com.the_qa_company.qendpoint.core.util.crc.CRC32;
+import com.the_qa_company.qendpoint.core.util.crc.CRCInputStream;
+import com.the_qa_company.qendpoint.core.util.crc.CRCOutputStream;
+import com.the_qa_company.qendpoint.core.util.io.IOUtil;
+import com.the_qa_company.wikidatachanges.api.RDFFlavor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Segmented log of delta files for a continuous capture, the changes are appended into the open segment, the segment
+ * is closed and a new one is opened at the end of a capture once it is too large or too old. A closed segment is a
+ * delta file with the time window of its captures (start: last capture, end: oldest change). The open segment is
+ * written in a part file, the entries of each ended capture are synced and counted in a captures file. The part file
+ * of an interrupted capture is closed as a segment with the entries of its ended captures, the next capture starts
+ * again from the last ended capture. A log is used by one thread, except {@link #append(String, byte[])}.
+ */
+public class DeltaLog implements Closeable {
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_EXT = ".df";
+	private static final String PART_EXT = ".part";
+	private static final String CAPTURES_EXT = ".captures";
+	private static final byte[] CAPTURES_COOKIE = "$DltC0\n\r".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * open a log, the part file of an interrupted capture is closed with the entries of its ended captures
+	 *
+	 * @param directory      the log directory
+	 * @param maxSegmentSize the size in bytes of the pages to close a segment
+	 * @param maxSegmentAge  the age of a segment to close it
+	 * @param flavor         the flavor of the pages, the same for all the segments
+	 * @param encoding       the page encoding of the new segments, the dictionary encoding isn't supported
+	 * @return log
+	 * @throws IOException read error or bad flavor
+	 */
+	public static DeltaLog open(Path directory, long maxSegmentSize, Duration maxSegmentAge, RDFFlavor flavor, int encoding) throws IOException {
+		if (maxSegmentSize <= 0) {
+			throw new IllegalArgumentException("maxSegmentSize can't be negative or zero! " + maxSegmentSize);
+		}
+		if (encoding == DeltaFileUtils.ENCODING_DICTIONARY) {
+			throw new IllegalArgumentException("The segments can't be written with a dictionary");
+		}
+		Files.createDirectories(directory);
+		try (DirectoryStream<Path> parts = Files.newDirectoryStream(directory, "*" + PART_EXT)) {
+			for (Path part : parts) {
+				Path captures = capturesOf(part);
+				if (Files.exists(captures)) {
+					recoverSegment(part, captures);
+				} else {
+					System.out.println("Removing the segment of an interrupted capture " + part);
+				}
+				Files.delete(part);
+				Files.deleteIfExists(captures);
+			}
+		}
+		// captures file of a closed segment
+		try (DirectoryStream<Path> captures = Files.newDirectoryStream(directory, "*" + PART_EXT + CAPTURES_EXT)) {
+			for (Path file : captures) {
+				Files.delete(file);
+			}
+		}
+		DeltaLog log = new DeltaLog(directory, maxSegmentSize, maxSegmentAge, flavor, encoding);
+		List<Path> segments = getSegments(directory);
+		if (!segments.isEmpty()) {
+			try (DeltaFileReader reader = DeltaFileReader.open(segments.get(segments.size() - 1))) {
+				if (reader.getFlavor() != flavor) {
+					throw new IOException("The log " + directory + " contains " + reader.getFlavor().getTitle()
+					                      + " pages, can't append " + flavor.getTitle() + " pages");
+				}
+				log.lastCapture = reader.getStart();
+			}
+			String name = segments.get(segments.size() - 1).getFileName().toString();
+			log.nextSegment = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXT.length())) + 1;
+		}
+		return log;
+	}
+
+	/**
+	 * get the closed segments of a log
+	 *
+	 * @param directory the log directory
+	 * @return the segments, from the oldest to the newest
+	 * @throws IOException read error
+	 */
+	public static List<Path> getSegments(Path directory) throws IOException {
+		List<Path> segments = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_EXT)) {
+			stream.forEach(segments::add);
+		}
+		// fixed width numbers
+		segments.sort(null);
+		return segments;
+	}
+
+	private static Path capturesOf(Path part) {
+		return part.resolveSibling(part.getFileName() + CAPTURES_EXT);
+	}
+
+	/**
+	 * close the ended captures of a part file into its segment, the entries of the interrupted capture are dropped
+	 *
+	 * @param part     the part file
+	 * @param captures the captures file of the part
+	 * @throws IOException read or write error
+	 */
+	private static void recoverSegment(Path part, Path captures) throws IOException {
+		long urls;
+		Instant capture;
+		try (CRCInputStream is = new CRCInputStream(new BufferedInputStream(Files.newInputStream(captures)), new CRC32())) {
+			if (!Arrays.equals(CAPTURES_COOKIE, is.readNBytes(CAPTURES_COOKIE.length))) {
+				throw new IOException("Bad cookie");
+			}
+			urls = IOUtil.readLong(is);
+			capture = DeltaFileUtils.readInstant(IOUtil.readLong(is));
+			if (!is.readCRCAndCheck()) {
+				throw new CRCException("Bad captures crc");
+			}
+		}
+		String name = part.getFileName().toString();
+		Path segment = part.resolveSibling(name.substring(0, name.length() - PART_EXT.length()));
+		Path tmp = part.resolveSibling(segment.getFileName() + ".tmp");
+		try (DeltaFileReader reader = DeltaFileReader.openPart(part, urls)) {
+			DeltaFileWriter writer = new DeltaFileWriter(tmp, capture, reader.getEnd(), reader.getFlavor(), reader.getEncoding(), null);
+			try {
+				reader.forEach(entry -> writer.write(entry.name(), entry.buffer()));
+			} catch (IOException | RuntimeException | Error e) {
+				writer.abort();
+				throw e;
+			} catch (Exception e) {
+				writer.abort();
+				throw new IOException(e);
+			}
+			writer.close();
+		}
+		// a crash before the removal of the part recovers it again
+		Files.move(tmp, segment, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		System.out.println("Closed the ended captures of an interrupted capture " + part + " into " + segment + " with " + urls + " entries");
+	}
+
+	/**
+	 * compact the segments of a log into one delta file, only the newest entry of each name is kept, the pages are
+	 * stored as downloaded if the segments don't share the same encoding
+	 *
+	 * @param directory the log directory
+	 * @param output    the delta file to write, null to replace the segments of the log
+	 * @return the number of kept entries
+	 * @throws IOException read or write error
+	 */
+	public static long compact(Path directory, Path output) throws IOException {
+		List<Path> segments = getSegments(directory);
+		if (segments.isEmpty()) {
+			throw new IOException("No segment in " + directory);
+		}
+		Path newest = segments.get(segments.size() - 1);
+		Path target = output != null ? output : newest.resolveSibling(newest.getFileName() + PART_EXT);
+
+		List<DeltaFileReader> readers = new ArrayList<>();
+		try {
+			for (Path segment : segments) {
+				readers.add(DeltaFileReader.open(segment));
+			}
+			DeltaFileReader oldestReader = readers.get(0);
+			DeltaFileReader newestReader = readers.get(readers.size() - 1);
+			int encoding = newestReader.getEncoding();
+			if (encoding == DeltaFileUtils.ENCODING_DICTIONARY
+			    || readers.stream().anyMatch(reader -> reader.getEncoding() != newestReader.getEncoding())) {
+				encoding = DeltaFileUtils.ENCODING_DOWNLOADED;
+			}
+			int targetEncoding = encoding;
+			Set<String> seen = new HashSet<>();
+			DeltaFileWriter writer = new DeltaFileWriter(target, newestReader.getStart(), oldestReader.getEnd(),
+					newestReader.getFlavor(), targetEncoding, null);
+			try {
+				for (int i = readers.size() - 1; i >= 0; i--) {
+					readers.get(i).forEachLatest(entry -> {
+						if (!seen.add(entry.name())) {
+							return;
+						}
+						if (entry.encoding() == targetEncoding || entry.deleted()) {
+							writer.write(entry.name(), entry.buffer());
+						} else {
+							// the segments can have different encodings, the page is stored as downloaded
+							try (InputStream is = entry.openPage()) {
+								writer.write(entry.name(), DeltaFileUtils.gzip(is.readAllBytes()));
+							}
+						}
+					});
+					System.out.println("compacted " + segments.get(i) + ", " + seen.size() + " entries");
+				}
+			} catch (IOException | RuntimeException | Error e) {
+				// no index for a partial file
+				writer.abort();
+				throw e;
+			} catch (Exception e) {
+				writer.abort();
+				throw new IOException(e);
+			}
+			writer.close();
+			if (output == null) {
+				// the newest segment is replaced first, a crash keeps the older segments, the newest entries win
+				Files.move(target, newest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				for (Path segment : segments.subList(0, segments.size() - 1)) {
+					Files.delete(segment);
+				}
+			}
+			return seen.size();
+		} finally {
+			for (DeltaFileReader reader : readers) {
+				reader.close();
+			}
+		}
+	}
+
+	private final Path directory;
+	private final long maxSegmentSize;
+	private final Duration maxSegmentAge;
+	private final RDFFlavor flavor;
+	private final int encoding;
+	private final AtomicLong segmentSize = new AtomicLong();
+	private Instant lastCapture;
+	private long nextSegment;
+	private DeltaFileWriter writer;
+	private DeltaFileQueueWriter queue;
+	private Path part;
+	private Instant opened;
+	private boolean capturing;
+
+	private DeltaLog(Path directory, long maxSegmentSize, Duration maxSegmentAge, RDFFlavor flavor, int encoding) {
+		this.directory = directory;
+		this.maxSegmentSize = maxSegmentSize;
+		this.maxSegmentAge = maxSegmentAge;
+		this.flavor = flavor;
+		this.encoding = encoding;
+	}
+
+	/**
+	 * @return the time of the last ended capture, null if the log is empty
+	 */
+	public Instant getLastCapture() {
+		return lastCapture;
+	}
+
+	/**
+	 * start a capture, a segment is opened if required
+	 *
+	 * @param from the oldest change of the capture
+	 * @throws IOException write error
+	 */
+	public void beginCapture(Instant from) throws IOException {
+		capturing = true;
+		if (queue != null) {
+			return;
+		}
+		part = directory.resolve(SEGMENT_PREFIX + "%012d".formatted(nextSegment) + SEGMENT_EXT + PART_EXT);
+		writer = new DeltaFileWriter(part, from, from, flavor, encoding, null);
+		queue = new DeltaFileQueueWriter(writer, 256);
+		segmentSize.set(0);
+		opened = Instant.now();
+	}
+
+	/**
+	 * append an entry to the open segment, can be called by multiple threads during a capture
+	 *
+	 * @param name   the entry name, the page file name
+	 * @param buffer the compressed page, empty for a deleted entity
+	 * @throws IOException          write error
+	 * @throws InterruptedException interruption
+	 */
+	public void append(String name, byte[] buffer) throws IOException, InterruptedException {
+		queue.write(name, buffer);
+		segmentSize.addAndGet(buffer.length);
+	}
+
+	/**
+	 * end a capture, the segment is closed if it is too large or too old, otherwise the entries of the capture are
+	 * synced and counted in the captures file of the segment
+	 *
+	 * @param capture the time of the capture, all the changes before it are in the log
+	 * @return if the segment was closed
+	 * @throws IOException          write error
+	 * @throws InterruptedException interruption while syncing the segment
+	 */
+	public boolean endCapture(Instant capture) throws IOException, InterruptedException {
+		writer.setStart(capture);
+		boolean close = segmentSize.get() >= maxSegmentSize || Duration.between(opened, Instant.now()).compareTo(maxSegmentAge) >= 0;
+		if (close) {
+			closeSegment();
+		} else {
+			writeCaptures(queue.sync(), capture);
+			lastCapture = capture;
+		}
+		capturing = false;
+		return close;
+	}
+
+	/**
+	 * close the open segment if any, if its last capture wasn't ended the segment is closed with the entries of its
+	 * ended captures
+	 *
+	 * @throws IOException write error
+	 */
+	@Override
+	public void close() throws IOException {
+		if (queue == null) {
+			return;
+		}
+		if (capturing) {
+			// the entries of the failed capture are incomplete, dropped as by open
+			abortSegment();
+		} else {
+			closeSegment();
+		}
+	}
+
+	private void writeCaptures(long urls, Instant capture) throws IOException {
+		Path captures = capturesOf(part);
+		Path tmp = captures.resolveSibling(captures.getFileName() + ".tmp");
+		try (CRCOutputStream os = new CRCOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)), new CRC32())) {
+			os.write(CAPTURES_COOKIE);
+			IOUtil.writeLong(os, urls);
+			IOUtil.writeLong(os, capture.getEpochSecond() * 1_000_000 + capture.getNano() / 1000);
+			os.writeCRC();
+		}
+		Files.move(tmp, captures, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void abortSegment() throws IOException {
+		Path captures = capturesOf(part);
+		try {
+			if (Files.exists(captures)) {
+				// the ended captures were synced, a failed recovery keeps the part file for the next open
+				recoverSegment(part, captures);
+				nextSegment++;
+			} else {
+				System.out.println("Removing the segment of an interrupted capture " + part);
+			}
+			queue.abort();
+			Files.deleteIfExists(captures);
+		} finally {
+			queue = null;
+			writer = null;
+			part = null;
+		}
+	}
+
+	private void closeSegment() throws IOException {
+		queue.close();
+		Path segment = directory.resolve(SEGMENT_PREFIX + "%012d".formatted(nextSegment) + SEGMENT_EXT);
+		Files.move(part, segment, StandardCopyOption.ATOMIC_MOVE);
+		Files.deleteIfExists(capturesOf(part));
+		System.out.println("Closed segment " + segment + " with " + writer.getCount() + " entries");
+		lastCapture = writer.getStart();
+		nextSegment++;
+		queue = null;
+		writer = null;
+		part = null;
+	}
+}
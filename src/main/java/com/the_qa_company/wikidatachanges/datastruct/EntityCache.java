@@ -0,0 +1,273 @@
+package com.the_qa_company.wikidatachanges.datastruct;
+
+import com.the_qa_company.qendpoint.core.exceptions.CRCException;
+import com.the_qa_company.qendpoint.core.listener.ProgressListener;
+import com.the_qa_company.qendpoint.core.util.crc.CRC32;
+import com.the_qa_company.qendpoint.core.util.crc.CRCInputStream;
+import com.the_qa_company.qendpoint.core.util.crc.CRCOutputStream;
+import com.the_qa_company.qendpoint.core.util.io.IOUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent cache of the entity pages, the pages are stored as received (with their content encoding) with the
+ * revision, the ETag and the Last-Modified date of the response to send conditional requests. The total size of the
+ * pages is bounded, the least recently used pages are evicted. The methods are thread safe.
+ */
+public class EntityCache {
+	private static final byte[] COOKIE = "$WEnC0\n\r".getBytes(StandardCharsets.US_ASCII);
+	private static final String INDEX = "index.bin";
+
+	/**
+	 * Cached page
+	 *
+	 * @param title        the entity title
+	 * @param revid        the revision of the page, 0 if unknown
+	 * @param etag         the ETag of the response, null if none
+	 * @param lastModified the Last-Modified date of the response, null if none
+	 * @param encoding     the content encoding of the stored page, empty for identity
+	 * @param size         the size of the stored page
+	 */
+	public record Entry(String title, long revid, String etag, String lastModified, String encoding, long size) {
+	}
+
+	/**
+	 * open a cache, the index is read if the directory contains one
+	 *
+	 * @param directory the cache directory
+	 * @param maxSize   maximum size of the stored pages in bytes
+	 * @return cache
+	 * @throws IOException read error or bad index
+	 */
+	public static EntityCache open(Path directory, long maxSize) throws IOException {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("maxSize can't be negative or zero! " + maxSize);
+		}
+		Files.createDirectories(directory);
+		EntityCache cache = new EntityCache(directory, maxSize);
+		Path index = directory.resolve(INDEX);
+		if (Files.exists(index)) {
+			try (CRCInputStream is = new CRCInputStream(new BufferedInputStream(Files.newInputStream(index)), new CRC32())) {
+				if (!Arrays.equals(COOKIE, is.readNBytes(COOKIE.length))) {
+					throw new IOException("Bad cookie");
+				}
+				long count = IOUtil.readLong(is);
+				// least recently used first
+				for (long i = 0; i < count; i++) {
+					Entry entry = new Entry(
+							readString(is),
+							IOUtil.readLong(is),
+							readNullableString(is),
+							readNullableString(is),
+							readString(is),
+							IOUtil.readLong(is)
+					);
+					cache.entries.put(entry.title(), entry);
+					cache.size += entry.size();
+				}
+				if (!is.readCRCAndCheck()) {
+					throw new CRCException("Bad entity cache crc");
+				}
+			}
+			cache.evict();
+		}
+		return cache;
+	}
+
+	private final Path directory;
+	private final long maxSize;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long size;
+	private long hits;
+	private long notModified;
+	private long misses;
+
+	private EntityCache(Path directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * get the entry of an entity, the entry becomes the most recently used
+	 *
+	 * @param title the entity title
+	 * @return entry, null if the entity isn't cached
+	 */
+	public synchronized Entry get(String title) {
+		return entries.get(title);
+	}
+
+	/**
+	 * read the stored page of an entry, the page can be removed by an eviction after the {@link #get(String)} call
+	 *
+	 * @param entry the entry
+	 * @return the stored page with its content encoding, null if the page was evicted
+	 * @throws IOException read error
+	 */
+	public byte[] read(Entry entry) throws IOException {
+		Path file = file(entry.title());
+		try {
+			return Files.readAllBytes(file);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * store a page, the least recently used pages are evicted if the cache is too large
+	 *
+	 * @param entry the entry of the page
+	 * @param page  the page with its content encoding
+	 * @throws IOException write error
+	 */
+	public void put(Entry entry, byte[] page) throws IOException {
+		Path file = file(entry.title());
+		Path tmp = directory.resolve(entry.title() + ".tmp" + Thread.currentThread().getId());
+		Files.write(tmp, page);
+		synchronized (this) {
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			Entry old = entries.put(entry.title(), entry);
+			if (old != null) {
+				size -= old.size();
+			}
+			size += entry.size();
+			evict();
+		}
+	}
+
+	/**
+	 * update the revision of a cached page after a not modified response
+	 *
+	 * @param title the entity title
+	 * @param revid the revision of the page, ignored if lower than the cached revision
+	 */
+	public synchronized void touch(String title, long revid) {
+		Entry entry = entries.get(title);
+		if (entry != null && entry.revid() < revid) {
+			entries.put(title, new Entry(title, revid, entry.etag(), entry.lastModified(), entry.encoding(), entry.size()));
+		}
+	}
+
+	/**
+	 * remove the page of a deleted entity
+	 *
+	 * @param title the entity title
+	 * @throws IOException delete error
+	 */
+	public synchronized void remove(String title) throws IOException {
+		Entry entry = entries.remove(title);
+		if (entry != null) {
+			size -= entry.size();
+			Files.deleteIfExists(file(title));
+		}
+	}
+
+	/**
+	 * write the index of the cache, the previous index is replaced once the new one is fully written
+	 *
+	 * @throws IOException write error
+	 */
+	public synchronized void write() throws IOException {
+		Path index = directory.resolve(INDEX);
+		Path tmp = directory.resolve(INDEX + ".tmp");
+		try (CRCOutputStream os = new CRCOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)), new CRC32())) {
+			os.write(COOKIE);
+			IOUtil.writeLong(os, entries.size());
+			for (Entry entry : entries.values()) {
+				writeString(os, entry.title());
+				IOUtil.writeLong(os, entry.revid());
+				writeString(os, entry.etag() == null ? "" : entry.etag());
+				writeString(os, entry.lastModified() == null ? "" : entry.lastModified());
+				writeString(os, entry.encoding());
+				IOUtil.writeLong(os, entry.size());
+			}
+			os.writeCRC();
+		}
+		Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * count a page read from the cache without request
+	 */
+	public synchronized void hit() {
+		hits++;
+	}
+
+	/**
+	 * count a page read from the cache after a not modified response
+	 */
+	public synchronized void notModified() {
+		notModified++;
+	}
+
+	/**
+	 * count a page downloaded
+	 */
+	public synchronized void miss() {
+		misses++;
+	}
+
+	/**
+	 * @return description of the cache usage
+	 */
+	public synchronized String summary() {
+		return entries.size() + " page(s), " + size / 1024 / 1024 + "MB, "
+				+ hits + " hit(s), " + notModified + " not modified, " + misses + " download(s)";
+	}
+
+	/**
+	 * @return the size of the stored pages
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	private void evict() throws IOException {
+		if (size <= maxSize) {
+			return;
+		}
+		List<String> evicted = new ArrayList<>();
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (size > maxSize && it.hasNext()) {
+			Entry entry = it.next().getValue();
+			it.remove();
+			size -= entry.size();
+			evicted.add(entry.title());
+		}
+		for (String title : evicted) {
+			Files.deleteIfExists(file(title));
+		}
+	}
+
+	private Path file(String title) {
+		return directory.resolve(title + ".page");
+	}
+
+	private static void writeString(OutputStream os, String s) throws IOException {
+		IOUtil.writeSizedBuffer(os, s.getBytes(StandardCharsets.UTF_8), ProgressListener.ignore());
+	}
+
+	private static String readString(InputStream is) throws IOException {
+		return new String(IOUtil.readSizedBuffer(is, ProgressListener.ignore()), StandardCharsets.UTF_8);
+	}
+
+	private static String readNullableString(InputStream is) throws IOException {
+		String s = readString(is);
+		return s.isEmpty() ? null : s;
+	}
+}
@@ -0,0 +1,215 @@
+package com.the_qa_company.wikidatachanges.datastruct;
+
+import com.the_qa_company.qendpoint.core.listener.ProgressListener;
+import com.the_qa_company.qendpoint.core.util.io.IOUtil;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Set of entity titles to de-duplicate the changes, the Q-ids are stored as bits indexed by their numeric part, the
+ * other titles and the Q-ids above {@link #MAX_ID} are stored in a fallback set. This class isn't thread safe.
+ */
+public class QidSet implements Iterable<String> {
+	/**
+	 * bound of the Q-ids stored as bits, a bogus large id would allocate the bitset up to it (512MB)
+	 */
+	public static final long MAX_ID = 1L << 32;
+	private static final int MAX_WORDS = (int) (MAX_ID >>> 6);
+
+	/**
+	 * parse the numeric part of a Q-id
+	 *
+	 * @param title the title
+	 * @return the numeric part of the id, -1 if the title isn't a Q-id
+	 */
+	public static long parseQid(CharSequence title) {
+		int len = title.length();
+		// Q, no leading 0 and fit in a long
+		if (len < 2 || len > 19 || title.charAt(0) != 'Q' || title.charAt(1) == '0') {
+			return -1;
+		}
+		long id = 0;
+		for (int i = 1; i < len; i++) {
+			char c = title.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			id = id * 10 + (c - '0');
+		}
+		return id;
+	}
+
+	/**
+	 * read a set written with {@link #save(OutputStream)}
+	 *
+	 * @param is the stream to read
+	 * @return the set
+	 * @throws IOException read error
+	 */
+	public static QidSet load(InputStream is) throws IOException {
+		QidSet set = new QidSet();
+		long words = IOUtil.readLong(is);
+		if (words < 0 || words > MAX_WORDS) {
+			throw new IOException("Bad word count: " + words);
+		}
+		set.words = new long[(int) Math.max(64, words)];
+		for (int i = 0; i < words; i++) {
+			long word = IOUtil.readLong(is);
+			set.words[i] = word;
+			set.size += Long.bitCount(word);
+		}
+		long others = IOUtil.readLong(is);
+		ProgressListener pl = ProgressListener.ignore();
+		for (long i = 0; i < others; i++) {
+			set.others.add(new String(IOUtil.readSizedBuffer(is, pl), StandardCharsets.UTF_8));
+		}
+		set.size += set.others.size();
+		return set;
+	}
+
+	private long[] words = new long[64];
+	private final Set<String> others = new HashSet<>();
+	private long size;
+
+	/**
+	 * add a title to the set
+	 *
+	 * @param title the title
+	 * @return true if the title wasn't already in the set
+	 */
+	public boolean add(String title) {
+		long id = parseQid(title);
+		if (id < 0 || id >= MAX_ID) {
+			if (others.add(title)) {
+				size++;
+				return true;
+			}
+			return false;
+		}
+		int word = (int) (id >>> 6);
+		if (word >= words.length) {
+			words = Arrays.copyOf(words, (int) Math.min(MAX_WORDS, Math.max(word + 1L, words.length * 2L)));
+		}
+		long mask = 1L << id;
+		if ((words[word] & mask) != 0) {
+			return false;
+		}
+		words[word] |= mask;
+		size++;
+		return true;
+	}
+
+	/**
+	 * test if a title is in the set
+	 *
+	 * @param title the title
+	 * @return true if the title is in the set
+	 */
+	public boolean contains(String title) {
+		long id = parseQid(title);
+		if (id < 0 || id >= MAX_ID) {
+			return others.contains(title);
+		}
+		int word = (int) (id >>> 6);
+		return word < words.length && (words[word] & (1L << id)) != 0;
+	}
+
+	/**
+	 * @return the number of titles in the set
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * write the set into a stream
+	 *
+	 * @param os the stream to write
+	 * @throws IOException write error
+	 */
+	public void save(OutputStream os) throws IOException {
+		int used = words.length;
+		while (used > 0 && words[used - 1] == 0) {
+			used--;
+		}
+		IOUtil.writeLong(os, used);
+		for (int i = 0; i < used; i++) {
+			IOUtil.writeLong(os, words[i]);
+		}
+		IOUtil.writeLong(os, others.size());
+		ProgressListener pl = ProgressListener.ignore();
+		for (String other : others) {
+			IOUtil.writeSizedBuffer(os, other.getBytes(StandardCharsets.UTF_8), pl);
+		}
+	}
+
+	/**
+	 * @return stream of the titles
+	 */
+	public Stream<String> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	/**
+	 * remove all the titles of the set
+	 */
+	public void clear() {
+		Arrays.fill(words, 0);
+		others.clear();
+		size = 0;
+	}
+
+	/**
+	 * @return iterator over the titles, the Q-ids are returned first by increasing id
+	 */
+	@Override
+	public Iterator<String> iterator() {
+		Iterator<String> otherIt = others.iterator();
+		return new Iterator<>() {
+			private long id = nextId(0);
+
+			private long nextId(long from) {
+				int word = (int) (from >>> 6);
+				if (word >= words.length) {
+					return -1;
+				}
+				long bits = words[word] & (-1L << from);
+				while (bits == 0) {
+					if (++word >= words.length) {
+						return -1;
+					}
+					bits = words[word];
+				}
+				return ((long) word << 6) + Long.numberOfTrailingZeros(bits);
+			}
+
+			@Override
+			public boolean hasNext() {
+				return id >= 0 || otherIt.hasNext();
+			}
+
+			@Override
+			public String next() {
+				if (id >= 0) {
+					String title = "Q" + id;
+					id = nextId(id + 1);
+					return title;
+				}
+				if (!otherIt.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return otherIt.next();
+			}
+		};
+	}
+}
@@ -0,0 +1,210 @@
+package com.the_qa_company.wikidatachanges.datastruct;
+
+import com.the_qa_company.qendpoint.core.exceptions.CRCException;
+import com.the_qa_company.qendpoint.core.listener.ProgressListener;
+import com.the_qa_company.qendpoint.core.util.crc.CRC32;
+import com.the_qa_company.qendpoint.core.util.crc.CRCInputStream;
+import com.the_qa_company.qendpoint.core.util.crc.CRCOutputStream;
+import com.the_qa_company.qendpoint.core.util.io.IOUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Index of the last applied revision id of each entity, the Q-ids are stored in an open addressing map indexed by
+ * their numeric part, the other titles are stored in a fallback map. The methods are thread safe.
+ */
+public class RevisionIndex {
+	private static final byte[] COOKIE = "$WRvI0\n\r".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * read an index file, an empty index is returned if the file doesn't exist
+	 *
+	 * @param path the file
+	 * @return the index
+	 * @throws IOException read error or bad file
+	 */
+	public static RevisionIndex read(Path path) throws IOException {
+		RevisionIndex index = new RevisionIndex();
+		if (!Files.exists(path)) {
+			return index;
+		}
+		try (CRCInputStream is = new CRCInputStream(new BufferedInputStream(Files.newInputStream(path)), new CRC32())) {
+			if (!Arrays.equals(COOKIE, is.readNBytes(COOKIE.length))) {
+				throw new IOException("Bad cookie");
+			}
+			long qids = IOUtil.readLong(is);
+			for (long i = 0; i < qids; i++) {
+				long qid = IOUtil.readLong(is);
+				index.put(qid, IOUtil.readLong(is));
+			}
+			long others = IOUtil.readLong(is);
+			ProgressListener pl = ProgressListener.ignore();
+			for (long i = 0; i < others; i++) {
+				String title = new String(IOUtil.readSizedBuffer(is, pl), StandardCharsets.UTF_8);
+				index.others.put(title, IOUtil.readLong(is));
+			}
+			if (!is.readCRCAndCheck()) {
+				throw new CRCException("Bad revision index crc");
+			}
+		}
+		return index;
+	}
+
+	private long[] keys = new long[1024];
+	private long[] values = new long[1024];
+	private int qids;
+	private final Map<String, Long> others = new HashMap<>();
+
+	/**
+	 * get the last applied revision of an entity
+	 *
+	 * @param title the entity title
+	 * @return the revision id, 0 if no revision was applied
+	 */
+	public synchronized long get(String title) {
+		long qid = QidSet.parseQid(title);
+		if (qid <= 0) {
+			return others.getOrDefault(title, 0L);
+		}
+		int slot = slot(keys, qid);
+		return keys[slot] == qid ? values[slot] : 0;
+	}
+
+	/**
+	 * test if a revision of an entity was already applied
+	 *
+	 * @param title the entity title
+	 * @param revid the revision id, 0 for unknown
+	 * @return true if the revision or a newer one was applied
+	 */
+	public boolean isApplied(String title, long revid) {
+		return revid > 0 && get(title) >= revid;
+	}
+
+	/**
+	 * set the applied revision of an entity, ignored if a newer revision was already applied
+	 *
+	 * @param title the entity title
+	 * @param revid the revision id, ignored if 0
+	 */
+	public synchronized void update(String title, long revid) {
+		if (revid <= 0) {
+			return;
+		}
+		long qid = QidSet.parseQid(title);
+		if (qid <= 0) {
+			others.merge(title, revid, Math::max);
+			return;
+		}
+		updateQid(qid, revid);
+	}
+
+	/**
+	 * set the applied revisions of the entities of another index, the newest revision of each entity is kept
+	 *
+	 * @param other the other index
+	 */
+	public void updateAll(RevisionIndex other) {
+		synchronized (other) {
+			synchronized (this) {
+				for (int i = 0; i < other.keys.length; i++) {
+					if (other.keys[i] != 0) {
+						updateQid(other.keys[i], other.values[i]);
+					}
+				}
+				other.others.forEach(this::update);
+			}
+		}
+	}
+
+	private void updateQid(long qid, long revid) {
+		int slot = slot(keys, qid);
+		if (keys[slot] != qid || values[slot] < revid) {
+			put(qid, revid);
+		}
+	}
+
+	/**
+	 * @return the number of entities in the index
+	 */
+	public synchronized long size() {
+		return qids + others.size();
+	}
+
+	/**
+	 * write the index, the previous file is replaced once the new one is fully written
+	 *
+	 * @param path the file
+	 * @throws IOException write error
+	 */
+	public synchronized void write(Path path) throws IOException {
+		Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+		try (CRCOutputStream os = new CRCOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)), new CRC32())) {
+			os.write(COOKIE);
+			IOUtil.writeLong(os, qids);
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] != 0) {
+					IOUtil.writeLong(os, keys[i]);
+					IOUtil.writeLong(os, values[i]);
+				}
+			}
+			IOUtil.writeLong(os, others.size());
+			ProgressListener pl = ProgressListener.ignore();
+			for (Map.Entry<String, Long> e : others.entrySet()) {
+				IOUtil.writeSizedBuffer(os, e.getKey().getBytes(StandardCharsets.UTF_8), pl);
+				IOUtil.writeLong(os, e.getValue());
+			}
+			os.writeCRC();
+		}
+		Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void put(long qid, long revid) {
+		int slot = slot(keys, qid);
+		if (keys[slot] != qid) {
+			// new key, keep the load factor under 0.5
+			if ((qids + 1) * 2L > keys.length) {
+				grow();
+				slot = slot(keys, qid);
+			}
+			keys[slot] = qid;
+			qids++;
+		}
+		values[slot] = revid;
+	}
+
+	private void grow() {
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		keys = new long[oldKeys.length * 2];
+		values = new long[oldValues.length * 2];
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				int slot = slot(keys, oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * find the slot of a key or the empty slot to put it
+	 */
+	private static int slot(long[] keys, long qid) {
+		int mask = keys.length - 1;
+		int slot = (int) ((qid * 0x9E3779B97F4A7C15L) >>> 33) & mask;
+		while (keys[slot] != 0 && keys[slot] != qid) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+}
@@ -0,0 +1,358 @@
+package com.the_qa_company.wikidatachanges.datastruct;
+
+import com.the_qa_company.qendpoint.core.exceptions.CRCException;
+import com.the_qa_company.qendpoint.core.listener.ProgressListener;
+import com.the_qa_company.qendpoint.core.util.crc.CRC32;
+import com.the_qa_company.qendpoint.core.util.crc.CRCInputStream;
+import com.the_qa_company.qendpoint.core.util.crc.CRCOutputStream;
+import com.the_qa_company.qendpoint.core.util.io.IOUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only store of the downloaded pages, replace the file by page of the sites directory. The pages are appended
+ * concurrently into one pack file, the offset of each page is kept in an index written when the pack is closed. The
+ * records written after the last index (interrupted run) are recovered by reading the end of the pack, an incomplete
+ * record and the records after it are dropped.
+ *
+ * <p>record: magic, title length, page length, title, page, crc32 of the title and the page</p>
+ */
+public class SitesPack implements Closeable {
+	/**
+	 * pack file name in the sites directory
+	 */
+	public static final String PACK = "pages.pack";
+	/**
+	 * index file name in the sites directory
+	 */
+	public static final String INDEX = "pages.idx";
+	private static final byte[] COOKIE = "$WSPk0\n\r".getBytes(StandardCharsets.US_ASCII);
+	private static final int MAGIC = 0x57504b30;
+	private static final int HEADER = 3 * Integer.BYTES;
+
+	/**
+	 * page consumer
+	 */
+	@FunctionalInterface
+	public interface PageConsumer {
+		/**
+		 * consume a page
+		 *
+		 * @param title the entity title
+		 * @param page  the page
+		 * @throws Exception consumer error
+		 */
+		void accept(String title, byte[] page) throws Exception;
+	}
+
+	/**
+	 * test if a sites directory contains a pack
+	 *
+	 * @param directory the sites directory
+	 * @return true if the directory contains a pack
+	 */
+	public static boolean exists(Path directory) {
+		return Files.exists(directory.resolve(PACK));
+	}
+
+	/**
+	 * open a pack, the pack is created if the directory doesn't contain one
+	 *
+	 * @param directory the sites directory
+	 * @return pack
+	 * @throws IOException read error
+	 */
+	public static SitesPack open(Path directory) throws IOException {
+		Files.createDirectories(directory);
+		SitesPack pack = new SitesPack(directory, FileChannel.open(
+				directory.resolve(PACK),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE
+		));
+		try {
+			long start = pack.readIndex();
+			long recovered = pack.recover(start);
+			if (recovered != 0) {
+				System.out.println("Recovered " + recovered + " page(s) after the index of " + pack.packFile());
+			}
+		} catch (Throwable t) {
+			pack.channel.close();
+			throw t;
+		}
+		return pack;
+	}
+
+	private final Path directory;
+	private final FileChannel channel;
+	private final Map<String, Long> offsets = new HashMap<>();
+	private long end;
+	private long firstFailure = Long.MAX_VALUE;
+
+	private SitesPack(Path directory, FileChannel channel) {
+		this.directory = directory;
+		this.channel = channel;
+	}
+
+	/**
+	 * append a page, the pages can be appended concurrently, a page appended twice replaces the previous one
+	 *
+	 * @param title the entity title
+	 * @param page  the page
+	 * @throws IOException write error
+	 */
+	public void append(String title, byte[] page) throws IOException {
+		byte[] titleBytes = title.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = ByteBuffer.allocate(HEADER + titleBytes.length + page.length + Integer.BYTES);
+		record.putInt(MAGIC).putInt(titleBytes.length).putInt(page.length).put(titleBytes).put(page);
+		java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+		crc.update(titleBytes);
+		crc.update(page);
+		record.putInt((int) crc.getValue());
+		record.flip();
+
+		long offset;
+		synchronized (this) {
+			offset = end;
+			end += record.remaining();
+		}
+		try {
+			while (record.hasRemaining()) {
+				channel.write(record, offset + record.position());
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				// the index shouldn't cover this record
+				firstFailure = Math.min(firstFailure, offset);
+			}
+			throw e;
+		}
+		synchronized (this) {
+			offsets.put(title, offset);
+		}
+	}
+
+	/**
+	 * @param title the entity title
+	 * @return true if the pack contains a page for this title
+	 */
+	public synchronized boolean contains(String title) {
+		return offsets.containsKey(title);
+	}
+
+	/**
+	 * @return the number of pages
+	 */
+	public synchronized int size() {
+		return offsets.size();
+	}
+
+	/**
+	 * read the page of a title
+	 *
+	 * @param title the entity title
+	 * @return the page, null if the pack doesn't contain this title
+	 * @throws IOException read error
+	 */
+	public byte[] read(String title) throws IOException {
+		Long offset;
+		synchronized (this) {
+			offset = offsets.get(title);
+		}
+		if (offset == null) {
+			return null;
+		}
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		readFully(header, offset);
+		header.flip();
+		header.getInt();
+		int titleLength = header.getInt();
+		ByteBuffer page = ByteBuffer.allocate(header.getInt());
+		readFully(page, offset + HEADER + titleLength);
+		return page.array();
+	}
+
+	/**
+	 * read the pages in the order of the pack, only the last page of each title is read
+	 *
+	 * @param consumer the page consumer
+	 * @throws Exception read or consumer error
+	 */
+	public void forEach(PageConsumer consumer) throws Exception {
+		long limit;
+		Map<String, Long> current;
+		synchronized (this) {
+			limit = end;
+			current = Map.copyOf(offsets);
+		}
+		// sequential read, the channel position isn't used by the appends
+		channel.position(0);
+		DataInputStream is = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 20));
+		long offset = 0;
+		while (offset < limit) {
+			if (is.readInt() != MAGIC) {
+				throw new IOException("Bad record at " + offset + " in " + packFile());
+			}
+			int titleLength = is.readInt();
+			int pageLength = is.readInt();
+			byte[] title = is.readNBytes(titleLength);
+			String titleStr = new String(title, StandardCharsets.UTF_8);
+			Long last = current.get(titleStr);
+			if (last != null && last == offset) {
+				byte[] page = is.readNBytes(pageLength);
+				is.readInt();
+				consumer.accept(titleStr, page);
+			} else {
+				// replaced or dropped page
+				is.skipNBytes(pageLength + Integer.BYTES);
+			}
+			offset += HEADER + title.length + pageLength + Integer.BYTES;
+		}
+	}
+
+	/**
+	 * write the index and close the pack
+	 *
+	 * @throws IOException write error
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			channel.force(false);
+			writeIndex();
+		} finally {
+			channel.close();
+		}
+	}
+
+	private Path packFile() {
+		return directory.resolve(PACK);
+	}
+
+	private void writeIndex() throws IOException {
+		long covered = Math.min(end, firstFailure);
+		Path index = directory.resolve(INDEX);
+		Path tmp = directory.resolve(INDEX + ".tmp");
+		try (CRCOutputStream os = new CRCOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)), new CRC32())) {
+			os.write(COOKIE);
+			IOUtil.writeLong(os, covered);
+			long count = offsets.values().stream().filter(offset -> offset < covered).count();
+			IOUtil.writeLong(os, count);
+			for (Map.Entry<String, Long> e : offsets.entrySet()) {
+				if (e.getValue() < covered) {
+					IOUtil.writeSizedBuffer(os, e.getKey().getBytes(StandardCharsets.UTF_8), ProgressListener.ignore());
+					IOUtil.writeLong(os, e.getValue());
+				}
+			}
+			os.writeCRC();
+		}
+		Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * read the index if any
+	 *
+	 * @return the pack size covered by the index
+	 * @throws IOException read error
+	 */
+	private long readIndex() throws IOException {
+		Path index = directory.resolve(INDEX);
+		if (!Files.exists(index)) {
+			return 0;
+		}
+		Map<String, Long> read = new HashMap<>();
+		long covered;
+		try (CRCInputStream is = new CRCInputStream(new BufferedInputStream(Files.newInputStream(index)), new CRC32())) {
+			if (!Arrays.equals(COOKIE, is.readNBytes(COOKIE.length))) {
+				throw new IOException("Bad cookie");
+			}
+			covered = IOUtil.readLong(is);
+			long count = IOUtil.readLong(is);
+			for (long i = 0; i < count; i++) {
+				String title = new String(IOUtil.readSizedBuffer(is, ProgressListener.ignore()), StandardCharsets.UTF_8);
+				read.put(title, IOUtil.readLong(is));
+			}
+			if (!is.readCRCAndCheck()) {
+				throw new CRCException("Bad sites pack index crc");
+			}
+		} catch (IOException e) {
+			System.err.println("Can't read index " + index + ", the pack is read again: " + e.getMessage());
+			return 0;
+		}
+		if (covered > channel.size()) {
+			System.err.println("The index " + index + " doesn't match the pack, the pack is read again");
+			return 0;
+		}
+		offsets.putAll(read);
+		return covered;
+	}
+
+	/**
+	 * read the records after the index, the pack is truncated after the last valid record
+	 *
+	 * @param start the pack size covered by the index
+	 * @return the number of recovered records
+	 * @throws IOException read error
+	 */
+	private long recover(long start) throws IOException {
+		long size = channel.size();
+		long offset = start;
+		long recovered = 0;
+		channel.position(start);
+		DataInputStream is = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 1 << 20));
+		try {
+			while (offset < size) {
+				if (is.readInt() != MAGIC) {
+					break;
+				}
+				int titleLength = is.readInt();
+				int pageLength = is.readInt();
+				if (titleLength < 0 || pageLength < 0
+				    || offset + HEADER + titleLength + pageLength + Integer.BYTES > size) {
+					break;
+				}
+				byte[] title = is.readNBytes(titleLength);
+				byte[] page = is.readNBytes(pageLength);
+				java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+				crc.update(title);
+				crc.update(page);
+				if (is.readInt() != (int) crc.getValue()) {
+					break;
+				}
+				offsets.put(new String(title, StandardCharsets.UTF_8), offset);
+				offset += HEADER + titleLength + pageLength + Integer.BYTES;
+				recovered++;
+			}
+		} catch (EOFException e) {
+			// incomplete record
+		}
+		if (offset < size) {
+			System.err.println("Dropping " + (size - offset) + " byte(s) of incomplete record(s) at the end of " + packFile());
+			channel.truncate(offset);
+		}
+		end = offset;
+		return recovered;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException("Unexpected end of " + packFile());
+			}
+		}
+	}
+}
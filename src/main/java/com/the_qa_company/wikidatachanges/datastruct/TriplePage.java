@@ -0,0 +1,261 @@
+package com.the_qa_company.wikidatachanges.datastruct;
+
+import com.the_qa_company.qendpoint.core.compact.integer.VByte;
+import com.the_qa_company.qendpoint.core.triples.TripleString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Binary page of the triples of an entity, the page is a gzip stream of the triples with a string table built during
+ * the read, the triples can be read without the Turtle parser.
+ *
+ * <ul>
+ *     <li>triples: count, (subject, predicate, object) string references</li>
+ *     <li>string reference: the id + 1 of a previous string of the table, or 0 then the tag and the value of a new
+ *     string added to the table</li>
+ *     <li>string values: the IRIs are (namespace reference, local name), the typed literals are (lexical form, datatype
+ *     reference), the blank nodes and the other literals are written as is, the namespaces are only used by the
+ *     IRIs</li>
+ * </ul>
+ * <p>
+ * The numbers are VByte encoded and the values are sized UTF-8 buffers.
+ */
+public class TriplePage {
+	private static final int TAG_IRI = 0;
+	private static final int TAG_BNODE = 1;
+	private static final int TAG_LITERAL = 2;
+	private static final int TAG_TYPED_LITERAL = 3;
+	private static final int TAG_NAMESPACE = 4;
+
+	/**
+	 * encode the triples of an entity
+	 *
+	 * @param triples the triples
+	 * @return page
+	 * @throws IOException write error
+	 */
+	public static byte[] encode(List<TripleString> triples) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(triples.size() * 16);
+		try (GZIPOutputStream os = new GZIPOutputStream(out)) {
+			StringWriter writer = new StringWriter(os);
+			VByte.encode(os, triples.size());
+			for (TripleString triple : triples) {
+				writer.write(triple.getSubject().toString());
+				writer.write(triple.getPredicate().toString());
+				writer.write(triple.getObject().toString());
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * decode the triples of a page
+	 *
+	 * @param page the page
+	 * @return the triples
+	 * @throws IOException bad page
+	 */
+	public static List<TripleString> decode(byte[] page) throws IOException {
+		try (InputStream is = new GZIPInputStream(new ByteArrayInputStream(page))) {
+			int size = Math.toIntExact(VByte.decode(is));
+			List<String> strings = new ArrayList<>();
+			List<TripleString> triples = new ArrayList<>(size);
+			for (int i = 0; i < size; i++) {
+				triples.add(new TripleString(
+						readRef(is, strings),
+						readRef(is, strings),
+						readRef(is, strings)
+				));
+			}
+			return triples;
+		}
+	}
+
+	/**
+	 * write triples as N-Triples, a subset of Turtle, the lexical forms of the literals and the IRIs are escaped, the
+	 * parsed triples are the same
+	 *
+	 * @param triples the triples
+	 * @return N-Triples
+	 */
+	public static String toNTriples(List<TripleString> triples) {
+		StringBuilder sb = new StringBuilder();
+		for (TripleString triple : triples) {
+			appendNode(sb, triple.getSubject());
+			sb.append(' ');
+			appendNode(sb, triple.getPredicate());
+			sb.append(' ');
+			appendNode(sb, triple.getObject());
+			sb.append(" .\n");
+		}
+		return sb.toString();
+	}
+
+	private static void appendNode(StringBuilder sb, CharSequence node) {
+		if (node.isEmpty()) {
+			sb.append("<>");
+		} else if (node.charAt(0) == '_') {
+			sb.append(node);
+		} else if (node.charAt(0) == '"') {
+			appendLiteral(sb, node.toString());
+		} else {
+			appendIRI(sb, node);
+		}
+	}
+
+	/**
+	 * append a parsed literal, the lexical form isn't escaped, it ends with the last quote, the language and the
+	 * datatype don't contain any
+	 */
+	private static void appendLiteral(StringBuilder sb, String literal) {
+		int end = literal.lastIndexOf('"');
+		if (end == 0) {
+			end = literal.length();
+		}
+		sb.append('"');
+		for (int i = 1; i < end; i++) {
+			char c = literal.charAt(i);
+			switch (c) {
+				case '"' -> sb.append("\\\"");
+				case '\\' -> sb.append("\\\\");
+				case '\n' -> sb.append("\\n");
+				case '\r' -> sb.append("\\r");
+				default -> sb.append(c);
+			}
+		}
+		sb.append('"');
+		if (end == literal.length()) {
+			return;
+		}
+		String suffix = literal.substring(end + 1);
+		if (suffix.startsWith("^^<") && suffix.endsWith(">")) {
+			sb.append("^^");
+			appendIRI(sb, suffix.substring(3, suffix.length() - 1));
+		} else {
+			sb.append(suffix);
+		}
+	}
+
+	private static void appendIRI(StringBuilder sb, CharSequence iri) {
+		sb.append('<');
+		for (int i = 0; i < iri.length(); i++) {
+			char c = iri.charAt(i);
+			if (c <= 0x20 || c == '<' || c == '>' || c == '"' || c == '{' || c == '}' || c == '|' || c == '^' || c == '`' || c == '\\') {
+				sb.append("\\u%04X".formatted((int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('>');
+	}
+
+	private static void writeString(OutputStream os, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		VByte.encode(os, bytes.length);
+		os.write(bytes);
+	}
+
+	private static String readString(InputStream is) throws IOException {
+		int length = Math.toIntExact(VByte.decode(is));
+		byte[] bytes = is.readNBytes(length);
+		if (bytes.length != length) {
+			throw new EOFException("Unexpected end of string");
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * writer of the string references of a page
+	 */
+	private static class StringWriter {
+		private final OutputStream os;
+		private final Map<String, Integer> ids = new HashMap<>();
+		// the namespaces aren't nodes, different keys
+		private final Map<String, Integer> namespaces = new HashMap<>();
+		private int size;
+
+		StringWriter(OutputStream os) {
+			this.os = os;
+		}
+
+		void write(String value) throws IOException {
+			Integer id = ids.get(value);
+			if (id != null) {
+				VByte.encode(os, id + 1);
+				return;
+			}
+			VByte.encode(os, 0);
+			if (value.startsWith("\"")) {
+				int dt = value.lastIndexOf("\"^^<");
+				if (dt != -1 && value.endsWith(">")) {
+					os.write(TAG_TYPED_LITERAL);
+					writeString(os, value.substring(0, dt + 1));
+					// the datatypes are shared by the literals
+					write(value.substring(dt + 4, value.length() - 1));
+				} else {
+					os.write(TAG_LITERAL);
+					writeString(os, value);
+				}
+			} else if (value.startsWith("_:")) {
+				os.write(TAG_BNODE);
+				writeString(os, value);
+			} else {
+				int local = Math.max(value.lastIndexOf('/'), value.lastIndexOf('#')) + 1;
+				os.write(TAG_IRI);
+				writeNamespace(value.substring(0, local));
+				writeString(os, value.substring(local));
+			}
+			ids.put(value, size++);
+		}
+
+		private void writeNamespace(String value) throws IOException {
+			Integer id = namespaces.get(value);
+			if (id != null) {
+				VByte.encode(os, id + 1);
+				return;
+			}
+			VByte.encode(os, 0);
+			os.write(TAG_NAMESPACE);
+			writeString(os, value);
+			namespaces.put(value, size++);
+		}
+	}
+
+	private static String readRef(InputStream is, List<String> strings) throws IOException {
+		long ref = VByte.decode(is);
+		if (ref > strings.size()) {
+			throw new IOException("Bad string reference " + ref + ", " + strings.size() + " string(s)");
+		}
+		if (ref != 0) {
+			return strings.get((int) ref - 1);
+		}
+		int tag = is.read();
+		String value = switch (tag) {
+			case TAG_BNODE, TAG_LITERAL, TAG_NAMESPACE -> readString(is);
+			case TAG_IRI -> {
+				String namespace = readRef(is, strings);
+				yield namespace + readString(is);
+			}
+			case TAG_TYPED_LITERAL -> {
+				String lexical = readString(is);
+				yield lexical + "^^<" + readRef(is, strings) + ">";
+			}
+			case -1 -> throw new EOFException("Unexpected end of page");
+			default -> throw new IOException("Unknown string tag: " + tag);
+		};
+		strings.add(value);
+		return value;
+	}
+}
@@ -0,0 +1,204 @@
+package com.the_qa_company.wikidatachanges.utils;
+
+import com.the_qa_company.qendpoint.core.enums.RDFNotation;
+import com.the_qa_company.qendpoint.core.exceptions.ParserException;
+import com.the_qa_company.qendpoint.core.rdf.RDFParserCallback;
+import com.the_qa_company.qendpoint.core.rdf.RDFParserFactory;
+import com.the_qa_company.qendpoint.core.triples.TripleString;
+import com.the_qa_company.wikidatachanges.datastruct.DeltaFileReader;
+import com.the_qa_company.wikidatachanges.datastruct.DeltaFileUtils;
+import com.the_qa_company.wikidatachanges.datastruct.TriplePage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Read the triples of a delta file, the entries are read sequentially and the pages are inflated and parsed by a
+ * worker pool.
+ */
+public class DeltaFileTriples {
+	/**
+	 * triples of an entity
+	 *
+	 * @param title   the entity title
+	 * @param deleted if the entity was deleted
+	 * @param triples the triples of the entity page, empty for a deleted entity
+	 */
+	public record EntityTriples(String title, boolean deleted, List<TripleString> triples) {
+	}
+
+	/**
+	 * source of delta file entries, called from one thread
+	 */
+	@FunctionalInterface
+	public interface EntrySource {
+		/**
+		 * read the entries
+		 *
+		 * @param consumer the entry consumer
+		 * @throws Exception read or consumer error
+		 */
+		void forEach(DeltaFileReader.EntryConsumer consumer) throws Exception;
+	}
+
+	/**
+	 * read the entities of a delta file
+	 *
+	 * @param reader  the delta file
+	 * @param baseURI the base URI of the pages
+	 * @param workers the number of parsing threads
+	 * @param ordered if the entities should be returned in the order of the file, otherwise in parsing order
+	 * @return iterator, a parsing error is thrown by the iterator
+	 */
+	public static PipedIterator<EntityTriples> readEntities(DeltaFileReader reader, String baseURI, int workers, boolean ordered) {
+		return readEntities((EntrySource) reader::forEach, baseURI, workers, ordered);
+	}
+
+	/**
+	 * read the entities of an entry source
+	 *
+	 * @param source  the entries
+	 * @param baseURI the base URI of the pages
+	 * @param workers the number of parsing threads
+	 * @param ordered if the entities should be returned in the order of the source, otherwise in parsing order
+	 * @return iterator, a parsing error is thrown by the iterator
+	 */
+	public static PipedIterator<EntityTriples> readEntities(EntrySource source, String baseURI, int workers, boolean ordered) {
+		if (workers <= 0) {
+			throw new IllegalArgumentException("workers can't be negative or zero! " + workers);
+		}
+		// parsed entities waiting in memory, handed over one by one, a batch would wait for the parse of its entities
+		int window = workers * 4;
+		return PipedIterator.createOfCallback(window, 1, pipe -> {
+			ExecutorService pool = Executors.newFixedThreadPool(workers);
+			try {
+				if (ordered) {
+					Queue<Future<EntityTriples>> futures = new ArrayDeque<>(window);
+					source.forEach(entry -> {
+						if (futures.size() == window) {
+							pipe.addElement(get(futures.remove()));
+						}
+						futures.add(pool.submit(() -> parse(entry, baseURI)));
+					});
+					while (!futures.isEmpty()) {
+						pipe.addElement(get(futures.remove()));
+					}
+				} else {
+					CompletionService<EntityTriples> completion = new ExecutorCompletionService<>(pool);
+					long[] inFlight = {0};
+					source.forEach(entry -> {
+						if (inFlight[0] == window) {
+							pipe.addElement(get(completion.take()));
+							inFlight[0]--;
+						}
+						completion.submit(() -> parse(entry, baseURI));
+						inFlight[0]++;
+					});
+					for (; inFlight[0] > 0; inFlight[0]--) {
+						pipe.addElement(get(completion.take()));
+					}
+				}
+			} finally {
+				pool.shutdownNow();
+			}
+		});
+	}
+
+	/**
+	 * read the triples of the existing entities of a delta file
+	 *
+	 * @param reader  the delta file
+	 * @param baseURI the base URI of the pages
+	 * @param workers the number of parsing threads
+	 * @param ordered if the entities should be returned in the order of the file, otherwise in parsing order
+	 * @return iterator, a parsing error is thrown by the iterator
+	 */
+	public static Iterator<TripleString> readTriples(DeltaFileReader reader, String baseURI, int workers, boolean ordered) {
+		return triples(readEntities(reader, baseURI, workers, ordered));
+	}
+
+	/**
+	 * flatten the triples of entities
+	 *
+	 * @param entities the entities
+	 * @return iterator
+	 */
+	public static Iterator<TripleString> triples(Iterator<EntityTriples> entities) {
+		return new Iterator<>() {
+			private Iterator<TripleString> current = Collections.emptyIterator();
+
+			@Override
+			public boolean hasNext() {
+				while (!current.hasNext()) {
+					if (!entities.hasNext()) {
+						return false;
+					}
+					current = entities.next().triples().iterator();
+				}
+				return true;
+			}
+
+			@Override
+			public TripleString next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return current.next();
+			}
+		};
+	}
+
+	/**
+	 * inflate and parse the page of a delta file entry, the triple pages are decoded without parser
+	 *
+	 * @param entry   the entry
+	 * @param baseURI the base URI of the page
+	 * @return the triples of the entry
+	 * @throws IOException inflate or parsing error
+	 */
+	public static EntityTriples parse(DeltaFileReader.Entry entry, String baseURI) throws IOException {
+		if (entry.deleted()) {
+			return new EntityTriples(entry.title(), true, List.of());
+		}
+		if (entry.encoding() == DeltaFileUtils.ENCODING_TRIPLES) {
+			return new EntityTriples(entry.title(), false, TriplePage.decode(entry.buffer()));
+		}
+		List<TripleString> triples = new ArrayList<>();
+		RDFParserCallback parser = RDFParserFactory.getParserCallback(RDFNotation.TURTLE);
+		try (InputStream is = entry.openPage()) {
+			// the parser can reuse its buffers, copy the components
+			parser.doParse(is, baseURI, RDFNotation.TURTLE, true, (triple, pos) -> triples.add(new TripleString(
+					triple.getSubject().toString(),
+					triple.getPredicate().toString(),
+					triple.getObject().toString()
+			)));
+		} catch (ParserException e) {
+			throw new IOException("Can't parse " + entry.name(), e);
+		}
+		return new EntityTriples(entry.title(), false, triples);
+	}
+
+	private static <T> T get(Future<T> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException ioe) {
+				throw ioe;
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package com.the_qa_company.wikidatachanges.utils;
+
+import com.the_qa_company.qendpoint.core.enums.RDFNotation;
+import com.the_qa_company.qendpoint.core.exceptions.ParserException;
+import com.the_qa_company.qendpoint.core.rdf.RDFParserCallback;
+import com.the_qa_company.qendpoint.core.rdf.RDFParserFactory;
+import com.the_qa_company.qendpoint.core.triples.TripleString;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.Stream;
+
+/**
+ * Read the triples of the RDF files of a directory, the files are parsed by a work-stealing pool and the triples of a
+ * file are returned together, in parsing order.
+ */
+public class DirectoryTriples {
+	/**
+	 * read the files of a directory
+	 *
+	 * @param directory the directory, the files are searched recursively and the files without RDF notation are
+	 *                  ignored
+	 * @param baseURI   the base URI of the files
+	 * @param workers   the number of parsing threads
+	 * @return iterator, the title of an entity is the file name without extension, a parsing error is thrown by the
+	 * iterator
+	 */
+	public static PipedIterator<DeltaFileTriples.EntityTriples> readEntities(Path directory, String baseURI, int workers) {
+		if (workers <= 0) {
+			throw new IllegalArgumentException("workers can't be negative or zero! " + workers);
+		}
+		// parsed files waiting in memory
+		return PipedIterator.createOfCallback(workers * 4, 1, pipe -> {
+			List<Path> files;
+			try (Stream<Path> walk = Files.walk(directory)) {
+				files = walk.filter(Files::isRegularFile).filter(file -> notation(file) != null).toList();
+			}
+			System.out.println("Parsing " + files.size() + " file(s) with " + workers + " worker(s)");
+			ForkJoinPool pool = new ForkJoinPool(workers);
+			try {
+				pool.invoke(new ParseTask(pipe, files, 0, files.size(), baseURI));
+			} catch (UncheckedIOException e) {
+				throw e.getCause();
+			} finally {
+				pool.shutdownNow();
+			}
+		});
+	}
+
+	/**
+	 * read the triples of the files of a directory
+	 *
+	 * @param directory the directory
+	 * @param baseURI   the base URI of the files
+	 * @param workers   the number of parsing threads
+	 * @return iterator, a parsing error is thrown by the iterator
+	 * @see #readEntities(Path, String, int)
+	 */
+	public static Iterator<TripleString> readTriples(Path directory, String baseURI, int workers) {
+		return DeltaFileTriples.triples(readEntities(directory, baseURI, workers));
+	}
+
+	/**
+	 * parse an RDF file
+	 *
+	 * @param file    the file
+	 * @param baseURI the base URI of the file
+	 * @return the triples of the file
+	 * @throws IOException read or parsing error
+	 */
+	public static DeltaFileTriples.EntityTriples parse(Path file, String baseURI) throws IOException {
+		String name = file.getFileName().toString();
+		int extension = name.lastIndexOf('.');
+		String title = extension == -1 ? name : name.substring(0, extension);
+		RDFNotation notation = notation(file);
+		if (notation == null) {
+			throw new IOException("Can't guess the RDF notation of " + file);
+		}
+		List<TripleString> triples = new ArrayList<>();
+		RDFParserCallback parser = RDFParserFactory.getParserCallback(notation);
+		try {
+			// the parser can reuse its buffers, copy the components
+			parser.doParse(file.toAbsolutePath().toString(), baseURI, notation, true, (triple, pos) -> triples.add(new TripleString(
+					triple.getSubject().toString(),
+					triple.getPredicate().toString(),
+					triple.getObject().toString()
+			)));
+		} catch (ParserException e) {
+			throw new IOException("Can't parse " + file, e);
+		}
+		return new DeltaFileTriples.EntityTriples(title, false, triples);
+	}
+
+	private static RDFNotation notation(Path file) {
+		try {
+			return RDFNotation.guess(file.getFileName().toString());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * parse a range of files, the range is split in two tasks until one file is left, the idle workers steal the
+	 * halves of the busy workers
+	 */
+	private static class ParseTask extends RecursiveAction {
+		private final PipedIterator<DeltaFileTriples.EntityTriples> pipe;
+		private final List<Path> files;
+		private final int start;
+		private final int end;
+		private final String baseURI;
+
+		ParseTask(PipedIterator<DeltaFileTriples.EntityTriples> pipe, List<Path> files, int start, int end, String baseURI) {
+			this.pipe = pipe;
+			this.files = files;
+			this.start = start;
+			this.end = end;
+			this.baseURI = baseURI;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start <= 1) {
+				if (start == end) {
+					return;
+				}
+				DeltaFileTriples.EntityTriples triples;
+				try {
+					triples = parse(files.get(start), baseURI);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				// one writer at a time
+				synchronized (pipe) {
+					pipe.addElement(triples);
+				}
+				return;
+			}
+			int mid = (start + end) >>> 1;
+			invokeAll(
+					new ParseTask(pipe, files, start, mid, baseURI),
+					new ParseTask(pipe, files, mid, end, baseURI)
+			);
+		}
+	}
+}
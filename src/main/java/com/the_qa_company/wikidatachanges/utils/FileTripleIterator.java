@@ -2,6 +2,8 @@ package com.the_qa_company.wikidatachanges.utils;
 
 import com.the_qa_company.qendpoint.core.triples.TripleString;
 
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.nio.charset.Charset;
 import java.util.Iterator;
 import java.util.function.Consumer;
@@ -16,27 +18,159 @@ import java.util.function.Consumer;
  */
 public class FileTripleIterator implements Iterator<TripleString> {
 	private static final Charset DEFAULT_CHARSET = Charset.defaultCharset();
+	/**
+	 * number of triples between two heap samples of the {@link SizeMode#HEAP} mode
+	 */
+	private static final int HEAP_SAMPLE = 1 << 16;
+
+	/**
+	 * size accounting of the triples
+	 */
+	public enum SizeMode {
+		/**
+		 * size of the strings in the default charset, a string and a buffer are allocated for each triple
+		 */
+		STRING,
+		/**
+		 * UTF-8 size of the char sequences, computed without allocation
+		 */
+		UTF8,
+		/**
+		 * UTF-8 size scaled by the heap growth sampled during the read, the ratio is only updated by the samples
+		 * without garbage collection
+		 */
+		HEAP
+	}
 
 	static long estimateTripleSize(TripleString triple) {
 		return (triple.getSubject().toString() + triple.getObject().toString() + triple.getPredicate()).getBytes(DEFAULT_CHARSET).length;
 	}
 
+	/**
+	 * compute the UTF-8 size of the strings of a triple without allocation
+	 *
+	 * @param triple the triple
+	 * @return size
+	 */
+	static long utf8TripleSize(TripleString triple) {
+		return utf8Size(triple.getSubject()) + utf8Size(triple.getPredicate()) + utf8Size(triple.getObject());
+	}
+
+	/**
+	 * compute the UTF-8 size of a char sequence without allocation
+	 *
+	 * @param seq the sequence
+	 * @return size
+	 */
+	static long utf8Size(CharSequence seq) {
+		int length = seq.length();
+		long size = length;
+		for (int i = 0; i < length; i++) {
+			char c = seq.charAt(i);
+			if (c < 0x80) {
+				continue;
+			}
+			if (c < 0x800) {
+				size++;
+			} else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(seq.charAt(i + 1))) {
+				// 4 bytes for the 2 chars of the pair
+				size += 2;
+				i++;
+			} else {
+				size += 2;
+			}
+		}
+		return size;
+	}
+
 	private final Iterator<TripleString> it;
 	private final long maxSize;
+	private final SizeMode mode;
 	private long currentSize = 0L;
 	private TripleString next;
 	private boolean stop = false;
+	// heap samples
+	private double heapRatio = 1;
+	private int sampleCount;
+	private long sampleSize;
+	private long sampleHeap;
+	private long sampleGC;
 
 	/**
-	 * create a file triple iterator from a TripleString stream and a max size
+	 * create a file triple iterator from a TripleString stream and a max size,
+	 * the size is the UTF-8 size of the triples
 	 *
 	 * @param it      the triple iterator
 	 * @param maxSize the maximum size of each file, this size is estimated, so
 	 *                files can be bigger.
 	 */
 	public FileTripleIterator(Iterator<TripleString> it, long maxSize) {
+		this(it, maxSize, SizeMode.UTF8);
+	}
+
+	/**
+	 * create a file triple iterator from a TripleString stream, a max size and
+	 * a size accounting
+	 *
+	 * @param it      the triple iterator
+	 * @param maxSize the maximum size of each file, this size is estimated, so
+	 *                files can be bigger.
+	 * @param mode    the size accounting of the triples
+	 */
+	public FileTripleIterator(Iterator<TripleString> it, long maxSize, SizeMode mode) {
 		this.it = it;
 		this.maxSize = maxSize;
+		this.mode = mode;
+		if (mode == SizeMode.HEAP) {
+			startSample();
+		}
+	}
+
+	/**
+	 * @return the ratio between the heap growth and the UTF-8 size of the triples, 1 until the first sample
+	 */
+	public double getHeapRatio() {
+		return heapRatio;
+	}
+
+	private long estimate(TripleString triple) {
+		return switch (mode) {
+			case STRING -> estimateTripleSize(triple);
+			case UTF8 -> utf8TripleSize(triple);
+			case HEAP -> {
+				long size = utf8TripleSize(triple);
+				sampleSize += size;
+				if (++sampleCount == HEAP_SAMPLE) {
+					long growth = usedHeap() - sampleHeap;
+					// a collection during the sample hides the growth
+					if (gcCount() == sampleGC && growth > 0) {
+						heapRatio = (heapRatio + (double) growth / sampleSize) / 2;
+					}
+					startSample();
+				}
+				yield (long) (size * heapRatio);
+			}
+		};
+	}
+
+	private void startSample() {
+		sampleCount = 0;
+		sampleSize = 0;
+		sampleGC = gcCount();
+		sampleHeap = usedHeap();
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long gcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += gc.getCollectionCount();
+		}
+		return count;
 	}
 
 	@Override
@@ -49,7 +183,7 @@ public class FileTripleIterator implements Iterator<TripleString> {
 
 		if (it.hasNext()) {
 			next = it.next();
-			long estimation = estimateTripleSize(next);
+			long estimation = estimate(next);
 			if (currentSize + estimation >= maxSize) {
 				stop = true;
 				currentSize = estimation;
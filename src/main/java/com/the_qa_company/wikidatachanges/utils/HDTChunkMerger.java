@@ -0,0 +1,162 @@
+package com.the_qa_company.wikidatachanges.utils;
+
+import com.the_qa_company.qendpoint.core.hdt.HDT;
+import com.the_qa_company.qendpoint.core.hdt.HDTManager;
+import com.the_qa_company.qendpoint.core.options.HDTOptions;
+import com.the_qa_company.qendpoint.core.options.HDTOptionsKeys;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Merge the chunk HDTs of a compression with a tree of k-way cats, the HDTs of a level are merged by groups of merge
+ * factor HDTs as soon as a group is complete. The merges run in a thread pool while the next chunks are generated, each
+ * triple is merged once by level instead of once by chunk.
+ */
+public class HDTChunkMerger implements Closeable {
+	private final Path directory;
+	private final String prefix;
+	private final int mergeFactor;
+	private final ExecutorService pool;
+	private final List<List<CompletableFuture<Path>>> levels = new ArrayList<>();
+	private final AtomicInteger merges = new AtomicInteger();
+
+	/**
+	 * create a merger
+	 *
+	 * @param directory   the directory of the merged HDTs
+	 * @param prefix      the prefix of the merged HDTs
+	 * @param mergeFactor the number of HDTs merged by a cat
+	 * @param threads     the number of concurrent merges
+	 */
+	public HDTChunkMerger(Path directory, String prefix, int mergeFactor, int threads) {
+		if (mergeFactor < 2) {
+			throw new IllegalArgumentException("mergeFactor can't be less than 2! " + mergeFactor);
+		}
+		if (threads <= 0) {
+			throw new IllegalArgumentException("threads can't be negative or zero! " + threads);
+		}
+		this.directory = directory;
+		this.prefix = prefix;
+		this.mergeFactor = mergeFactor;
+		AtomicInteger id = new AtomicInteger();
+		this.pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread thread = new Thread(r, "HDTChunkMerger#" + id.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * add a generated chunk, the chunk is deleted once merged, can be called by multiple threads
+	 *
+	 * @param chunk the chunk HDT
+	 */
+	public synchronized void addChunk(Path chunk) {
+		add(0, CompletableFuture.completedFuture(chunk));
+	}
+
+	/**
+	 * merge the remaining HDTs of all the levels
+	 *
+	 * @return the merged HDT
+	 * @throws IOException merge error or no chunk
+	 */
+	public Path finish() throws IOException {
+		CompletableFuture<Path> result;
+		synchronized (this) {
+			List<CompletableFuture<Path>> remaining = new ArrayList<>();
+			for (List<CompletableFuture<Path>> level : levels) {
+				remaining.addAll(level);
+			}
+			levels.clear();
+			if (remaining.isEmpty()) {
+				throw new IOException("No triple to compress");
+			}
+			result = remaining.size() == 1 ? remaining.get(0) : merge(remaining);
+		}
+		try {
+			return result.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof UncheckedIOException uioe) {
+				throw uioe.getCause();
+			}
+			throw new IOException("Can't merge the chunks", e.getCause());
+		}
+	}
+
+	private void add(int level, CompletableFuture<Path> hdt) {
+		while (levels.size() <= level) {
+			levels.add(new ArrayList<>());
+		}
+		List<CompletableFuture<Path>> group = levels.get(level);
+		group.add(hdt);
+		if (group.size() == mergeFactor) {
+			List<CompletableFuture<Path>> inputs = List.copyOf(group);
+			group.clear();
+			add(level + 1, merge(inputs));
+		}
+	}
+
+	private CompletableFuture<Path> merge(List<CompletableFuture<Path>> inputs) {
+		Path output = directory.resolve(prefix + ".cat" + String.format("%03d", merges.getAndIncrement()) + ".hdt");
+		return CompletableFuture.allOf(inputs.toArray(CompletableFuture[]::new))
+				.thenApplyAsync(v -> {
+					List<Path> paths = inputs.stream().map(CompletableFuture::join).toList();
+					try {
+						cat(paths, output);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+					return output;
+				}, pool);
+	}
+
+	/**
+	 * cat HDTs into an HDT file, the input HDTs are deleted
+	 *
+	 * @param inputs the HDTs
+	 * @param output the merged HDT
+	 * @throws IOException cat error
+	 */
+	public static void cat(List<Path> inputs, Path output) throws IOException {
+		System.out.println("Cat " + inputs.size() + " HDT(s) into " + output);
+		// the merges can run at the same time, one work directory by merge
+		HDTOptions spec = HDTOptions.of(
+				HDTOptionsKeys.HDTCAT_LOCATION, output.resolveSibling(output.getFileName() + "_work").toAbsolutePath(),
+				HDTOptionsKeys.HDTCAT_FUTURE_LOCATION, output.toAbsolutePath(),
+				HDTOptionsKeys.HDTCAT_DELETE_LOCATION, true
+		);
+		try (HDT hdt = HDTManager.catHDTPath(inputs, spec, null)) {
+			System.out.println("merged " + hdt.getTriples().getNumberOfElements() + " triple(s) into " + output);
+		}
+		for (Path input : inputs) {
+			Files.delete(input);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		pool.shutdownNow();
+		try {
+			if (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+				throw new IOException("Can't stop the merges");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while stopping the merges");
+		}
+	}
+}
@@ -5,21 +5,43 @@ import com.the_qa_company.qendpoint.core.enums.RDFNotation;
 import com.the_qa_company.qendpoint.core.exceptions.ParserException;
 import com.the_qa_company.qendpoint.core.hdt.HDT;
 import com.the_qa_company.qendpoint.core.hdt.HDTManager;
+import com.the_qa_company.qendpoint.core.listener.ProgressListener;
 import com.the_qa_company.qendpoint.core.options.HDTOptions;
+import com.the_qa_company.qendpoint.core.options.HDTOptionsKeys;
 import com.the_qa_company.qendpoint.core.rdf.RDFParserCallback;
 import com.the_qa_company.qendpoint.core.rdf.RDFParserFactory;
 import com.the_qa_company.qendpoint.core.triples.TripleString;
 import com.the_qa_company.qendpoint.core.util.StopWatch;
+import org.apache.commons.io.file.PathUtils;
 
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @UtilityClass
 public class HDTUtils {
+	/**
+	 * number of HDTs merged by a cat of the chunks
+	 */
+	public static final int MERGE_FACTOR = 8;
+	/**
+	 * number of triples piped to a chunk builder before it reads them
+	 */
+	private static final int SLICE_BUFFER = 10000;
+	/**
+	 * minimum size of the chunks generated by concurrent builders, smaller chunks would deepen the cat tree
+	 */
+	public static final long MIN_CHUNK_SIZE = 64L * 1024 * 1024;
 
 	/**
 	 * @return a theoretical maximum amount of memory the JVM will attempt to
@@ -32,9 +54,80 @@ public class HDTUtils {
 		System.out.println("Maximal available memory " + presFreeMemory);
 		return presFreeMemory;
 	}
+
+	/**
+	 * get the number of chunk merges running with the chunk builders, a merge is considered to use the memory of a
+	 * chunk
+	 *
+	 * @param chunkSize the chunk size
+	 * @param budget    the memory left by the builders, with the unit of {@link #getMaxChunkSize()}
+	 * @return number of merge threads
+	 */
+	public static int getMergeThreads(long chunkSize, long budget) {
+		return (int) Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), budget / Math.max(1, chunkSize)));
+	}
 	public static void compressToHdt(RDFNotation notation, String baseURI, String filename, Path hdtLocation,
 									 HDTOptions specs) throws IOException {
-		long chunkSize = getMaxChunkSize();
+		// get a triple iterator for this stream
+		Iterator<TripleString> tripleIterator;
+		if (notation == RDFNotation.DIR) {
+			// the files are independent, parsed at the same time
+			tripleIterator = DirectoryTriples.readTriples(Path.of(filename), baseURI, Runtime.getRuntime().availableProcessors());
+		} else {
+			RDFParserCallback parser = RDFParserFactory.getParserCallback(notation);
+			// the parser can reuse its triple, the pipe hands over the triples by batches, copy the components
+			tripleIterator = PipedIterator.createOfCallback(
+					pipe -> parser.doParse(filename, baseURI, notation, true, (triple, pos) -> pipe.addElement(new TripleString(
+							triple.getSubject().toString(),
+							triple.getPredicate().toString(),
+							triple.getObject().toString()
+					)))
+			);
+		}
+		compressToHdt(tripleIterator, baseURI, filename, hdtLocation, specs);
+	}
+
+	/**
+	 * compress a triple stream into an HDT with at most one chunk builder per core, see
+	 * {@link #compressToHdt(Iterator, String, String, Path, HDTOptions, int)}
+	 *
+	 * @param tripleIterator the triples
+	 * @param baseURI        base URI of the HDT
+	 * @param filename       name used for the temporary chunks
+	 * @param hdtLocation    hdt path to save it
+	 * @param specs          HDT options
+	 * @throws IOException io error
+	 */
+	public static void compressToHdt(Iterator<TripleString> tripleIterator, String baseURI, String filename,
+									 Path hdtLocation, HDTOptions specs) throws IOException {
+		compressToHdt(tripleIterator, baseURI, filename, hdtLocation, specs, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * compress a triple stream into an HDT, the stream is split into chunks merged with a tree of k-way cats. The
+	 * calling thread splits the stream and pipes the slice of each chunk to a builder, the builders generate their
+	 * chunks at the same time, the builders and the merges share the memory budget of the chunks.
+	 *
+	 * @param tripleIterator the triples
+	 * @param baseURI        base URI of the HDT
+	 * @param filename       name used for the temporary chunks
+	 * @param hdtLocation    hdt path to save it
+	 * @param specs          HDT options
+	 * @param workers        maximum number of chunk builders, reduced to keep chunks of {@link #MIN_CHUNK_SIZE}
+	 * @throws IOException io error
+	 */
+	public static void compressToHdt(Iterator<TripleString> tripleIterator, String baseURI, String filename,
+									 Path hdtLocation, HDTOptions specs, int workers) throws IOException {
+		if (workers <= 0) {
+			throw new IllegalArgumentException("workers can't be negative or zero! " + workers);
+		}
+		long budget = getMaxChunkSize();
+		// a builder and a merge use the memory of a chunk, the builders get one half of the budget, the merges the
+		// other half
+		int builderCount = (int) Math.max(1, Math.min(workers, budget / 2 / MIN_CHUNK_SIZE));
+		long chunkSize = budget / 2 / builderCount;
+		int mergeThreads = getMergeThreads(chunkSize, budget - builderCount * chunkSize);
+		System.out.println(builderCount + " chunk builder(s) of " + chunkSize + ", " + mergeThreads + " merge(s)");
 
 		Path hdtParentFile = hdtLocation.getParent().toAbsolutePath();
 		Files.createDirectories(hdtParentFile);
@@ -45,80 +138,140 @@ public class HDTUtils {
 		// the compression will not fit in memory, cat the files in chunks and
 		// use hdtCat
 
-		// get a triple iterator for this stream
-		RDFParserCallback parser = RDFParserFactory.getParserCallback(notation);
-		Iterator<TripleString> tripleIterator = PipedIterator.createOfCallback(
-				pipe -> parser.doParse(filename, baseURI, notation, true, (triple, pos) -> pipe.addElement(triple))
-		);
 		// split this triple iterator to filed triple iterator
 		FileTripleIterator it = new FileTripleIterator(tripleIterator, chunkSize);
+		// the progress lines of the builders would be mixed
+		boolean progress = builderCount == 1;
 
-		int file = 0;
-		Path lastFile = null;
-		while (it.hasNewFile()) {
-			System.out.println("Compressing #" + file);
-			Path hdtOutput  = hdtParentFile.resolve(tempFile.getFileName() + "." + String.format("%03d", file) + ".hdt");
-
-			generateHDT(it, baseURI, specs, hdtOutput);
-
-			System.gc();
-			System.out.println("Competed into " + hdtOutput);
-			if (file > 0) {
-				// not the first file, so we have at least 2 files
-				System.out.println("Cat " + hdtOutput);
-				Path nextIndex = hdtParentFile.resolve("index_cat_tmp_" + file + ".hdt");
-				try (HDT tmp = HDTManager.catHDT(
-						nextIndex.toAbsolutePath().toString(),
-						lastFile.toAbsolutePath().toString(),
-						hdtOutput.toAbsolutePath().toString(),
-						specs,
-						HDTUtils::listener)) {
-					System.out.println();
-
-					System.out.println(
-							"saving hdt with " + tmp.getTriples().getNumberOfElements() + " triple(s) into " + nextIndex);
-					tmp.saveToHDT(
-							nextIndex.toAbsolutePath().toString(),
-							HDTUtils::listener
-					);
-					System.out.println();
+		ExecutorService builders = Executors.newFixedThreadPool(builderCount);
+		try (HDTChunkMerger merger = new HDTChunkMerger(hdtParentFile, tempFile.getFileName().toString(), MERGE_FACTOR, mergeThreads)) {
+			List<Future<Void>> chunks = new ArrayList<>();
+			int file = 0;
+			while (it.hasNewFile()) {
+				for (Future<Void> chunk : chunks) {
+					if (chunk.isDone()) {
+						// stop the split after a builder error
+						getChunk(chunk);
+					}
 				}
-				System.gc();
-
-				Files.delete(hdtOutput);
-				if (file > 1) {
-					// at least the 2nd
-					Files.delete(hdtParentFile.resolve("index_cat_tmp_" + (file - 1) + ".hdt"));
-					Files.delete(hdtParentFile.resolve("index_cat_tmp_" + (file - 1) + ".hdtdictionary"));
-					Files.delete(hdtParentFile.resolve("index_cat_tmp_" + (file - 1) + ".hdttriples"));
-				} else {
-					Files.delete(lastFile);
+				int chunkId = file++;
+				Path hdtOutput = hdtParentFile.resolve(tempFile.getFileName() + "." + String.format("%03d", chunkId) + ".hdt");
+				PipedIterator<TripleString> slice = new PipedIterator<>(SLICE_BUFFER);
+				chunks.add(builders.submit(() -> {
+					System.out.println("Compressing #" + chunkId);
+					try {
+						generateHDT(slice, baseURI, specs, hdtOutput, progress);
+					} catch (Throwable t) {
+						// release the split thread
+						try {
+							while (slice.hasNext()) {
+								slice.next();
+							}
+						} catch (PipedIterator.PipedIteratorException ignore) {
+						}
+						throw t;
+					}
+					System.out.println("Competed into " + hdtOutput);
+					// merged in background with the chunks of its level
+					merger.addChunk(hdtOutput);
+					return null;
+				}));
+				try {
+					while (it.hasNext()) {
+						slice.addElement(it.next());
+					}
+				} catch (Throwable t) {
+					slice.closePipe(t);
+					throw t;
 				}
-				lastFile = nextIndex;
-			} else {
-				lastFile = hdtOutput;
+				slice.closePipe();
+			}
+			for (Future<Void> chunk : chunks) {
+				getChunk(chunk);
 			}
-			file++;
+			Files.move(merger.finish(), hdtLocation);
+		} finally {
+			builders.shutdownNow();
 		}
-		assert lastFile != null : "Last file can't be null";
-		Files.move(lastFile, hdtLocation);
-		if (file != 1) {
-			Files.delete(hdtParentFile.resolve("index_cat_tmp_" + (file - 1) + ".hdtdictionary"));
-			Files.delete(hdtParentFile.resolve("index_cat_tmp_" + (file - 1) + ".hdttriples"));
+		System.out.println("NT file loaded in " + timeWatch.stopAndShow());
+	}
+
+	/**
+	 * compress a triple stream into an HDT with the disk generation, the triples are sorted into chunk files and merged
+	 * on disk, the memory used doesn't depend on the size of the stream
+	 *
+	 * @param tripleIterator the triples
+	 * @param baseURI        base URI of the HDT
+	 * @param hdtLocation    hdt path to save it
+	 * @param workLocation   directory of the chunk files, deleted at the end
+	 * @param workers        number of chunk workers, 0 for one by core
+	 * @param chunkMemory    memory of a chunk worker in bytes, 0 to compute it from the heap
+	 * @throws IOException io error
+	 */
+	public static void compressToHdtDisk(Iterator<TripleString> tripleIterator, String baseURI, Path hdtLocation,
+										 Path workLocation, int workers, long chunkMemory) throws IOException {
+		if (workers < 0) {
+			throw new IllegalArgumentException("workers can't be negative! " + workers);
+		}
+		if (chunkMemory < 0) {
+			throw new IllegalArgumentException("chunkMemory can't be negative! " + chunkMemory);
+		}
+		Files.createDirectories(hdtLocation.toAbsolutePath().getParent());
+		Files.createDirectories(workLocation);
+
+		StopWatch timeWatch = new StopWatch();
+
+		HDTOptions spec = HDTOptions.of(
+				HDTOptionsKeys.LOADER_DISK_LOCATION_KEY, workLocation.toAbsolutePath(),
+				// written to the file and mapped instead of loaded
+				HDTOptionsKeys.LOADER_DISK_FUTURE_HDT_LOCATION_KEY, hdtLocation.toAbsolutePath()
+		);
+		if (workers != 0) {
+			spec.set(HDTOptionsKeys.LOADER_DISK_COMPRESSION_WORKER_KEY, String.valueOf(workers));
+		}
+		if (chunkMemory != 0) {
+			spec.set(HDTOptionsKeys.LOADER_DISK_CHUNK_SIZE_KEY, String.valueOf(chunkMemory));
+		}
+		try (HDT hdt = HDTManager.generateHDTDisk(tripleIterator, baseURI, spec, HDTUtils::listener)) {
+			System.out.println();
+			System.out.println("Generated " + hdt.getTriples().getNumberOfElements() + " triple(s) into " + hdtLocation);
+		} catch (ParserException e) {
+			throw new IOException("Can't generate HDT", e);
+		} finally {
+			if (Files.exists(workLocation)) {
+				PathUtils.deleteDirectory(workLocation);
+			}
 		}
 		System.out.println("NT file loaded in " + timeWatch.stopAndShow());
 	}
 
-	private static void generateHDT(Iterator<TripleString> it, String baseURI, HDTOptions spec, Path hdtOutput)
-			throws IOException {
-			// directly use the TripleString stream to generate the HDT
-		try (HDT hdtDump = HDTManager.generateHDT(it, baseURI, spec, HDTUtils::listener);
+	private static void getChunk(Future<Void> chunk) throws IOException {
+		try {
+			chunk.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while generating the chunks");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException ioe) {
+				throw ioe;
+			}
+			throw new IOException("Can't generate chunk", e.getCause());
+		}
+	}
+
+	private static void generateHDT(Iterator<TripleString> it, String baseURI, HDTOptions spec, Path hdtOutput,
+									boolean progress) throws IOException {
+		ProgressListener listener = progress ? HDTUtils::listener : ProgressListener.ignore();
+		// directly use the TripleString stream to generate the HDT
+		try (HDT hdtDump = HDTManager.generateHDT(it, baseURI, spec, listener);
 			 OutputStream out = new BufferedOutputStream(Files.newOutputStream(hdtOutput))) {
-			hdtDump.saveToHDT(out, HDTUtils::listener);
+			hdtDump.saveToHDT(out, listener);
 		} catch (ParserException e) {
 			throw new IOException("Can't generate HDT", e);
 		} finally {
-			System.out.println();
+			if (progress) {
+				System.out.println();
+			}
 		}
 	}
 
@@ -3,6 +3,14 @@ package com.the_qa_company.wikidatachanges.utils;
 import java.util.Iterator;
 import java.util.concurrent.ArrayBlockingQueue;
 
+/**
+ * Iterator filled by another thread, the elements are moved by batches and the batches are recycled by the reader.
+ * An added element is read later, it shouldn't be reused by the producer, a slow producer should use batches of 1 to
+ * not delay the reader. The writer side isn't synchronized, {@link #addElement(Object)} and {@link #closePipe()} must
+ * only be called from one thread at a time, concurrent producers have to synchronize on the pipe.
+ *
+ * @param <T> the iterator type
+ */
 public class PipedIterator<T> implements Iterator<T> {
 	/**
 	 * RuntimeException generated by the PipedIterator
@@ -44,7 +52,21 @@ public class PipedIterator<T> implements Iterator<T> {
 	 * @return the iterator
 	 */
 	public static <T> PipedIterator<T> createOfCallback(PipeCallBack<T> callbackRunner) {
-		PipedIterator<T> pipe = new PipedIterator<>(10000);
+		return createOfCallback(10000, Math.min(10000, DEFAULT_BATCH_SIZE), callbackRunner);
+	}
+
+	/**
+	 * create a piped iterator from a callback runner with a buffer size, the
+	 * call to the callback should be made in the callbackRunner
+	 *
+	 * @param bufferSize     the maximum number of elements in the pipe
+	 * @param batchSize      the number of elements moved at once between the threads
+	 * @param callbackRunner the callback runner
+	 * @param <T>            type of the iterator
+	 * @return the iterator
+	 */
+	public static <T> PipedIterator<T> createOfCallback(int bufferSize, int batchSize, PipeCallBack<T> callbackRunner) {
+		PipedIterator<T> pipe = new PipedIterator<>(bufferSize, batchSize);
 
 		Thread thread = new Thread(() -> {
 			try {
@@ -59,39 +81,59 @@ public class PipedIterator<T> implements Iterator<T> {
 		return pipe;
 	}
 
-	private class PipedNode {
-		T t;
-
-		public PipedNode(T t) {
-			this.t = t;
-		}
-
-		boolean end() {
-			return false;
+	/**
+	 * batch of elements moved between the threads, the batches are recycled by the reader
+	 */
+	private static class Batch {
+		private final Object[] elements;
+		private int size;
+		private boolean end;
+		private Throwable exception;
+
+		Batch(int capacity) {
+			elements = new Object[capacity];
 		}
 	}
 
-	private class PipedNodeEnd extends PipedNode {
-		private final Throwable exception;
+	/**
+	 * default number of elements moved at once between the threads
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 1024;
 
-		public PipedNodeEnd(Throwable exception) {
-			super(null);
-			this.exception = exception;
-		}
+	private final ArrayBlockingQueue<Batch> full;
+	private final ArrayBlockingQueue<Batch> free;
+	// writer side
+	private Batch writeBatch;
+	// reader side
+	private Batch readBatch;
+	private int readIndex;
 
-		boolean end() {
-			if (exception != null) {
-				throw new PipedIteratorException("Crash while creating pipe", exception);
-			}
-			return true;
-		}
+	/**
+	 * create a pipe moving the elements by batches of {@link #DEFAULT_BATCH_SIZE} elements
+	 *
+	 * @param bufferSize the maximum number of elements in the pipe
+	 */
+	public PipedIterator(int bufferSize) {
+		this(bufferSize, Math.min(bufferSize, DEFAULT_BATCH_SIZE));
 	}
 
-	private final ArrayBlockingQueue<PipedNode> queue;
-	private PipedNode next;
-
-	public PipedIterator(int bufferSize) {
-		queue = new ArrayBlockingQueue<>(bufferSize);
+	/**
+	 * create a pipe, the elements are read once their batch is full or the pipe closed
+	 *
+	 * @param bufferSize the maximum number of elements in the pipe
+	 * @param batchSize  the number of elements moved at once between the threads
+	 */
+	public PipedIterator(int bufferSize, int batchSize) {
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batchSize can't be negative or zero! " + batchSize);
+		}
+		// a batch is filled while another is read
+		int batches = Math.max(2, bufferSize / batchSize);
+		full = new ArrayBlockingQueue<>(batches);
+		free = new ArrayBlockingQueue<>(batches);
+		for (int i = 0; i < batches; i++) {
+			free.add(new Batch(batchSize));
+		}
 	}
 
 	/**
@@ -102,7 +144,14 @@ public class PipedIterator<T> implements Iterator<T> {
 	 */
 	public void addElement(T element) throws PipedIteratorException {
 		try {
-			queue.put(new PipedNode(element));
+			if (writeBatch == null) {
+				writeBatch = free.take();
+			}
+			writeBatch.elements[writeBatch.size++] = element;
+			if (writeBatch.size == writeBatch.elements.length) {
+				full.put(writeBatch);
+				writeBatch = null;
+			}
 		} catch (InterruptedException e) {
 			throw new PipedIteratorException("Can't add element", e);
 		}
@@ -125,7 +174,14 @@ public class PipedIterator<T> implements Iterator<T> {
 	 */
 	public void closePipe(Throwable e) throws PipedIteratorException {
 		try {
-			queue.put(new PipedNodeEnd(e));
+			if (writeBatch == null) {
+				writeBatch = free.take();
+			}
+			// the elements of the last batch are read before the end
+			writeBatch.end = true;
+			writeBatch.exception = e;
+			full.put(writeBatch);
+			writeBatch = null;
 		} catch (InterruptedException ie) {
 			throw new PipedIteratorException("Can't close pipe", ie);
 		}
@@ -139,14 +195,26 @@ public class PipedIterator<T> implements Iterator<T> {
 	 */
 	@Override
 	public boolean hasNext() throws PipedIteratorException {
-		if (next == null) {
+		while (readBatch == null || readIndex == readBatch.size) {
+			if (readBatch != null) {
+				if (readBatch.end) {
+					if (readBatch.exception != null) {
+						throw new PipedIteratorException("Crash while creating pipe", readBatch.exception);
+					}
+					return false;
+				}
+				readBatch.size = 0;
+				free.add(readBatch);
+			}
 			try {
-				next = queue.take();
+				readBatch = full.take();
 			} catch (InterruptedException e) {
+				readBatch = null;
 				throw new PipedIteratorException("Can't get next element", e);
 			}
+			readIndex = 0;
 		}
-		return !next.end();
+		return true;
 	}
 
 	/**
@@ -155,11 +223,13 @@ public class PipedIterator<T> implements Iterator<T> {
 	 *                                in case of Interruption
 	 */
 	@Override
+	@SuppressWarnings("unchecked")
 	public T next() throws PipedIteratorException {
 		if (!hasNext())
 			return null;
-		T next = this.next.t;
-		this.next = null;
+		T next = (T) readBatch.elements[readIndex];
+		// the recycled batch doesn't keep the element
+		readBatch.elements[readIndex++] = null;
 		return next;
 	}
 }
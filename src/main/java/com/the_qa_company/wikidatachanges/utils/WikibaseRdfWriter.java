@@ -0,0 +1,519 @@
+package com.the_qa_company.wikidatachanges.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.the_qa_company.wikidatachanges.api.RDFFlavor;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * Convert the json of a wbgetentities entity into the N-Triples shape of the Special:EntityData turtle pages, the
+ * output is a valid turtle document.
+ * <ul>
+ *     <li>{@link RDFFlavor#SIMPLE}: entity data, terms, truthy statements and sitelinks</li>
+ *     <li>{@link RDFFlavor#DUMP}: SIMPLE with the statement nodes, the qualifiers and the references</li>
+ *     <li>{@link RDFFlavor#FULL}: DUMP with the declarations of the used properties</li>
+ * </ul>
+ * The time, quantity and globe coordinate values of the statements, qualifiers and references are also written as
+ * value nodes (psv, pqv, prv) with their precision, calendar, bounds, unit and globe, the unknown values are skolem
+ * IRIs.
+ * <p>
+ * The conversion is lossy: the ids of the value nodes and the skolem IRIs are hashes computed from the json instead of
+ * the Wikibase hashes, the normalized values (psn, pqn, prn, wdtn) aren't written, their conversions are configured on
+ * the server, and the labels of the referenced entities of the FULL flavor aren't written.
+ */
+public class WikibaseRdfWriter {
+	private static final String WD = "http://www.wikidata.org/entity/";
+	private static final String WDS = "http://www.wikidata.org/entity/statement/";
+	private static final String WDREF = "http://www.wikidata.org/reference/";
+	private static final String WDT = "http://www.wikidata.org/prop/direct/";
+	private static final String P = "http://www.wikidata.org/prop/";
+	private static final String PS = "http://www.wikidata.org/prop/statement/";
+	private static final String PQ = "http://www.wikidata.org/prop/qualifier/";
+	private static final String PR = "http://www.wikidata.org/prop/reference/";
+	private static final String PSV = "http://www.wikidata.org/prop/statement/value/";
+	private static final String PQV = "http://www.wikidata.org/prop/qualifier/value/";
+	private static final String PRV = "http://www.wikidata.org/prop/reference/value/";
+	private static final String WDV = "http://www.wikidata.org/value/";
+	private static final String GENID = "http://www.wikidata.org/.well-known/genid/";
+	private static final String WDNO = "http://www.wikidata.org/prop/novalue/";
+	private static final String ENTITY_DATA = "https://www.wikidata.org/wiki/Special:EntityData/";
+	private static final String WIKIBASE = "http://wikiba.se/ontology#";
+	private static final String SCHEMA = "http://schema.org/";
+	private static final String RDF = "http://www.w3.org/1999/02/22-rdf-syntax-ns#";
+	private static final String RDFS = "http://www.w3.org/2000/01/rdf-schema#";
+	private static final String SKOS = "http://www.w3.org/2004/02/skos/core#";
+	private static final String XSD = "http://www.w3.org/2001/XMLSchema#";
+	private static final String PROV = "http://www.w3.org/ns/prov#";
+	private static final String OWL = "http://www.w3.org/2002/07/owl#";
+	private static final String GEO = "http://www.opengis.net/ont/geosparql#";
+	private static final String RDF_TYPE = iri(RDF + "type");
+	private static final String EARTH = WD + "Q2";
+	private static final String NO_UNIT = WD + "Q199";
+	private static final Pattern LANG_TAG = Pattern.compile("[a-zA-Z]+(-[a-zA-Z0-9]+)*");
+
+	/**
+	 * convert an entity
+	 *
+	 * @param entity the entity json
+	 * @param flavor the flavor
+	 * @return N-Triples of the entity
+	 */
+	public static byte[] write(JsonNode entity, RDFFlavor flavor) {
+		WikibaseRdfWriter writer = new WikibaseRdfWriter(flavor);
+		writer.writeEntity(entity);
+		return writer.out.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private final StringBuilder out = new StringBuilder();
+	private final RDFFlavor flavor;
+	private final Map<String, String> usedProperties = new TreeMap<>();
+	// the value nodes are only described once by page
+	private final Set<String> valueNodes = new HashSet<>();
+
+	private WikibaseRdfWriter(RDFFlavor flavor) {
+		this.flavor = flavor;
+	}
+
+	private void writeEntity(JsonNode entity) {
+		String id = entity.path("id").asText();
+		String s = iri(WD + id);
+		boolean property = "property".equals(entity.path("type").asText());
+
+		long statements = 0;
+		long identifiers = 0;
+		for (JsonNode claims : entity.path("claims")) {
+			for (JsonNode statement : claims) {
+				statements++;
+				if ("external-id".equals(statement.path("mainsnak").path("datatype").asText())) {
+					identifiers++;
+				}
+			}
+		}
+
+		// entity data
+		String data = iri(ENTITY_DATA + id);
+		triple(data, RDF_TYPE, iri(SCHEMA + "Dataset"));
+		triple(data, iri(SCHEMA + "about"), s);
+		triple(data, iri("http://creativecommons.org/ns#license"), iri("http://creativecommons.org/publicdomain/zero/1.0/"));
+		triple(data, iri(SCHEMA + "softwareVersion"), literal("1.0.0"));
+		if (entity.has("lastrevid")) {
+			triple(data, iri(SCHEMA + "version"), typed(entity.get("lastrevid").asText(), XSD + "integer"));
+		}
+		if (entity.has("modified")) {
+			triple(data, iri(SCHEMA + "dateModified"), typed(entity.get("modified").asText(), XSD + "dateTime"));
+		}
+		triple(data, iri(WIKIBASE + "statements"), typed(String.valueOf(statements), XSD + "integer"));
+		triple(data, iri(WIKIBASE + "sitelinks"), typed(String.valueOf(entity.path("sitelinks").size()), XSD + "integer"));
+		triple(data, iri(WIKIBASE + "identifiers"), typed(String.valueOf(identifiers), XSD + "integer"));
+
+		triple(s, RDF_TYPE, iri(WIKIBASE + (property ? "Property" : "Item")));
+		if (property && entity.has("datatype")) {
+			writePropertyDeclaration(id, entity.get("datatype").asText());
+		}
+
+		// terms
+		for (JsonNode label : entity.path("labels")) {
+			String value = langLiteral(label);
+			if (value != null) {
+				triple(s, iri(RDFS + "label"), value);
+				triple(s, iri(SKOS + "prefLabel"), value);
+				triple(s, iri(SCHEMA + "name"), value);
+			}
+		}
+		for (JsonNode description : entity.path("descriptions")) {
+			String value = langLiteral(description);
+			if (value != null) {
+				triple(s, iri(SCHEMA + "description"), value);
+			}
+		}
+		for (JsonNode aliases : entity.path("aliases")) {
+			for (JsonNode alias : aliases) {
+				String value = langLiteral(alias);
+				if (value != null) {
+					triple(s, iri(SKOS + "altLabel"), value);
+				}
+			}
+		}
+
+		// statements
+		Iterator<Map.Entry<String, JsonNode>> claims = entity.path("claims").fields();
+		while (claims.hasNext()) {
+			Map.Entry<String, JsonNode> e = claims.next();
+			writeStatements(s, e.getKey(), e.getValue());
+		}
+
+		// sitelinks
+		for (JsonNode sitelink : entity.path("sitelinks")) {
+			writeSitelink(s, sitelink);
+		}
+
+		if (flavor == RDFFlavor.FULL) {
+			usedProperties.forEach((pid, datatype) -> {
+				if (!pid.equals(id)) {
+					writePropertyDeclaration(pid, datatype);
+				}
+			});
+		}
+	}
+
+	private void writeStatements(String s, String pid, JsonNode statements) {
+		boolean hasPreferred = false;
+		for (JsonNode statement : statements) {
+			if ("preferred".equals(statement.path("rank").asText())) {
+				hasPreferred = true;
+				break;
+			}
+		}
+		String bestRank = hasPreferred ? "preferred" : "normal";
+
+		for (JsonNode statement : statements) {
+			String rank = statement.path("rank").asText("normal");
+			boolean best = rank.equals(bestRank);
+			JsonNode mainsnak = statement.path("mainsnak");
+			String stmt = iri(WDS + statement.path("id").asText().replaceFirst("\\$", "-"));
+
+			if (best) {
+				writeSnak(s, stmt, WDT, null, pid, mainsnak);
+			}
+
+			if (flavor == RDFFlavor.SIMPLE) {
+				continue;
+			}
+
+			triple(s, iri(P + pid), stmt);
+			triple(stmt, RDF_TYPE, iri(WIKIBASE + "Statement"));
+			if (best) {
+				triple(stmt, RDF_TYPE, iri(WIKIBASE + "BestRank"));
+			}
+			triple(stmt, iri(WIKIBASE + "rank"), iri(WIKIBASE + Character.toUpperCase(rank.charAt(0)) + rank.substring(1) + "Rank"));
+			writeSnak(stmt, stmt, PS, PSV, pid, mainsnak);
+
+			Iterator<Map.Entry<String, JsonNode>> qualifiers = statement.path("qualifiers").fields();
+			while (qualifiers.hasNext()) {
+				Map.Entry<String, JsonNode> e = qualifiers.next();
+				for (JsonNode snak : e.getValue()) {
+					writeSnak(stmt, stmt, PQ, PQV, e.getKey(), snak);
+				}
+			}
+
+			for (JsonNode reference : statement.path("references")) {
+				String ref = iri(WDREF + reference.path("hash").asText());
+				triple(stmt, iri(PROV + "wasDerivedFrom"), ref);
+				triple(ref, RDF_TYPE, iri(WIKIBASE + "Reference"));
+				Iterator<Map.Entry<String, JsonNode>> snaks = reference.path("snaks").fields();
+				while (snaks.hasNext()) {
+					Map.Entry<String, JsonNode> e = snaks.next();
+					for (JsonNode snak : e.getValue()) {
+						writeSnak(ref, ref, PR, PRV, e.getKey(), snak);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * write a snak
+	 *
+	 * @param subject     the subject of the snak
+	 * @param node        the statement or reference node of the snak, scope of the unknown values
+	 * @param predicateNs the namespace of the simple value predicate
+	 * @param valueNs     the namespace of the value node predicate, null to write only the simple value
+	 * @param pid         the property of the snak
+	 * @param snak        the snak json
+	 */
+	private void writeSnak(String subject, String node, String predicateNs, String valueNs, String pid, JsonNode snak) {
+		String datatype = snak.path("datatype").asText();
+		if (!datatype.isEmpty()) {
+			usedProperties.putIfAbsent(pid, datatype);
+		}
+		switch (snak.path("snaktype").asText()) {
+			case "novalue" -> triple(subject, RDF_TYPE, iri(WDNO + pid));
+			case "somevalue" -> {
+				// same skolem IRI for the direct claim and the statement
+				String key = node + " " + pid + " " + snak.path("hash").asText();
+				triple(subject, iri(predicateNs + pid), iri(GENID + md5(key)));
+			}
+			case "value" -> {
+				JsonNode datavalue = snak.path("datavalue");
+				String value = value(datatype, datavalue);
+				if (value != null) {
+					triple(subject, iri(predicateNs + pid), value);
+				}
+				if (valueNs != null) {
+					writeValueNode(subject, valueNs, pid, datavalue);
+				}
+			}
+			default -> {
+			}
+		}
+	}
+
+	/**
+	 * write the value node of a time, a quantity or a globe coordinate
+	 *
+	 * @param subject   the subject of the snak
+	 * @param valueNs   the namespace of the value node predicate
+	 * @param pid       the property of the snak
+	 * @param datavalue the snak datavalue
+	 */
+	private void writeValueNode(String subject, String valueNs, String pid, JsonNode datavalue) {
+		String type = datavalue.path("type").asText();
+		if (!type.equals("time") && !type.equals("quantity") && !type.equals("globecoordinate")) {
+			return;
+		}
+		JsonNode value = datavalue.path("value");
+		String node = iri(WDV + md5(value.toString()));
+		triple(subject, iri(valueNs + pid), node);
+		if (!valueNodes.add(node)) {
+			return;
+		}
+		switch (type) {
+			case "time" -> {
+				triple(node, RDF_TYPE, iri(WIKIBASE + "TimeValue"));
+				triple(node, iri(WIKIBASE + "timeValue"), typed(time(value.path("time").asText()), XSD + "dateTime"));
+				triple(node, iri(WIKIBASE + "timePrecision"), typed(value.path("precision").asText(), XSD + "integer"));
+				triple(node, iri(WIKIBASE + "timeTimezone"), typed(value.path("timezone").asText("0"), XSD + "integer"));
+				triple(node, iri(WIKIBASE + "timeCalendarModel"), iri(value.path("calendarmodel").asText()));
+			}
+			case "quantity" -> {
+				triple(node, RDF_TYPE, iri(WIKIBASE + "QuantityValue"));
+				triple(node, iri(WIKIBASE + "quantityAmount"), decimal(value.path("amount").asText()));
+				if (value.hasNonNull("upperBound")) {
+					triple(node, iri(WIKIBASE + "quantityUpperBound"), decimal(value.get("upperBound").asText()));
+				}
+				if (value.hasNonNull("lowerBound")) {
+					triple(node, iri(WIKIBASE + "quantityLowerBound"), decimal(value.get("lowerBound").asText()));
+				}
+				String unit = value.path("unit").asText("1");
+				triple(node, iri(WIKIBASE + "quantityUnit"), iri(unit.equals("1") ? NO_UNIT : unit));
+			}
+			default -> {
+				triple(node, RDF_TYPE, iri(WIKIBASE + "GlobecoordinateValue"));
+				triple(node, iri(WIKIBASE + "geoLatitude"), typed(number(value.path("latitude")), XSD + "double"));
+				triple(node, iri(WIKIBASE + "geoLongitude"), typed(number(value.path("longitude")), XSD + "double"));
+				if (value.hasNonNull("precision")) {
+					triple(node, iri(WIKIBASE + "geoPrecision"), typed(number(value.get("precision")), XSD + "double"));
+				}
+				triple(node, iri(WIKIBASE + "geoGlobe"), iri(value.path("globe").asText(EARTH)));
+			}
+		}
+	}
+
+	private void writeSitelink(String s, JsonNode sitelink) {
+		String url = sitelink.path("url").asText(null);
+		if (url == null) {
+			// no url without the sitelinks/urls prop
+			return;
+		}
+		URI uri = URI.create(url);
+		String host = uri.getHost();
+		String[] parts = host.split("\\.");
+		String site = uri.getScheme() + "://" + host + "/";
+		String lang = parts.length > 2 && !parts[0].equals("www") && LANG_TAG.matcher(parts[0]).matches()
+				&& !host.endsWith(".wikimedia.org") ? parts[0] : "en";
+		String group = host.endsWith(".wikimedia.org") || parts.length < 2 ? parts[0] : parts[parts.length - 2];
+
+		String article = iri(url);
+		triple(article, RDF_TYPE, iri(SCHEMA + "Article"));
+		triple(article, iri(SCHEMA + "about"), s);
+		triple(article, iri(SCHEMA + "inLanguage"), literal(lang));
+		triple(article, iri(SCHEMA + "isPartOf"), iri(site));
+		triple(article, iri(SCHEMA + "name"), literal(sitelink.path("title").asText()) + "@" + lang);
+		for (JsonNode badge : sitelink.path("badges")) {
+			triple(article, iri(WIKIBASE + "badge"), iri(WD + badge.asText()));
+		}
+		triple(iri(site), iri(WIKIBASE + "wikiGroup"), literal(group));
+	}
+
+	private void writePropertyDeclaration(String pid, String datatype) {
+		String prop = iri(WD + pid);
+		triple(prop, RDF_TYPE, iri(WIKIBASE + "Property"));
+		triple(prop, iri(WIKIBASE + "propertyType"), iri(WIKIBASE + propertyType(datatype)));
+		triple(prop, iri(WIKIBASE + "directClaim"), iri(WDT + pid));
+		triple(prop, iri(WIKIBASE + "claim"), iri(P + pid));
+		triple(prop, iri(WIKIBASE + "statementProperty"), iri(PS + pid));
+		triple(prop, iri(WIKIBASE + "statementValue"), iri(PSV + pid));
+		triple(prop, iri(WIKIBASE + "qualifier"), iri(PQ + pid));
+		triple(prop, iri(WIKIBASE + "qualifierValue"), iri(PQV + pid));
+		triple(prop, iri(WIKIBASE + "reference"), iri(PR + pid));
+		triple(prop, iri(WIKIBASE + "referenceValue"), iri(PRV + pid));
+		triple(prop, iri(WIKIBASE + "novalue"), iri(WDNO + pid));
+		// the same blank node in all the pages using the property
+		String restriction = "_:novalue" + pid;
+		triple(iri(WDNO + pid), RDF_TYPE, iri(OWL + "Class"));
+		triple(iri(WDNO + pid), iri(OWL + "complementOf"), restriction);
+		triple(restriction, RDF_TYPE, iri(OWL + "Restriction"));
+		triple(restriction, iri(OWL + "onProperty"), iri(WDT + pid));
+		triple(restriction, iri(OWL + "someValuesFrom"), iri(OWL + "Thing"));
+	}
+
+	/**
+	 * convert a snak value into a N-Triples term
+	 *
+	 * @param datatype  the property datatype
+	 * @param datavalue the snak datavalue
+	 * @return term, null if the value can't be converted
+	 */
+	private static String value(String datatype, JsonNode datavalue) {
+		JsonNode value = datavalue.path("value");
+		switch (datatype) {
+			case "commonsMedia" -> {
+				return iri("http://commons.wikimedia.org/wiki/Special:FilePath/" + encodeTitle(value.asText()));
+			}
+			case "geo-shape", "tabular-data" -> {
+				return iri("http://commons.wikimedia.org/data/main/" + encodeTitle(value.asText()));
+			}
+			case "url" -> {
+				return iri(value.asText());
+			}
+			case "math" -> {
+				return typed(value.asText(), "http://www.w3.org/1998/Math/MathML");
+			}
+			case "entity-schema" -> {
+				return iri("https://www.wikidata.org/wiki/EntitySchema:" + value.path("id").asText(value.asText()));
+			}
+			default -> {
+			}
+		}
+		switch (datavalue.path("type").asText()) {
+			case "string" -> {
+				return literal(value.asText());
+			}
+			case "wikibase-entityid" -> {
+				return iri(WD + value.path("id").asText());
+			}
+			case "monolingualtext" -> {
+				String lang = value.path("language").asText();
+				if (!LANG_TAG.matcher(lang).matches()) {
+					return literal(value.path("text").asText());
+				}
+				return literal(value.path("text").asText()) + "@" + lang;
+			}
+			case "time" -> {
+				return typed(time(value.path("time").asText()), XSD + "dateTime");
+			}
+			case "quantity" -> {
+				return decimal(value.path("amount").asText());
+			}
+			case "globecoordinate" -> {
+				String point = "Point(" + number(value.path("longitude")) + " " + number(value.path("latitude")) + ")";
+				String globe = value.path("globe").asText(EARTH);
+				return typed(globe.equals(EARTH) ? point : "<" + globe + "> " + point, GEO + "wktLiteral");
+			}
+			default -> {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * convert a wikibase time into a xsd:dateTime, the unknown month and day are set to 1
+	 */
+	private static String time(String time) {
+		String t = time.startsWith("+") ? time.substring(1) : time;
+		int tIdx = t.indexOf('T');
+		if (tIdx < 6) {
+			return t;
+		}
+		String date = t.substring(0, tIdx);
+		if (date.endsWith("-00-00")) {
+			date = date.substring(0, date.length() - 6) + "-01-01";
+		} else if (date.endsWith("-00")) {
+			date = date.substring(0, date.length() - 3) + "-01";
+		}
+		return date + t.substring(tIdx);
+	}
+
+	private static String decimal(String amount) {
+		return typed(amount.startsWith("+") ? amount.substring(1) : amount, XSD + "decimal");
+	}
+
+	/**
+	 * @return the plain notation of a json number, 0.0001 and not 1.0E-4
+	 */
+	private static String number(JsonNode number) {
+		return number.decimalValue().stripTrailingZeros().toPlainString();
+	}
+
+	private static String md5(String value) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new AssertionError("No MD5 digest", e);
+		}
+	}
+
+	private static String propertyType(String datatype) {
+		StringBuilder sb = new StringBuilder();
+		for (String part : datatype.split("-")) {
+			if (!part.isEmpty()) {
+				sb.append(Character.toUpperCase(part.charAt(0))).append(part, 1, part.length());
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String encodeTitle(String title) {
+		return URLEncoder.encode(title.replace(' ', '_'), StandardCharsets.UTF_8)
+				.replace("+", "%20")
+				.replace("%3A", ":")
+				.replace("%2F", "/");
+	}
+
+	private static String langLiteral(JsonNode term) {
+		String lang = term.path("language").asText();
+		if (!LANG_TAG.matcher(lang).matches()) {
+			return null;
+		}
+		return literal(term.path("value").asText()) + "@" + lang.toLowerCase(Locale.ROOT);
+	}
+
+	private void triple(String s, String p, String o) {
+		out.append(s).append(' ').append(p).append(' ').append(o).append(" .\n");
+	}
+
+	private static String iri(String iri) {
+		StringBuilder sb = new StringBuilder(iri.length() + 2).append('<');
+		for (int i = 0; i < iri.length(); i++) {
+			char c = iri.charAt(i);
+			if (c <= 0x20 || c == '<' || c == '>' || c == '"' || c == '{' || c == '}' || c == '|' || c == '^' || c == '`' || c == '\\') {
+				sb.append('%').append(String.format("%02X", (int) c));
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.append('>').toString();
+	}
+
+	private static String typed(String value, String datatype) {
+		return literal(value) + "^^" + iri(datatype);
+	}
+
+	private static String literal(String value) {
+		StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"' -> sb.append("\\\"");
+				case '\\' -> sb.append("\\\\");
+				case '\n' -> sb.append("\\n");
+				case '\r' -> sb.append("\\r");
+				case '\t' -> sb.append("\\t");
+				default -> sb.append(c);
+			}
+		}
+		return sb.append('"').toString();
+	}
+}
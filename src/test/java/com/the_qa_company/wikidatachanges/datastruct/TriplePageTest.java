@@ -0,0 +1,59 @@
+package com.the_qa_company.wikidatachanges.datastruct;
+
+import com.the_qa_company.qendpoint.core.triples.TripleString;
+import com.the_qa_company.wikidatachanges.utils.DeltaFileTriples;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TriplePageTest {
+	private static final String PAGE = """
+			@prefix wd: <http://www.wikidata.org/entity/> .
+			@prefix xsd: <http://www.w3.org/2001/XMLSchema#> .
+			@prefix schema: <http://schema.org/> .
+
+			wd:Q1 schema:description "a \\"quoted\\" \\\\ back\\\\slash\\nnew line\\rreturn"@en ;
+				schema:name "line one\\nline two" ;
+				schema:version "1\\\\2"^^xsd:string ;
+				schema:url <http://example.org/a\\u007Bb\\u007D> .
+			""";
+
+	@Test
+	public void encodeTest() throws IOException {
+		List<TripleString> triples = parse(new DeltaFileReader.Entry("Q1.ttl", PAGE.getBytes(StandardCharsets.UTF_8)));
+		assertEquals(4, triples.size());
+
+		List<TripleString> decoded = TriplePage.decode(TriplePage.encode(triples));
+		assertEquals(strings(triples), strings(decoded));
+	}
+
+	@Test
+	public void nTriplesRoundTripTest() throws IOException {
+		List<TripleString> triples = parse(new DeltaFileReader.Entry("Q1.ttl", PAGE.getBytes(StandardCharsets.UTF_8)));
+
+		// the triple pages are re-parsed as N-Triples by the recompression, the compaction and the HDT creation
+		DeltaFileReader.Entry entry = new DeltaFileReader.Entry("Q1.ttl", TriplePage.encode(triples), DeltaFileUtils.ENCODING_TRIPLES, null);
+		byte[] nt;
+		try (InputStream is = entry.openPage()) {
+			nt = is.readAllBytes();
+		}
+		List<TripleString> reparsed = parse(new DeltaFileReader.Entry("Q1.ttl", nt));
+		assertEquals(strings(triples), strings(reparsed));
+	}
+
+	private static List<TripleString> parse(DeltaFileReader.Entry entry) throws IOException {
+		return DeltaFileTriples.parse(entry, DeltaFileUtils.BASE_URI).triples();
+	}
+
+	private static List<String> strings(List<TripleString> triples) {
+		return triples.stream()
+				.map(t -> t.getSubject() + " " + t.getPredicate() + " " + t.getObject())
+				.sorted()
+				.toList();
+	}
+}
@@ -0,0 +1,164 @@
+package com.the_qa_company.wikidatachanges.utils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.the_qa_company.qendpoint.core.enums.RDFNotation;
+import com.the_qa_company.qendpoint.core.exceptions.ParserException;
+import com.the_qa_company.qendpoint.core.rdf.RDFParserCallback;
+import com.the_qa_company.qendpoint.core.rdf.RDFParserFactory;
+import com.the_qa_company.wikidatachanges.api.RDFFlavor;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * compare the converted entities with the Special:EntityData turtle pages of the fixtures, the fixtures are the
+ * wbgetentities json and the pages of the same revision saved by {@code ./gradlew wikibaseFixtures}
+ * <p>
+ * The value nodes, the skolem IRIs and the blank nodes are compared with their triples and not their ids, the
+ * normalized values and the labels of the referenced entities are ignored, the writer doesn't write them.
+ */
+public class WikibaseRdfWriterTest {
+	private static final String ENTITY = "Q4115189";
+	private static final String WIKIBASE = "http://wikiba.se/ontology#";
+	private static final List<String> NORMALIZED_NS = List.of(
+			"http://www.wikidata.org/prop/direct-normalized/",
+			"http://www.wikidata.org/prop/statement/value-normalized/",
+			"http://www.wikidata.org/prop/qualifier/value-normalized/",
+			"http://www.wikidata.org/prop/reference/value-normalized/"
+	);
+	private static final Set<String> NORMALIZED_PREDICATES = Set.of(
+			WIKIBASE + "quantityNormalized",
+			WIKIBASE + "directClaimNormalized",
+			WIKIBASE + "statementValueNormalized",
+			WIKIBASE + "qualifierValueNormalized",
+			WIKIBASE + "referenceValueNormalized"
+	);
+	private static final Set<String> LABELS = Set.of(
+			"http://www.w3.org/2000/01/rdf-schema#label",
+			"http://www.w3.org/2004/02/skos/core#prefLabel",
+			"http://schema.org/name"
+	);
+
+	private record Triple(String s, String p, String o) {
+	}
+
+	@Test
+	public void dumpTest() throws IOException, ParserException {
+		assertEquivalent(RDFFlavor.DUMP);
+	}
+
+	@Test
+	public void simpleTest() throws IOException, ParserException {
+		assertEquivalent(RDFFlavor.SIMPLE);
+	}
+
+	@Test
+	public void fullTest() throws IOException, ParserException {
+		assertEquivalent(RDFFlavor.FULL);
+	}
+
+	@Test
+	public void skolemTest() throws IOException, ParserException {
+		JsonNode entity = entity();
+		Set<Triple> triples = parse(WikibaseRdfWriter.write(entity, RDFFlavor.DUMP));
+		boolean unknown = entity.findValues("snaktype").stream().anyMatch(type -> type.asText().equals("somevalue"));
+		boolean genids = triples.stream()
+				.map(Triple::o)
+				.anyMatch(o -> o.startsWith("http://www.wikidata.org/.well-known/genid/"));
+		assertEquals(unknown, genids, "unknown values not written as skolem IRIs");
+		assertTrue(triples.stream().noneMatch(t -> t.s().startsWith("_:") || t.o().startsWith("_:")));
+	}
+
+	private void assertEquivalent(RDFFlavor flavor) throws IOException, ParserException {
+		byte[] expectedPage;
+		try (InputStream is = resource(ENTITY + "." + flavor.getTitle() + ".ttl")) {
+			expectedPage = is.readAllBytes();
+		}
+		Set<Triple> expected = canonical(parse(expectedPage));
+		Set<Triple> actual = canonical(parse(WikibaseRdfWriter.write(entity(), flavor)));
+
+		Set<Triple> missing = new HashSet<>(expected);
+		missing.removeAll(actual);
+		Set<Triple> extra = new HashSet<>(actual);
+		extra.removeAll(expected);
+		assertTrue(missing.isEmpty() && extra.isEmpty(), flavor + " missing: " + missing + " extra: " + extra);
+	}
+
+	private static JsonNode entity() throws IOException {
+		try (InputStream is = resource(ENTITY + ".json")) {
+			return Objects.requireNonNull(new ObjectMapper().readTree(is).path("entities").get(ENTITY), ENTITY);
+		}
+	}
+
+	private static InputStream resource(String name) {
+		InputStream is = WikibaseRdfWriterTest.class.getResourceAsStream("/wikibase/" + name);
+		assumeTrue(is != null, "No fixture " + name + ", run ./gradlew wikibaseFixtures");
+		return is;
+	}
+
+	private static Set<Triple> parse(byte[] page) throws ParserException {
+		RDFParserCallback parser = RDFParserFactory.getParserCallback(RDFNotation.TURTLE);
+		Set<Triple> triples = new HashSet<>();
+		parser.doParse(new ByteArrayInputStream(page), "http://www.wikidata.org/", RDFNotation.TURTLE, true,
+				(triple, pos) -> triples.add(new Triple(
+						triple.getSubject().toString(),
+						triple.getPredicate().toString(),
+						triple.getObject().toString()
+				))
+		);
+		return triples;
+	}
+
+	private static boolean isLocal(String node) {
+		return node.startsWith("http://www.wikidata.org/value/")
+				|| node.startsWith("http://www.wikidata.org/.well-known/genid/")
+				|| node.startsWith("_:");
+	}
+
+	/**
+	 * remove the triples not written by the converter and replace the local nodes by their neighbours
+	 */
+	private static Set<Triple> canonical(Set<Triple> triples) {
+		String entity = "http://www.wikidata.org/entity/" + ENTITY;
+		Set<Triple> kept = triples.stream()
+				.filter(t -> NORMALIZED_NS.stream().noneMatch(t.p()::startsWith))
+				.filter(t -> !NORMALIZED_PREDICATES.contains(t.p()))
+				.filter(t -> !(LABELS.contains(t.p()) && t.s().startsWith("http://www.wikidata.org/entity/") && !t.s().equals(entity)))
+				.collect(Collectors.toSet());
+		// the value nodes only used by the normalized values
+		Set<String> objects = kept.stream().map(Triple::o).collect(Collectors.toSet());
+		kept.removeIf(t -> isLocal(t.s()) && !objects.contains(t.s()));
+
+		Map<String, Set<String>> keys = new HashMap<>();
+		for (Triple t : kept) {
+			if (isLocal(t.s())) {
+				keys.computeIfAbsent(t.s(), k -> new TreeSet<>()).add("> " + t.p() + " " + (isLocal(t.o()) ? "?" : t.o()));
+			}
+			if (isLocal(t.o())) {
+				keys.computeIfAbsent(t.o(), k -> new TreeSet<>()).add("< " + (isLocal(t.s()) ? "?" : t.s()) + " " + t.p());
+			}
+		}
+		return kept.stream()
+				.map(t -> new Triple(
+						isLocal(t.s()) ? keys.get(t.s()).toString() : t.s(),
+						t.p(),
+						isLocal(t.o()) ? keys.get(t.o()).toString() : t.o()
+				))
+				.collect(Collectors.toSet());
+	}
+}